@@ -0,0 +1,69 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import storm.trident.operation.TridentCollector;
+import storm.trident.topology.TransactionAttempt;
+
+// Per-batch cost of the block state: the read in init and the write when the batch completes.
+// The redis and zookeeper stores need a server configured in the benchmark Config.properties,
+// e.g. java -jar target/benchmarks.jar BlockStateStoreBenchmark -p store=memory,local,redis,zookeeper
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BlockStateStoreBenchmark {
+	@Param({ "memory", "local" })
+	public String store;
+
+	private ByteAggregator aggregator;
+	private long txid;
+	private final TridentCollector collector = new TridentCollector() {
+		@Override
+		public void emit(List<Object> values) {
+		}
+
+		@Override
+		public void reportError(Throwable t) {
+		}
+	};
+
+	@Setup(Level.Trial)
+	public void setup() {
+		aggregator = new ByteAggregator();
+		aggregator.prepare(0, BlockStateStores.create(store, new HashMap<String, Object>()));
+		txid = 0;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		aggregator.stateStore.clearState(aggregator);
+		aggregator.cleanup();
+	}
+
+	@Benchmark
+	public BlockState batchStateRoundTrip() {
+		BlockState blockState = aggregator.init(new TransactionAttempt(++txid, 0), collector);
+		blockState.persistState();
+		return blockState;
+	}
+}
@@ -0,0 +1,111 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import storm.trident.operation.TridentCollector;
+import storm.trident.topology.TransactionAttempt;
+import storm.trident.tuple.TridentTuple;
+import storm.trident.tuple.TridentTupleView;
+import backtype.storm.tuple.Fields;
+
+// Drives ByteAggregator through whole batches (init, aggregate for every message, complete) with synthetic telemetry.
+// Blocks go to a DiscardingBlobSink, or with -p sink=local to a LocalFileBlobSink below storage.blob.local.dir,
+// and cursors to an InMemoryBlockStateStore; the codec and block settings come from the benchmark Config.properties.
+// The score is messages per second, the "bytes" counter is message bytes per second, and running with -prof gc adds
+// the allocation rate per message (gc.alloc.rate.norm).
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ByteAggregatorBenchmark {
+	static final int BATCH_SIZE = 1000;
+
+	@Param({ "128", "512", "2048" })
+	public int messageSize;
+
+	@Param({ "discard" })
+	public String sink;
+
+	// string tuples as emitted by the spout's default scheme, binary as emitted by BinaryEventDataScheme
+	@Param({ "string", "binary" })
+	public String payload;
+
+	private ByteAggregator aggregator;
+	private List<TridentTuple> tuples;
+	private long batchBytes;
+	private long txid;
+	private final TridentCollector collector = new TridentCollector() {
+		@Override
+		public void emit(List<Object> values) {
+		}
+
+		@Override
+		public void reportError(Throwable t) {
+		}
+	};
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class MessageBytes {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		BlobWriter.setSink("local".equals(sink) ? new LocalFileBlobSink() : new DiscardingBlobSink());
+		aggregator = new ByteAggregator();
+		aggregator.prepare(0, new InMemoryBlockStateStore());
+		Fields fields = new Fields("message");
+		tuples = new ArrayList<TridentTuple>(BATCH_SIZE);
+		batchBytes = 0;
+		for (String message : new SyntheticTelemetry(42, 1000).next(BATCH_SIZE, messageSize)) {
+			byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+			tuples.add(TridentTupleView.createFreshTuple(fields, "binary".equals(payload) ? bytes : message));
+			batchBytes += bytes.length;
+		}
+		txid = 0;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		aggregator.cleanup();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void batch(MessageBytes counters) {
+		BlockState blockState = aggregator.init(new TransactionAttempt(++txid, 0), collector);
+		for (int i = 0; i < tuples.size(); i++) {
+			aggregator.aggregate(blockState, tuples.get(i), collector);
+		}
+		aggregator.complete(blockState, collector);
+		counters.bytes += batchBytes;
+	}
+}
@@ -0,0 +1,62 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import backtype.storm.topology.FailedException;
+
+import com.microsoft.azure.storage.blob.BlockEntry;
+
+// Stand-in for the Azure sink that only counts what it is given, so benchmarks measure the writer and not the network.
+public class DiscardingBlobSink implements BlobSink {
+	public final AtomicLong uploadedBytes = new AtomicLong();
+	public final AtomicLong uploadedBlocks = new AtomicLong();
+	public final AtomicLong commits = new AtomicLong();
+
+	@Override
+	public void uploadBlock(String blobname, String blockIdStr, byte[] data, int length) {
+		uploadedBytes.addAndGet(length);
+		uploadedBlocks.incrementAndGet();
+	}
+
+	@Override
+	public void commitBlockList(String blobname, List<BlockEntry> blocks) {
+		commits.incrementAndGet();
+	}
+
+	@Override
+	public void downloadBlock(String blobname, String blockIdStr, byte[] buffer, int length) {
+		throw new FailedException("blocks are not kept by " + DiscardingBlobSink.class.getSimpleName());
+	}
+
+	@Override
+	public List<BlockEntry> downloadBlockList(String blobname) {
+		throw new FailedException("block lists are not kept by " + DiscardingBlobSink.class.getSimpleName());
+	}
+
+	@Override
+	public void downloadRange(String blobname, long offset, byte[] buffer, int length) {
+		throw new FailedException("blobs are not kept by " + DiscardingBlobSink.class.getSimpleName());
+	}
+
+	@Override
+	public List<String> listBlobs(String prefix) {
+		throw new FailedException("blobs are not kept by " + DiscardingBlobSink.class.getSimpleName());
+	}
+
+	@Override
+	public void copyBlock(String sourceBlobname, long offset, int length, String blobname, String blockIdStr) {
+		throw new FailedException("blobs are not kept by " + DiscardingBlobSink.class.getSimpleName());
+	}
+
+	@Override
+	public void copyBlob(String sourceBlobname, String blobname) {
+		throw new FailedException("blobs are not kept by " + DiscardingBlobSink.class.getSimpleName());
+	}
+
+	@Override
+	public void deleteBlob(String blobname) {
+		throw new FailedException("blobs are not kept by " + DiscardingBlobSink.class.getSimpleName());
+	}
+}
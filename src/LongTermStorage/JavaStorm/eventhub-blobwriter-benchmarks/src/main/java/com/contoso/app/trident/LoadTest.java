@@ -0,0 +1,193 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Map;
+
+import storm.trident.TridentTopology;
+import backtype.storm.Config;
+import backtype.storm.LocalCluster;
+import backtype.storm.tuple.Fields;
+
+// End-to-end load test of the writer topology on a LocalCluster, without Event Hub, Azure storage or Redis.
+// SyntheticEventSpout replaces the Event Hub spout, blobs go to a LocalFileBlobSink below storage.blob.local.dir through
+// a LoadTestBlobSink that injects upload and commit failures, and storage.state.store should be memory or local.
+// The loadtest.* settings of the benchmark Config.properties set partitions, event rate, message sizes and failure rates.
+// Every loadtest.report.seconds it prints the committed events and bytes per second and the latency from an event's
+// sentAt to the commit of its block. After loadtest.duration.seconds the spout stops, the replays still in flight finish,
+// and the blob files are read back to count events that were lost or written more than once; the exit code is 1 if any were.
+// Run with: java -cp target/benchmarks.jar com.contoso.app.trident.LoadTest
+public class LoadTest {
+	private static int partitionCount = 4;
+	private static double eventsPerSecond = 2000;
+	private static int batchMax = 1024;
+	private static int maxSpoutPending = 4;
+	private static int messageSize = 512;
+	private static String sizeDistribution = "fixed";
+	private static int deviceCount = 1000;
+	private static int durationSeconds = 60;
+	private static int reportSeconds = 10;
+	private static double uploadFailureRate = 0;
+	private static double commitFailureRate = 0;
+	private static double commitLostRate = 0;
+	static {
+		String partitionCountStr = ConfigProperties.getProperty("loadtest.partitions");
+		if (partitionCountStr != null) {
+			partitionCount = Integer.parseInt(partitionCountStr.trim());
+		}
+		String eventsPerSecondStr = ConfigProperties.getProperty("loadtest.events.per.second");
+		if (eventsPerSecondStr != null) {
+			eventsPerSecond = Double.parseDouble(eventsPerSecondStr.trim());
+		}
+		String batchMaxStr = ConfigProperties.getProperty("loadtest.batch.max");
+		if (batchMaxStr != null) {
+			batchMax = Integer.parseInt(batchMaxStr.trim());
+		}
+		String maxSpoutPendingStr = ConfigProperties.getProperty("loadtest.spout.pending.max");
+		if (maxSpoutPendingStr != null) {
+			maxSpoutPending = Integer.parseInt(maxSpoutPendingStr.trim());
+		}
+		String messageSizeStr = ConfigProperties.getProperty("loadtest.message.size");
+		if (messageSizeStr != null) {
+			messageSize = Integer.parseInt(messageSizeStr.trim());
+		}
+		String sizeDistributionStr = ConfigProperties.getProperty("loadtest.message.size.distribution");
+		if (sizeDistributionStr != null) {
+			sizeDistribution = sizeDistributionStr.trim().toLowerCase();
+		}
+		String deviceCountStr = ConfigProperties.getProperty("loadtest.devices");
+		if (deviceCountStr != null) {
+			deviceCount = Integer.parseInt(deviceCountStr.trim());
+		}
+		String durationSecondsStr = ConfigProperties.getProperty("loadtest.duration.seconds");
+		if (durationSecondsStr != null) {
+			durationSeconds = Integer.parseInt(durationSecondsStr.trim());
+		}
+		String reportSecondsStr = ConfigProperties.getProperty("loadtest.report.seconds");
+		if (reportSecondsStr != null) {
+			reportSeconds = Integer.parseInt(reportSecondsStr.trim());
+		}
+		String uploadFailureRateStr = ConfigProperties.getProperty("loadtest.failure.upload.rate");
+		if (uploadFailureRateStr != null) {
+			uploadFailureRate = Double.parseDouble(uploadFailureRateStr.trim());
+		}
+		String commitFailureRateStr = ConfigProperties.getProperty("loadtest.failure.commit.rate");
+		if (commitFailureRateStr != null) {
+			commitFailureRate = Double.parseDouble(commitFailureRateStr.trim());
+		}
+		String commitLostRateStr = ConfigProperties.getProperty("loadtest.failure.commit.lost.rate");
+		if (commitLostRateStr != null) {
+			commitLostRate = Double.parseDouble(commitLostRateStr.trim());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		File root = new File(LocalFileBlobSink.getDirectory(), ConfigProperties.getProperty("storage.blob.account.container")
+				+ BlobWriter.getContainerSuffix());
+		LoadTestStats.reset(partitionCount);
+		BlobWriter.setSink(new LoadTestBlobSink(new LocalFileBlobSink(root), uploadFailureRate, commitFailureRate, commitLostRate));
+
+		TridentTopology tridentTopology = new TridentTopology();
+		SyntheticEventSpout spout = new SyntheticEventSpout(partitionCount, eventsPerSecond, batchMax, messageSize, sizeDistribution,
+				deviceCount, System.currentTimeMillis());
+		tridentTopology.newStream("message", spout).parallelismHint(partitionCount)
+				.partitionAggregate(new Fields("message"), new ByteAggregator(), new Fields("msgCount"));
+		Config config = new Config();
+		config.setNumWorkers(1);
+		config.setMaxTaskParallelism(partitionCount);
+		config.setMaxSpoutPending(maxSpoutPending);
+		LocalCluster localCluster = new LocalCluster();
+		localCluster.submitTopology("loadTest", config, tridentTopology.build());
+		System.out.println("load test: " + partitionCount + " partitions x " + eventsPerSecond + " events/s, " + messageSize + " byte "
+				+ sizeDistribution + " messages, for " + durationSeconds + "s, blobs in " + root);
+
+		long start = System.currentTimeMillis();
+		long end = start + durationSeconds * 1000L;
+		long lastTime = start;
+		long lastEvents = 0;
+		long lastBytes = 0;
+		while (System.currentTimeMillis() < end) {
+			Thread.sleep(Math.min(reportSeconds * 1000L, Math.max(1, end - System.currentTimeMillis())));
+			long now = System.currentTimeMillis();
+			long events = LoadTestStats.committedEvents.get();
+			long bytes = LoadTestStats.committedBytes.get();
+			report((now - start) / 1000 + "s", events - lastEvents, bytes - lastBytes, (now - lastTime) / 1000.0,
+					LoadTestStats.intervalLatency.getValueAndReset());
+			lastTime = now;
+			lastEvents = events;
+			lastBytes = bytes;
+		}
+		long measured = System.currentTimeMillis() - start;
+		long sustainedEvents = LoadTestStats.committedEvents.get();
+		long sustainedBytes = LoadTestStats.committedBytes.get();
+
+		// stop new events and wait for the batches in flight, replays included, to commit
+		LoadTestStats.stop();
+		long drainEnd = System.currentTimeMillis() + 120000;
+		while (LoadTestStats.committedEvents.get() < LoadTestStats.getEmittedTotal() && System.currentTimeMillis() < drainEnd) {
+			Thread.sleep(100);
+		}
+		// the last commits are followed by the state store update of their batch
+		Thread.sleep(2000);
+		localCluster.killTopology("loadTest");
+		localCluster.shutdown();
+
+		report("total", sustainedEvents, sustainedBytes, measured / 1000.0, LoadTestStats.totalLatency.getValueAndReset());
+		System.out.println("injected failures: " + LoadTestStats.injectedFailures.get());
+		if (BlockEncoder.isAvro()) {
+			System.out.println("blobs are not verified, the check reads storage.blob.block.format = text");
+			System.exit(0);
+		}
+		BitSet[] seen = new BitSet[partitionCount];
+		for (int i = 0; i < partitionCount; i++) {
+			seen[i] = new BitSet();
+		}
+		long duplicated = verify(root, seen);
+		long lost = 0;
+		long emitted = 0;
+		for (int i = 0; i < partitionCount; i++) {
+			long high = LoadTestStats.getEmittedHigh(i);
+			emitted += high;
+			lost += high - seen[i].get(0, (int) high).cardinality();
+		}
+		System.out.println("emitted " + emitted + " events, lost " + lost + ", duplicated " + duplicated);
+		System.exit(lost == 0 && duplicated == 0 ? 0 : 1);
+	}
+
+	private static void report(String label, long events, long bytes, double seconds, Object latency) {
+		@SuppressWarnings("unchecked")
+		Map<String, Object> value = (Map<String, Object>) latency;
+		String throughput = String.format("%s: %.0f events/s, %.2f MB/s", label, events / seconds, bytes / seconds / 1048576);
+		if (!value.containsKey("p50_ms")) {
+			System.out.println(throughput + ", nothing committed");
+			return;
+		}
+		System.out.println(String.format("%s, latency p50 %sms p90 %sms p99 %sms max %sms", throughput, value.get("p50_ms"),
+				value.get("p90_ms"), value.get("p99_ms"), value.get("max_ms")));
+	}
+
+	// marks the events of every blob below root in seen and returns the number of events found more than once; the blobs
+	// are listed the way readers list them, so a compaction in progress is read once
+	private static long verify(File root, BitSet[] seen) throws IOException {
+		long duplicated = 0;
+		LocalFileBlobSink sink = new LocalFileBlobSink(root);
+		for (Map.Entry<String, Long> blob : new BlobIndexReader(sink).listBlobs("").entrySet()) {
+			byte[] data = new byte[blob.getValue().intValue()];
+			sink.downloadRange(blob.getKey(), 0, data, data.length);
+			try (BufferedReader lines = BlobIndexReader.openTextBlock(data)) {
+				for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+					int partition = (int) LoadTestBlobSink.getLong(line, "\"partition\":");
+					int seq = (int) LoadTestBlobSink.getLong(line, "\"seq\":");
+					if (seen[partition].get(seq)) {
+						duplicated++;
+					}
+					seen[partition].set(seq);
+				}
+			}
+		}
+		return duplicated;
+	}
+}
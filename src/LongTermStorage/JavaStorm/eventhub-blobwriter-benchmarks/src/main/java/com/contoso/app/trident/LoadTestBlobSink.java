@@ -0,0 +1,145 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import backtype.storm.topology.FailedException;
+
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+
+// Sink of LoadTest: passes blocks on to another sink, fails uploads and commits at the configured rates so batches are
+// replayed, and reports the events of every committed block to LoadTestStats for the latency and commit counts.
+// A lost commit is applied to the blob but reported as failed, like a request whose response never arrived.
+// Only text blocks are read back; for avro blocks nothing is reported.
+public class LoadTestBlobSink implements BlobSink {
+	private final BlobSink sink;
+	private final double uploadFailureRate;
+	private final double commitFailureRate;
+	private final double commitLostRate;
+	// events of the uploaded blocks that are not committed yet, by blobname and block id
+	private final HashMap<String, long[]> uploaded = new HashMap<String, long[]>();
+
+	public LoadTestBlobSink(BlobSink sink, double uploadFailureRate, double commitFailureRate, double commitLostRate) {
+		this.sink = sink;
+		this.uploadFailureRate = uploadFailureRate;
+		this.commitFailureRate = commitFailureRate;
+		this.commitLostRate = commitLostRate;
+	}
+
+	@Override
+	public void uploadBlock(String blobname, String blockIdStr, byte[] data, int length) {
+		inject(uploadFailureRate, "upload of " + blobname + " block " + blockIdStr);
+		long[] events = readEvents(data, length);
+		sink.uploadBlock(blobname, blockIdStr, data, length);
+		synchronized (uploaded) {
+			uploaded.put(blobname + " " + BlockList.toBlockEntryId(blockIdStr), events);
+		}
+	}
+
+	@Override
+	public void commitBlockList(String blobname, List<BlockEntry> blocks) {
+		inject(commitFailureRate, "commit of " + blobname);
+		sink.commitBlockList(blobname, blocks);
+		long now = System.currentTimeMillis();
+		List<long[]> committed = new ArrayList<long[]>();
+		synchronized (uploaded) {
+			for (BlockEntry block : blocks) {
+				if (block.getSearchMode() != BlockSearchMode.COMMITTED) {
+					long[] events = uploaded.remove(blobname + " " + block.getId());
+					if (events != null) {
+						committed.add(events);
+					}
+				}
+			}
+		}
+		for (long[] events : committed) {
+			for (int i = 0; i < events.length; i += 4) {
+				LoadTestStats.committed((int) events[i], events[i + 1], events[i + 2], (int) events[i + 3], now);
+			}
+		}
+		inject(commitLostRate, "response to the commit of " + blobname);
+	}
+
+	@Override
+	public void downloadBlock(String blobname, String blockIdStr, byte[] buffer, int length) {
+		sink.downloadBlock(blobname, blockIdStr, buffer, length);
+	}
+
+	@Override
+	public List<BlockEntry> downloadBlockList(String blobname) {
+		return sink.downloadBlockList(blobname);
+	}
+
+	@Override
+	public void downloadRange(String blobname, long offset, byte[] buffer, int length) {
+		sink.downloadRange(blobname, offset, buffer, length);
+	}
+
+	@Override
+	public List<String> listBlobs(String prefix) {
+		return sink.listBlobs(prefix);
+	}
+
+	@Override
+	public void copyBlock(String sourceBlobname, long offset, int length, String blobname, String blockIdStr) {
+		sink.copyBlock(sourceBlobname, offset, length, blobname, blockIdStr);
+	}
+
+	@Override
+	public void copyBlob(String sourceBlobname, String blobname) {
+		sink.copyBlob(sourceBlobname, blobname);
+	}
+
+	@Override
+	public void deleteBlob(String blobname) {
+		sink.deleteBlob(blobname);
+	}
+
+	private static void inject(double rate, String what) {
+		if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+			LoadTestStats.injectedFailures.incrementAndGet();
+			throw new FailedException("injected failure: " + what);
+		}
+	}
+
+	// partition, seq, sentAt and length of every event in a text block
+	private static long[] readEvents(byte[] data, int length) {
+		long[] events = new long[64];
+		int count = 0;
+		try (BufferedReader lines = BlobIndexReader.openTextBlock(Arrays.copyOf(data, length))) {
+			for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+				if (count + 4 > events.length) {
+					events = Arrays.copyOf(events, events.length * 2);
+				}
+				events[count++] = getLong(line, "\"partition\":");
+				events[count++] = getLong(line, "\"seq\":");
+				events[count++] = getLong(line, "\"sentAt\":");
+				events[count++] = line.length();
+			}
+		} catch (IOException | NumberFormatException e) {
+			// an avro block, or messages that did not come from SyntheticEventSpout
+			return new long[0];
+		}
+		return Arrays.copyOf(events, count);
+	}
+
+	static long getLong(String line, String key) {
+		int start = line.indexOf(key);
+		if (start < 0) {
+			throw new NumberFormatException(key + " not found");
+		}
+		start += key.length();
+		int end = start;
+		while (end < line.length() && (Character.isDigit(line.charAt(end)) || line.charAt(end) == '-')) {
+			end++;
+		}
+		return Long.parseLong(line.substring(start, end));
+	}
+}
@@ -0,0 +1,77 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counters LoadTest shares with the spout and the sink. LocalCluster runs every component in the LoadTest JVM,
+// so static state is seen by all of them.
+public final class LoadTestStats {
+	private static AtomicLongArray emittedHigh = new AtomicLongArray(0);
+	private static BitSet[] committedSeqs = new BitSet[0];
+	private static volatile boolean stopped = false;
+	public static final AtomicLong committedEvents = new AtomicLong();
+	public static final AtomicLong committedBytes = new AtomicLong();
+	public static final AtomicLong injectedFailures = new AtomicLong();
+	// time from an event's sentAt to the first commit of a block list holding it, per report interval and for the run
+	public static final LatencyHistogram intervalLatency = new LatencyHistogram();
+	public static final LatencyHistogram totalLatency = new LatencyHistogram();
+
+	private LoadTestStats() {
+	}
+
+	static void reset(int partitionCount) {
+		emittedHigh = new AtomicLongArray(partitionCount);
+		committedSeqs = new BitSet[partitionCount];
+		for (int i = 0; i < partitionCount; i++) {
+			committedSeqs[i] = new BitSet();
+		}
+		stopped = false;
+	}
+
+	// no new events are emitted after stop, replays still are
+	static void stop() {
+		stopped = true;
+	}
+
+	static boolean isStopped() {
+		return stopped;
+	}
+
+	// events 0..next-1 of the partition were emitted at least once
+	static void emitted(int partition, long next) {
+		long high = emittedHigh.get(partition);
+		while (next > high && !emittedHigh.compareAndSet(partition, high, next)) {
+			high = emittedHigh.get(partition);
+		}
+	}
+
+	static long getEmittedHigh(int partition) {
+		return emittedHigh.get(partition);
+	}
+
+	static long getEmittedTotal() {
+		long total = 0;
+		for (int i = 0; i < emittedHigh.length(); i++) {
+			total += emittedHigh.get(i);
+		}
+		return total;
+	}
+
+	// records an event of a committed block; only its first commit counts, a replay commits it again
+	static void committed(int partition, long seq, long sentAt, int bytes, long now) {
+		BitSet seqs = committedSeqs[partition];
+		synchronized (seqs) {
+			if (seqs.get((int) seq)) {
+				return;
+			}
+			seqs.set((int) seq);
+		}
+		committedEvents.incrementAndGet();
+		committedBytes.addAndGet(bytes);
+		long micros = Math.max(0, now - sentAt) * 1000;
+		intervalLatency.update(micros);
+		totalLatency.update(micros);
+	}
+}
@@ -0,0 +1,181 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import storm.trident.operation.TridentCollector;
+import storm.trident.spout.IOpaquePartitionedTridentSpout;
+import storm.trident.spout.ISpoutPartition;
+import storm.trident.topology.TransactionAttempt;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Values;
+
+// Opaque partitioned Trident spout standing in for OpaqueTridentEventHubSpout in LoadTest. Each partition is an endless
+// sequence of telemetry events; event seq of a partition is due at start + seq / rate, which is its "sentAt" time, so
+// latency measured from sentAt includes the time an event waited while the topology fell behind.
+// Events are derived from partition and seq only, so a replayed batch emits the same events from the offset in its
+// metadata, like the Event Hub spout does. LoadTestStats.stop() freezes the sequences, after which only replays emit.
+public class SyntheticEventSpout implements IOpaquePartitionedTridentSpout<Integer, SyntheticEventSpout.Partition, Map<String, Object>> {
+	private static final long serialVersionUID = 1L;
+	private final int partitionCount;
+	private final double eventsPerSecond;
+	private final int batchMax;
+	private final int messageSize;
+	private final String sizeDistribution;
+	private final int deviceCount;
+	private final long startTime;
+
+	public SyntheticEventSpout(int partitionCount, double eventsPerSecond, int batchMax, int messageSize, String sizeDistribution,
+			int deviceCount, long startTime) {
+		if (!"fixed".equals(sizeDistribution) && !"uniform".equals(sizeDistribution) && !"exponential".equals(sizeDistribution)) {
+			throw new IllegalArgumentException("unknown loadtest.message.size.distribution: " + sizeDistribution);
+		}
+		this.partitionCount = partitionCount;
+		this.eventsPerSecond = eventsPerSecond;
+		this.batchMax = batchMax;
+		this.messageSize = messageSize;
+		this.sizeDistribution = sizeDistribution;
+		this.deviceCount = deviceCount;
+		this.startTime = startTime;
+	}
+
+	@Override
+	public Emitter<Integer, Partition, Map<String, Object>> getEmitter(@SuppressWarnings("rawtypes") Map conf, TopologyContext context) {
+		return new SyntheticEmitter();
+	}
+
+	@Override
+	public Coordinator<Integer> getCoordinator(@SuppressWarnings("rawtypes") Map conf, TopologyContext context) {
+		return new Coordinator<Integer>() {
+			@Override
+			public boolean isReady(long txid) {
+				return true;
+			}
+
+			@Override
+			public Integer getPartitionsForBatch() {
+				return partitionCount;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@Override
+	public Map<String, Object> getComponentConfiguration() {
+		return null;
+	}
+
+	@Override
+	public Fields getOutputFields() {
+		return new Fields("message");
+	}
+
+	// the event seq of partition, padded with pseudo-random readings to the size drawn for it
+	String event(int partition, long seq) {
+		long hash = mix(((long) partition << 40) ^ seq);
+		int size = messageSize;
+		double u = (hash >>> 11) * 0x1.0p-53;
+		if ("uniform".equals(sizeDistribution)) {
+			size = messageSize / 2 + (int) (u * messageSize);
+		} else if ("exponential".equals(sizeDistribution)) {
+			size = (int) Math.min(-Math.log(1 - u) * messageSize, messageSize * 64L);
+		}
+		size = Math.min(size, Block.getMaxBlockBytes() / 2);
+		StringBuilder sb = new StringBuilder(size + 96);
+		sb.append("{\"deviceId\":\"device-").append((hash >>> 1) % deviceCount).append('"');
+		sb.append(",\"partition\":").append(partition);
+		sb.append(",\"seq\":").append(seq);
+		sb.append(",\"sentAt\":").append(getDueTime(seq));
+		sb.append(",\"readings\":[");
+		boolean first = true;
+		while (sb.length() < size - 2) {
+			if (!first) {
+				sb.append(',');
+			}
+			hash = mix(hash);
+			sb.append((hash >>> 1) % 100000);
+			first = false;
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	long getDueTime(long seq) {
+		return startTime + (long) (seq * 1000 / eventsPerSecond);
+	}
+
+	// number of events of a partition due by now
+	private long getDueCount() {
+		return (long) ((System.currentTimeMillis() - startTime) * eventsPerSecond / 1000);
+	}
+
+	// SplitMix64 finalizer
+	private static long mix(long z) {
+		z += 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	public static class Partition implements ISpoutPartition, Serializable {
+		private static final long serialVersionUID = 1L;
+		public final int index;
+
+		public Partition(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public String getId() {
+			return "partition-" + index;
+		}
+	}
+
+	private class SyntheticEmitter implements Emitter<Integer, Partition, Map<String, Object>> {
+		@Override
+		public Map<String, Object> emitPartitionBatch(TransactionAttempt tx, TridentCollector collector, Partition partition,
+				Map<String, Object> lastPartitionMeta) {
+			// metadata goes through JSON in ZooKeeper, so numbers come back as Long
+			long start = lastPartitionMeta == null ? 0 : ((Number) lastPartitionMeta.get("next")).longValue();
+			long high = LoadTestStats.getEmittedHigh(partition.index);
+			long end = LoadTestStats.isStopped() ? high : Math.max(high, getDueCount());
+			end = Math.max(start, Math.min(end, start + batchMax));
+			boolean binary = BinaryEventDataScheme.isEnabled();
+			for (long seq = start; seq < end; seq++) {
+				String event = event(partition.index, seq);
+				collector.emit(new Values(binary ? event.getBytes(StandardCharsets.UTF_8) : event));
+			}
+			LoadTestStats.emitted(partition.index, end);
+			Map<String, Object> meta = new HashMap<String, Object>();
+			meta.put("start", start);
+			meta.put("next", end);
+			return meta;
+		}
+
+		@Override
+		public void refreshPartitions(List<Partition> partitionResponsibilities) {
+		}
+
+		@Override
+		public List<Partition> getOrderedPartitions(Integer allPartitionInfo) {
+			List<Partition> partitions = new ArrayList<Partition>(allPartitionInfo);
+			for (int i = 0; i < allPartitionInfo; i++) {
+				partitions.add(new Partition(i));
+			}
+			return partitions;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
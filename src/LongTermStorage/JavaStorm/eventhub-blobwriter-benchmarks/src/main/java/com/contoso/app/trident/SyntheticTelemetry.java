@@ -0,0 +1,46 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Generates device telemetry messages in the shape the simulator sends to Event Hub,
+// padded to roughly the requested size.
+public class SyntheticTelemetry {
+	private final Random random;
+	private final int deviceCount;
+	private long timestamp = 1400000000000L;
+
+	public SyntheticTelemetry(long seed, int deviceCount) {
+		this.random = new Random(seed);
+		this.deviceCount = deviceCount;
+	}
+
+	public String next(int messageSize) {
+		timestamp += random.nextInt(1000);
+		StringBuilder sb = new StringBuilder(messageSize + 64);
+		sb.append("{\"deviceId\":\"device-").append(random.nextInt(deviceCount)).append('"');
+		sb.append(",\"timestamp\":").append(timestamp);
+		sb.append(",\"temperature\":").append(15 + random.nextInt(2000) / 100.0);
+		sb.append(",\"readings\":[");
+		boolean first = true;
+		while (sb.length() < messageSize - 2) {
+			if (!first) {
+				sb.append(',');
+			}
+			sb.append(random.nextInt(100000));
+			first = false;
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	public List<String> next(int count, int messageSize) {
+		List<String> messages = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			messages.add(next(messageSize));
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,170 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Writes blobs as Avro object container files. Every storage block holds one Avro data block
+// (record count, byte size, records, sync marker), and block 1 of each blob starts with the file header,
+// so Avro readers can split a blob at block boundaries.
+// The sync marker is derived from the blob name, so blocks uploaded again on replay are identical.
+public class AvroBlockEncoder extends BlockEncoder {
+	public static final String SCHEMA = "{\"type\":\"record\",\"name\":\"Message\",\"namespace\":\"com.contoso.app.trident\","
+			+ "\"fields\":[{\"name\":\"body\",\"type\":\"string\"}]}";
+	// schema of blobs written from BinaryEventDataScheme bodies; bytes and string are encoded the same way
+	public static final String BYTES_SCHEMA = "{\"type\":\"record\",\"name\":\"Message\",\"namespace\":\"com.contoso.app.trident\","
+			+ "\"fields\":[{\"name\":\"body\",\"type\":\"bytes\"}]}";
+	private static final byte[] MAGIC = { 'O', 'b', 'j', 1 };
+	public static final int SYNC_SIZE = 16;
+	private static final int MAX_LONG_SIZE = 10;
+
+	private final int partitionIndex;
+	// null for the Avro "null" codec
+	private final BlockDeflater deflater;
+	// magic and file metadata, the sync marker follows
+	private final byte[] headerPrefix;
+	private final byte[] sync = new byte[SYNC_SIZE];
+	private final byte[] longBuffer = new byte[MAX_LONG_SIZE];
+	private final MessageDigest md5;
+	private int frameStart;
+	private int headerSize;
+	private int dataStart;
+	private long recordCount;
+
+	public AvroBlockEncoder(int partitionIndex, Integer compressionLevel) {
+		this.partitionIndex = partitionIndex;
+		this.deflater = compressionLevel == null ? null : new BlockDeflater(compressionLevel);
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		header.write(MAGIC, 0, MAGIC.length);
+		writeLong(header, 2);
+		writeBytes(header, "avro.schema".getBytes(StandardCharsets.UTF_8));
+		writeBytes(header, (BinaryEventDataScheme.isEnabled() ? BYTES_SCHEMA : SCHEMA).getBytes(StandardCharsets.UTF_8));
+		writeBytes(header, "avro.codec".getBytes(StandardCharsets.UTF_8));
+		writeBytes(header, (deflater == null ? "null" : "deflate").getBytes(StandardCharsets.UTF_8));
+		writeLong(header, 0);
+		headerPrefix = header.toByteArray();
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void begin(Block block, int offset, int capacity) {
+		super.begin(block, offset, capacity);
+		md5.reset();
+		System.arraycopy(md5.digest(block.getBlobname(partitionIndex).getBytes(StandardCharsets.UTF_8)), 0, sync, 0, SYNC_SIZE);
+		frameStart = offset;
+		// only the first frame of a blob carries the file header
+		headerSize = (block.storageBlockid == 1 && offset == 0) ? headerPrefix.length + SYNC_SIZE : 0;
+		// room for the header and the record count and byte size, which are only known in finish()
+		dataStart = offset + headerSize + 2 * MAX_LONG_SIZE;
+		position = dataStart;
+		recordCount = 0;
+		if (deflater != null) {
+			deflater.begin(buffer, dataStart, capacity);
+		}
+	}
+
+	@Override
+	public int maxFrameSize(int length) {
+		int recordSize = MAX_LONG_SIZE + length;
+		int dataSize = deflater == null ? recordSize : BlockDeflater.maxCompressedSize(recordSize);
+		return headerPrefix.length + SYNC_SIZE + 2 * MAX_LONG_SIZE + dataSize + SYNC_SIZE;
+	}
+
+	@Override
+	public boolean willFit(int length) {
+		int recordSize = longSize(length) + length;
+		if (deflater == null) {
+			return position + recordSize + SYNC_SIZE <= capacity;
+		}
+		boolean result = deflater.willFit(recordSize, SYNC_SIZE);
+		position = deflater.position();
+		return result;
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) {
+		int lengthSize = encodeLong(length, longBuffer, 0);
+		if (deflater == null) {
+			System.arraycopy(longBuffer, 0, buffer, position, lengthSize);
+			position += lengthSize;
+			System.arraycopy(data, offset, buffer, position, length);
+			position += length;
+		} else {
+			deflater.write(longBuffer, 0, lengthSize);
+			deflater.write(data, offset, length);
+			position = deflater.position();
+		}
+		recordCount++;
+	}
+
+	@Override
+	public int finish() {
+		int dataEnd = deflater == null ? position : deflater.finish();
+		int dataSize = dataEnd - dataStart;
+		int prefixSize = headerSize + longSize(recordCount) + longSize(dataSize);
+		int newDataStart = frameStart + prefixSize;
+		if (newDataStart != dataStart) {
+			// close the gap left by the space reserved for the header and the two longs
+			System.arraycopy(buffer, dataStart, buffer, newDataStart, dataSize);
+		}
+		position = frameStart;
+		if (headerSize > 0) {
+			System.arraycopy(headerPrefix, 0, buffer, position, headerPrefix.length);
+			position += headerPrefix.length;
+			System.arraycopy(sync, 0, buffer, position, SYNC_SIZE);
+			position += SYNC_SIZE;
+		}
+		position += encodeLong(recordCount, buffer, position);
+		position += encodeLong(dataSize, buffer, position);
+		position += dataSize;
+		System.arraycopy(sync, 0, buffer, position, SYNC_SIZE);
+		position += SYNC_SIZE;
+		return position;
+	}
+
+	@Override
+	public void end() {
+		super.end();
+		if (deflater != null) {
+			deflater.end();
+		}
+	}
+
+	private static void writeLong(ByteArrayOutputStream out, long value) {
+		byte[] bytes = new byte[MAX_LONG_SIZE];
+		out.write(bytes, 0, encodeLong(value, bytes, 0));
+	}
+
+	private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+		writeLong(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	// Avro long: zig-zag encoded variable length integer
+	static int encodeLong(long value, byte[] target, int offset) {
+		long n = (value << 1) ^ (value >> 63);
+		int start = offset;
+		while ((n & ~0x7FL) != 0) {
+			target[offset++] = (byte) ((n & 0x7F) | 0x80);
+			n >>>= 7;
+		}
+		target[offset++] = (byte) n;
+		return offset - start;
+	}
+
+	static int longSize(long value) {
+		long n = (value << 1) ^ (value >> 63);
+		int size = 1;
+		while ((n & ~0x7FL) != 0) {
+			n >>>= 7;
+			size++;
+		}
+		return size;
+	}
+}
@@ -0,0 +1,234 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.topology.FailedException;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockListingFilter;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.CopyState;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+
+// Writes blocks to block blobs in an Azure storage container.
+public class AzureBlobSink implements BlobSink {
+	private static final Logger logger = (Logger) LoggerFactory.getLogger(AzureBlobSink.class);
+	private static final long COPY_POLL_MILLIS = 500;
+	private final CloudBlobContainer container;
+
+	public AzureBlobSink() {
+		this(ConfigProperties.getProperty("storage.blob.account.container") + BlobWriter.getContainerSuffix());
+	}
+
+	public AzureBlobSink(String containerName) {
+		try {
+			String accountName = ConfigProperties.getProperty("storage.blob.account.name");
+			String accountKey = ConfigProperties.getProperty("storage.blob.account.key");
+			String connectionStrFormatter = "DefaultEndpointsProtocol=http;AccountName=%s;AccountKey=%s";
+			String connectionStr = String.format(connectionStrFormatter, accountName, accountKey);
+			CloudStorageAccount account = CloudStorageAccount.parse(String.format(connectionStr, accountName, accountKey));
+			CloudBlobClient blobClient = account.createCloudBlobClient();
+			container = blobClient.getContainerReference(containerName);
+			container.createIfNotExists();
+		} catch (Exception e) {
+			logger.error(e.getMessage());
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	@Override
+	public void uploadBlock(String blobname, String blockIdStr, byte[] data, int length) {
+		InputStream stream = null;
+		try {
+			if (LogSetting.LOG_BLOBWRITER) {
+				logger.info("uploadBlock Begin");
+				logger.info("uploadBlock blobname = " + blobname);
+				logger.info("uploadBlock blockIdStr = " + blockIdStr);
+			}
+			if (LogSetting.LOG_BLOBWRITERDATA) {
+				logger.info("uploadBlock data= \r\n" + new String(data, 0, length, StandardCharsets.UTF_8));				
+			}
+			CloudBlockBlob blockBlob = container.getBlockBlobReference(blobname);
+			stream = new ByteArrayInputStream(data, 0, length);
+			blockBlob.uploadBlock(BlockList.toBlockEntryId(blockIdStr), stream, length);
+		} catch (Exception e) {
+			throw new FailedException(e.getMessage());
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (Exception e) {
+					logger.error("failed to close the stream that upload to azrue blob");
+				}
+			}
+		}
+		if (LogSetting.LOG_BLOBWRITER) {
+			logger.info("uploadBlock End");
+		}
+	}
+
+	@Override
+	public void commitBlockList(String blobname, List<BlockEntry> blocks) {
+		try {
+			if (LogSetting.LOG_BLOBWRITER) {
+				logger.info("commitBlockList Begin");
+				logger.info("commitBlockList blobname = " + blobname + ", number of blocks = " + blocks.size());
+			}
+			CloudBlockBlob blockBlob = container.getBlockBlobReference(blobname);
+			blockBlob.commitBlockList(blocks);
+		} catch (Exception e) {
+			throw new FailedException(e.getMessage());
+		}
+		if (LogSetting.LOG_BLOBWRITER) {
+			logger.info("commitBlockList End");
+		}
+	}
+
+	@Override
+	public void downloadBlock(String blobname, String blockIdStr, byte[] buffer, int length) {
+		try {
+			if (LogSetting.LOG_BLOBWRITER) {
+				logger.info("downloadBlock Begin");
+				logger.info("downloadBlock blobname = " + blobname + ", blockIdStr = " + blockIdStr + ", length = " + length);
+			}
+			CloudBlockBlob blockBlob = container.getBlockBlobReference(blobname);
+			String id = BlockList.toBlockEntryId(blockIdStr);
+			long offset = 0;
+			BlockEntry block = null;
+			for (BlockEntry e : blockBlob.downloadBlockList(BlockListingFilter.COMMITTED, null, null, null)) {
+				if (e.getId().equals(id)) {
+					block = e;
+					break;
+				}
+				offset += e.getSize();
+			}
+			if (block == null || block.getSize() < length) {
+				throw new FailedException("block " + blockIdStr + " of " + blobname + " is not committed with " + length + " bytes");
+			}
+			blockBlob.downloadRangeToByteArray(offset, Long.valueOf(length), buffer, 0);
+		} catch (FailedException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new FailedException(e.getMessage());
+		}
+		if (LogSetting.LOG_BLOBWRITER) {
+			logger.info("downloadBlock End");
+		}
+	}
+
+	@Override
+	public List<BlockEntry> downloadBlockList(String blobname) {
+		try {
+			if (LogSetting.LOG_BLOBWRITER) {
+				logger.info("downloadBlockList blobname = " + blobname);
+			}
+			CloudBlockBlob blockBlob = container.getBlockBlobReference(blobname);
+			if (!blockBlob.exists()) {
+				return new ArrayList<BlockEntry>();
+			}
+			return blockBlob.downloadBlockList(BlockListingFilter.COMMITTED, null, null, null);
+		} catch (Exception e) {
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	@Override
+	public void downloadRange(String blobname, long offset, byte[] buffer, int length) {
+		try {
+			if (LogSetting.LOG_BLOBWRITER) {
+				logger.info("downloadRange blobname = " + blobname + ", offset = " + offset + ", length = " + length);
+			}
+			CloudBlockBlob blockBlob = container.getBlockBlobReference(blobname);
+			blockBlob.downloadRangeToByteArray(offset, Long.valueOf(length), buffer, 0);
+		} catch (Exception e) {
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	@Override
+	public List<String> listBlobs(String prefix) {
+		try {
+			if (LogSetting.LOG_BLOBWRITER) {
+				logger.info("listBlobs prefix = " + prefix);
+			}
+			List<String> blobnames = new ArrayList<String>();
+			for (ListBlobItem item : container.listBlobs(prefix, true)) {
+				if (item instanceof CloudBlob) {
+					blobnames.add(((CloudBlob) item).getName());
+				}
+			}
+			Collections.sort(blobnames);
+			return blobnames;
+		} catch (Exception e) {
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	// azure-storage 1.3.1 has no Put Block From URL, so the range is downloaded and uploaded again as the block;
+	// a whole blob is copied by copyBlob within the service
+	@Override
+	public void copyBlock(String sourceBlobname, long offset, int length, String blobname, String blockIdStr) {
+		if (LogSetting.LOG_BLOBWRITER) {
+			logger.info("copyBlock sourceBlobname = " + sourceBlobname + ", offset = " + offset + ", length = " + length);
+		}
+		byte[] data = new byte[length];
+		downloadRange(sourceBlobname, offset, data, length);
+		uploadBlock(blobname, blockIdStr, data, length);
+	}
+
+	// Copy Blob runs within the service and keeps the block list; a copy within the account usually completes at once,
+	// otherwise its state is polled until it does
+	@Override
+	public void copyBlob(String sourceBlobname, String blobname) {
+		try {
+			if (LogSetting.LOG_BLOBWRITER) {
+				logger.info("copyBlob sourceBlobname = " + sourceBlobname + ", blobname = " + blobname);
+			}
+			CloudBlockBlob blockBlob = container.getBlockBlobReference(blobname);
+			blockBlob.startCopyFromBlob(container.getBlockBlobReference(sourceBlobname));
+			blockBlob.downloadAttributes();
+			while (blockBlob.getCopyState().getStatus() == CopyStatus.PENDING) {
+				Thread.sleep(COPY_POLL_MILLIS);
+				blockBlob.downloadAttributes();
+			}
+			CopyState state = blockBlob.getCopyState();
+			if (state.getStatus() != CopyStatus.SUCCESS) {
+				throw new FailedException("copy of " + sourceBlobname + " to " + blobname + " ended " + state.getStatus() + ": "
+						+ state.getStatusDescription());
+			}
+		} catch (FailedException e) {
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FailedException("interrupted while copying " + sourceBlobname + " to " + blobname);
+		} catch (Exception e) {
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	@Override
+	public void deleteBlob(String blobname) {
+		try {
+			if (LogSetting.LOG_BLOBWRITER) {
+				logger.info("deleteBlob blobname = " + blobname);
+			}
+			container.getBlockBlobReference(blobname).deleteIfExists();
+		} catch (Exception e) {
+			throw new FailedException(e.getMessage());
+		}
+	}
+}
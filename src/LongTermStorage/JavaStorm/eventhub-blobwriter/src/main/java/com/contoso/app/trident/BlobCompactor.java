@@ -0,0 +1,356 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.topology.FailedException;
+
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+
+// Merges the small blobs a container accumulates over restarts and rollovers into large ones, so batch jobs list and
+// read fewer blobs. Blobs whose names differ only in the trailing blob id, e.g. the blobs of a partition and period,
+// form a sequence; consecutive blobs of a sequence are merged into the first of them up to storage.compaction.blob.bytes
+// and storage.compaction.blob.blocks. The first blob keeps its committed blocks in place, the blocks of the others are
+// copied behind them by the sink, within the storage where it can, and one commit of the first blob's block list swaps
+// the merged blob in; a first blob without blocks is replaced by a copy of the first merged blob the storage makes.
+// Before anything is copied, a manifest <blobname>.compaction names the merged blobs with their block counts. Readers
+// that list blobs through BlobIndexReader.listBlobs skip a merged blob once the first blob holds its blocks, so they
+// see every message once while the merged blobs are deleted, and the next run finishes a compaction that stopped.
+// The last storage.compaction.keep.blobs blobs of a sequence are left alone, the writer may still append or replay a
+// batch into them. A merged blob gets a merged index when it and every blob merged into it had one.
+// Avro blobs are refused, every blob starts with a container header of its own.
+// Usage: BlobCompactor <container suffix> [<blobname prefix>]
+public class BlobCompactor {
+	private static final Logger logger = (Logger) LoggerFactory.getLogger(BlobCompactor.class);
+	public static final String MANIFEST_SUFFIX = ".compaction";
+	private static long maxBlobBytes = 1073741824L;
+	private static int maxBlobBlocks = 50000;
+	private static int keepBlobs = -1;
+	static {
+		String maxBlobBytesStr = ConfigProperties.getProperty("storage.compaction.blob.bytes");
+		if (maxBlobBytesStr != null) {
+			long maxBlobBytesLong = Long.parseLong(maxBlobBytesStr.trim());
+			if (maxBlobBytesLong > 0) {
+				maxBlobBytes = maxBlobBytesLong;
+			}
+		}
+		String maxBlobBlocksStr = ConfigProperties.getProperty("storage.compaction.blob.blocks");
+		if (maxBlobBlocksStr != null) {
+			int maxBlobBlocksInt = Integer.parseInt(maxBlobBlocksStr.trim());
+			if (maxBlobBlocksInt > 0 && maxBlobBlocksInt <= 50000) {
+				maxBlobBlocks = maxBlobBlocksInt;
+			}
+		}
+		String keepBlobsStr = ConfigProperties.getProperty("storage.compaction.keep.blobs");
+		if (keepBlobsStr != null && !keepBlobsStr.trim().isEmpty()) {
+			keepBlobs = Math.max(0, Integer.parseInt(keepBlobsStr.trim()));
+		}
+	}
+
+	private final BlobSink sink;
+	private final int keep;
+	private final long blobBytes;
+	private final int blobBlocks;
+	public long mergedBlobs = 0;
+	public long copiedBytes = 0;
+
+	// keeps the blobs of the group a partition writes to and of the group before it, unless configured otherwise
+	public BlobCompactor(BlobSink sink) {
+		this(sink, keepBlobs >= 0 ? keepBlobs : 2 * Block.getStripes(), maxBlobBytes, maxBlobBlocks);
+	}
+
+	BlobCompactor(BlobSink sink, int keep, long blobBytes, int blobBlocks) {
+		if (BlockEncoder.isAvro()) {
+			throw new IllegalArgumentException("avro blobs are not compacted, every blob starts with a container header of its own");
+		}
+		this.sink = sink;
+		this.keep = keep;
+		this.blobBytes = blobBytes;
+		this.blobBlocks = blobBlocks;
+	}
+
+	// number of digits the blobname ends with, its blob id
+	public static int getBlobidDigits(String blobname) {
+		int i = blobname.length();
+		while (i > 0 && Character.isDigit(blobname.charAt(i - 1))) {
+			i--;
+		}
+		return blobname.length() - i;
+	}
+
+	// compacts the sequences of blobs whose names start with prefix
+	public void compact(String prefix) {
+		for (String blobname : sink.listBlobs(prefix)) {
+			if (blobname.endsWith(MANIFEST_SUFFIX)) {
+				Manifest manifest = readManifest(sink, blobname);
+				if (manifest != null) {
+					finish(manifest, manifest.getCovered(sink.downloadBlockList(manifest.blobname).size()));
+				}
+			}
+		}
+		TreeMap<String, TreeMap<Long, String>> sequences = new TreeMap<String, TreeMap<Long, String>>();
+		for (String blobname : sink.listBlobs(prefix)) {
+			int digits = getBlobidDigits(blobname);
+			if (digits == 0 || digits > 18) {
+				continue;
+			}
+			String sequence = blobname.substring(0, blobname.length() - digits);
+			TreeMap<Long, String> blobnames = sequences.get(sequence);
+			if (blobnames == null) {
+				blobnames = new TreeMap<Long, String>();
+				sequences.put(sequence, blobnames);
+			}
+			blobnames.put(Long.parseLong(blobname.substring(sequence.length())), blobname);
+		}
+		for (Map.Entry<String, TreeMap<Long, String>> sequence : sequences.entrySet()) {
+			compactSequence(new ArrayList<String>(sequence.getValue().values()));
+		}
+	}
+
+	// merges runs of the sealed blobs of a sequence, in blob id order
+	private void compactSequence(List<String> blobnames) {
+		int sealed = blobnames.size() - keep;
+		List<BlockEntry> next = sealed > 0 ? sink.downloadBlockList(blobnames.get(0)) : null;
+		int i = 0;
+		while (i < sealed) {
+			String blobname = blobnames.get(i);
+			List<BlockEntry> blocks = next;
+			long bytes = getBytes(blocks);
+			int count = blocks.size();
+			List<String> merged = new ArrayList<String>();
+			List<List<BlockEntry>> mergedBlocks = new ArrayList<List<BlockEntry>>();
+			i++;
+			next = null;
+			while (i < sealed) {
+				next = sink.downloadBlockList(blobnames.get(i));
+				if (bytes + getBytes(next) > blobBytes || count + next.size() > blobBlocks) {
+					break;
+				}
+				bytes += getBytes(next);
+				count += next.size();
+				merged.add(blobnames.get(i));
+				mergedBlocks.add(next);
+				next = null;
+				i++;
+			}
+			if (!merged.isEmpty()) {
+				merge(blobname, blocks, merged, mergedBlocks);
+			}
+		}
+	}
+
+	// copies the blocks of the merged blobs behind the blocks of blobname and swaps the result in with one commit
+	private void merge(String blobname, List<BlockEntry> blocks, List<String> merged, List<List<BlockEntry>> mergedBlocks) {
+		if (LogSetting.LOG_BLOBWRITER) {
+			logger.info("merge " + merged.size() + " blobs into " + blobname);
+		}
+		List<Integer> mergedCounts = new ArrayList<Integer>();
+		for (List<BlockEntry> sourceBlocks : mergedBlocks) {
+			mergedCounts.add(sourceBlocks.size());
+		}
+		Manifest manifest = new Manifest(blobname, blocks.size(), merged, mergedCounts);
+		writeManifest(manifest);
+		int first = 0;
+		if (blocks.isEmpty()) {
+			// nothing to keep, the storage copies the first merged blob and its index as they are
+			sink.copyBlob(merged.get(0), blobname);
+			String indexBlobname = BlobIndex.getIndexBlobname(merged.get(0));
+			if (!sink.downloadBlockList(indexBlobname).isEmpty()) {
+				sink.copyBlob(indexBlobname, BlobIndex.getIndexBlobname(blobname));
+			}
+			blocks = mergedBlocks.get(0);
+			copiedBytes += getBytes(blocks);
+			first = 1;
+		}
+		if (first < merged.size()) {
+			// new block ids continue the numbering and have the length of the blob's ids, the service rejects mixed lengths
+			int idLength = blocks.isEmpty() ? Block.getBlockidStr(1).length() : getDecodedLength(blocks.get(0).getId());
+			HashSet<String> ids = new HashSet<String>();
+			ArrayList<BlockEntry> blockList = new ArrayList<BlockEntry>(blocks.size());
+			for (BlockEntry block : blocks) {
+				ids.add(block.getId());
+				blockList.add(new BlockEntry(block.getId(), BlockSearchMode.COMMITTED));
+			}
+			int blockid = blocks.size();
+			for (int i = first; i < merged.size(); i++) {
+				long offset = 0;
+				for (BlockEntry block : mergedBlocks.get(i)) {
+					String blockIdStr;
+					do {
+						blockid++;
+						blockIdStr = String.format("%0" + idLength + "d", blockid);
+					} while (ids.contains(BlockList.toBlockEntryId(blockIdStr)));
+					sink.copyBlock(merged.get(i), offset, (int) block.getSize(), blobname, blockIdStr);
+					blockList.add(new BlockEntry(BlockList.toBlockEntryId(blockIdStr), BlockSearchMode.UNCOMMITTED));
+					offset += block.getSize();
+				}
+				copiedBytes += offset;
+			}
+			sink.commitBlockList(blobname, blockList);
+		}
+		finish(manifest, merged.size());
+		mergedBlobs += merged.size();
+	}
+
+	// deletes the first covered merged blobs, whose blocks blobname holds, and then the manifest; when it holds them all the
+	// merged index is written first. The blocks a stopped merge staged are dropped by the storage or replaced by the next
+	// attempt, the blobs it did not cover are merged again
+	private void finish(Manifest manifest, int covered) {
+		if (covered == manifest.merged.size()) {
+			mergeIndexes(manifest);
+		}
+		for (String blobname : manifest.merged.subList(0, covered)) {
+			sink.deleteBlob(blobname);
+			sink.deleteBlob(BlobIndex.getIndexBlobname(blobname));
+		}
+		sink.deleteBlob(manifest.getManifestBlobname());
+	}
+
+	// the old index of the blob still holds for the blocks it kept, so a reader that comes before the merged index misses
+	// only the merged blocks; an index that can not cover every block is deleted. Once a merged blob is deleted the
+	// index was written already
+	private void mergeIndexes(Manifest manifest) {
+		String indexBlobname = BlobIndex.getIndexBlobname(manifest.blobname);
+		BlobIndexReader reader = new BlobIndexReader(sink);
+		BlobIndex index = null;
+		if (!sink.downloadBlockList(indexBlobname).isEmpty()) {
+			index = reader.readIndex(manifest.blobname);
+			index.truncate(manifest.keptCount + 1);
+			if (index.entries.size() != manifest.keptCount) {
+				index = null;
+			}
+		} else if (manifest.keptCount == 0) {
+			index = new BlobIndex(manifest.blobname, true);
+		}
+		long offset = getBytes(sink.downloadBlockList(manifest.blobname).subList(0, manifest.keptCount));
+		for (String blobname : manifest.merged) {
+			List<BlockEntry> blocks = sink.downloadBlockList(blobname);
+			if (blocks.isEmpty()) {
+				return;
+			}
+			if (index == null || sink.downloadBlockList(BlobIndex.getIndexBlobname(blobname)).isEmpty()) {
+				index = null;
+				continue;
+			}
+			BlobIndex merged = reader.readIndex(blobname);
+			if (merged.entries.size() != blocks.size()) {
+				index = null;
+				continue;
+			}
+			for (BlobIndex.Entry entry : merged.entries) {
+				entry.blockid = index.entries.size() + 1;
+				entry.offset = offset;
+				offset += entry.length;
+				index.entries.add(entry);
+			}
+		}
+		if (index == null) {
+			sink.deleteBlob(indexBlobname);
+			return;
+		}
+		BlobIndex.upload(sink, manifest.blobname, index.encode());
+	}
+
+	private void writeManifest(Manifest manifest) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(manifest.keptCount).append('\n');
+		for (int i = 0; i < manifest.merged.size(); i++) {
+			sb.append(manifest.mergedCounts.get(i)).append(' ').append(manifest.merged.get(i)).append('\n');
+		}
+		byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+		String blockidStr = Block.getBlockidStr(1);
+		sink.uploadBlock(manifest.getManifestBlobname(), blockidStr, data, data.length);
+		sink.commitBlockList(manifest.getManifestBlobname(),
+				Arrays.asList(new BlockEntry(BlockList.toBlockEntryId(blockidStr), BlockSearchMode.UNCOMMITTED)));
+	}
+
+	// null when the manifest was deleted since it was listed
+	static Manifest readManifest(BlobSink sink, String manifestBlobname) {
+		List<BlockEntry> blocks = sink.downloadBlockList(manifestBlobname);
+		if (blocks.isEmpty()) {
+			return null;
+		}
+		byte[] data = new byte[(int) getBytes(blocks)];
+		sink.downloadRange(manifestBlobname, 0, data, data.length);
+		String[] lines = new String(data, StandardCharsets.UTF_8).split("\n");
+		List<String> merged = new ArrayList<String>();
+		List<Integer> mergedCounts = new ArrayList<Integer>();
+		try {
+			int keptCount = Integer.parseInt(lines[0]);
+			for (int i = 1; i < lines.length; i++) {
+				String[] fields = lines[i].split(" ", 2);
+				mergedCounts.add(Integer.parseInt(fields[0]));
+				merged.add(fields[1]);
+			}
+			String blobname = manifestBlobname.substring(0, manifestBlobname.length() - MANIFEST_SUFFIX.length());
+			return new Manifest(blobname, keptCount, merged, mergedCounts);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new FailedException(manifestBlobname + " is not a compaction manifest");
+		}
+	}
+
+	static long getBytes(List<BlockEntry> blocks) {
+		long bytes = 0;
+		for (BlockEntry block : blocks) {
+			bytes += block.getSize();
+		}
+		return bytes;
+	}
+
+	// length of the block id a Base64 block entry id encodes
+	private static int getDecodedLength(String id) {
+		int padding = id.endsWith("==") ? 2 : id.endsWith("=") ? 1 : 0;
+		return id.length() / 4 * 3 - padding;
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 1 && args.length != 2) {
+			System.err.println("usage: BlobCompactor <container suffix> [<blobname prefix>]");
+			System.exit(2);
+		}
+		BlobCompactor compactor = new BlobCompactor(BlobWriter.getSink(args[0]));
+		compactor.compact(args.length == 2 ? args[1] : "");
+		System.err.println(compactor.mergedBlobs + " blobs merged, " + compactor.copiedBytes + " bytes copied");
+	}
+
+	// a merge of blobs into blobname, which held keptCount blocks before; the blocks of the merged blobs, mergedCounts of
+	// them each, follow in order
+	static class Manifest {
+		final String blobname;
+		final int keptCount;
+		final List<String> merged;
+		final List<Integer> mergedCounts;
+
+		Manifest(String blobname, int keptCount, List<String> merged, List<Integer> mergedCounts) {
+			this.blobname = blobname;
+			this.keptCount = keptCount;
+			this.merged = merged;
+			this.mergedCounts = mergedCounts;
+		}
+
+		// number of merged blobs, from the first one on, whose blocks are all in blobname when it has blockCount blocks
+		int getCovered(int blockCount) {
+			int count = keptCount;
+			int covered = 0;
+			while (covered < merged.size() && count + mergedCounts.get(covered) <= blockCount) {
+				count += mergedCounts.get(covered);
+				covered++;
+			}
+			return covered;
+		}
+
+		String getManifestBlobname() {
+			return blobname + MANIFEST_SUFFIX;
+		}
+	}
+}
@@ -0,0 +1,449 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.metric.api.CountMetric;
+import backtype.storm.metric.api.MeanReducer;
+import backtype.storm.metric.api.ReducedMetric;
+
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+
+// Routes the messages of a partition to blobs of their own per key when storage.blob.fanout.field names a JSON field,
+// e.g. the device id, so readers of one key do not scan whole partitions. Messages without the field stay in the
+// partition's blobs, and so do the messages of a key that used up storage.blob.fanout.blocks.batch.max blocks in the batch;
+// those are counted in fanout_messages_overflowed and logged once per key and attempt.
+// A key's writer keeps the block list of the key's blob, which is its cursor: block ids are txid-sequence, so a replay
+// drops the blocks its failed attempt committed and writes them again, and a writer that is not cached reads the list
+// back from the blob. The keys whose blobs an attempt committed are kept until the next txid begins, so a replay also
+// trims the blobs of keys evicted since and of keys it has no messages of. A blob takes a new batch only if the batch's blocks fit within storage.blob.block.number.max,
+// otherwise the key moves to its next blob, so every attempt of a batch picks the same blob.
+// The writers are kept in an LRU cache of storage.blob.fanout.keys.max keys; an evicted key's messages are sealed and
+// its blob committed. A key collects its messages as they are until they fill a block, and only then encodes them into a
+// block buffer and uploads it, so a key takes no more memory than its messages. At most storage.blob.fanout.memory.max
+// bytes of messages are held by the keys of a partition, beyond that the messages of the least recently used key are
+// sealed into a block. Blocks of a key are committed once per batch before the batch completes. Key blobs are uploaded
+// directly, so the fan-out can't be combined with storage.blob.journal.
+public class BlobFanOut {
+	private static final Logger logger = (Logger) LoggerFactory.getLogger(BlobFanOut.class);
+	private static String blobnameFormatter = "fanout/%2$s/partition_%1$05d/blob_%3$05d";
+	private static String field = "";
+	private static int maxKeys = 1000;
+	private static long maxMemoryBytes = 67108864;
+	private static int maxBatchBlocks = 100;
+	static {
+		String blobnameFormatterStr = ConfigProperties.getProperty("FANOUT_BLOBNAME_FORMATTER");
+		if (blobnameFormatterStr != null) {
+			blobnameFormatter = blobnameFormatterStr;
+		}
+		String fieldStr = ConfigProperties.getProperty("storage.blob.fanout.field");
+		if (fieldStr != null) {
+			field = fieldStr.trim();
+		}
+		String maxKeysStr = ConfigProperties.getProperty("storage.blob.fanout.keys.max");
+		if (maxKeysStr != null) {
+			int maxKeysInt = Integer.parseInt(maxKeysStr.trim());
+			if (maxKeysInt > 0) {
+				maxKeys = maxKeysInt;
+			}
+		}
+		String maxMemoryBytesStr = ConfigProperties.getProperty("storage.blob.fanout.memory.max");
+		if (maxMemoryBytesStr != null) {
+			long maxMemoryBytesLong = Long.parseLong(maxMemoryBytesStr.trim());
+			if (maxMemoryBytesLong > 0) {
+				maxMemoryBytes = maxMemoryBytesLong;
+			}
+		}
+		String maxBatchBlocksStr = ConfigProperties.getProperty("storage.blob.fanout.blocks.batch.max");
+		if (maxBatchBlocksStr != null) {
+			int maxBatchBlocksInt = Integer.parseInt(maxBatchBlocksStr.trim());
+			if (maxBatchBlocksInt > 0 && maxBatchBlocksInt <= 99999) {
+				maxBatchBlocks = maxBatchBlocksInt;
+			}
+		}
+		if (!field.isEmpty() && BlockJournal.isEnabled()) {
+			throw new IllegalArgumentException("storage.blob.fanout.field can't be combined with storage.blob.journal: key blobs are not journaled");
+		}
+	}
+	private static final byte[] fieldKey = BlobIndex.quote(field);
+	// the most bytes an encoder adds to a record beside the message: the record delimiter or the Avro length
+	private static final int MAX_RECORD_OVERHEAD = 10;
+
+	private final int partitionIndex;
+	private final BlockUploader uploader;
+	private final int keyCapacity;
+	// bytes of messages the keys may hold before they are sealed into blocks
+	private final long maxPendingBytes;
+	// blocks a key may add in a batch, at most half the blocks of a blob so a blob takes more than one batch
+	private final int batchBlocks;
+	// writers in access order, the least recently used first
+	private final LinkedHashMap<String, KeyWriter> writers = new LinkedHashMap<String, KeyWriter>(16, 0.75f, true);
+	// keys written by the current attempt and their writers, including the evicted ones
+	private final HashSet<String> writtenKeys = new HashSet<String>();
+	private final ArrayList<KeyWriter> written = new ArrayList<KeyWriter>();
+	// keys written by the current attempt that were evicted, their blobs hold blocks of the attempt
+	private final HashSet<String> evictedKeys = new HashSet<String>();
+	// keys whose blobs an attempt of committedTxid committed, including the evicted ones
+	private final HashSet<String> committedKeys = new HashSet<String>();
+	private long committedTxid = -1;
+	// encodes the messages of a key when they are sealed into a block
+	private final BlockEncoder encoder;
+	// bytes of the messages the keys hold
+	private long pendingBytes = 0;
+	private long txid;
+	private long period;
+	// share of the messages whose key had a cached writer
+	public final ReducedMetric hitRateMetric = new ReducedMetric(new MeanReducer());
+	public final CountMetric evictedMetric = new CountMetric();
+	public final CountMetric blocksSealedMetric = new CountMetric();
+	// messages of keys that used up their blocks of the batch, written to the partition's blobs instead
+	public final CountMetric overflowMetric = new CountMetric();
+
+	public BlobFanOut(int partitionIndex, LatencyHistogram uploadLatency) {
+		this(partitionIndex, uploadLatency, maxKeys, maxMemoryBytes);
+	}
+
+	BlobFanOut(int partitionIndex, LatencyHistogram uploadLatency, int keyCapacity, long memoryBytes) {
+		this.partitionIndex = partitionIndex;
+		this.uploader = new BlockUploader(partitionIndex, uploadLatency);
+		this.keyCapacity = keyCapacity;
+		this.maxPendingBytes = memoryBytes;
+		this.encoder = BlockEncoder.create(partitionIndex);
+		this.batchBlocks = Math.min(maxBatchBlocks, Math.max(1, BlockState.getMaxNumberBlocks() / 2));
+	}
+
+	public static boolean isEnabled() {
+		return !field.isEmpty();
+	}
+
+	// number of keys with a cached writer
+	public int getKeyCount() {
+		return writers.size();
+	}
+
+	// starts an attempt of batch txid; open blocks and uploads of a failed attempt are dropped
+	public void begin(long txid, long period) {
+		uploader.reset();
+		writtenKeys.clear();
+		written.clear();
+		evictedKeys.clear();
+		this.txid = txid;
+		this.period = period;
+		for (KeyWriter writer : writers.values()) {
+			writer.discardPending();
+		}
+		if (txid != committedTxid) {
+			// the previous txid completed, the blocks it committed stay
+			committedKeys.clear();
+			committedTxid = txid;
+			return;
+		}
+		// the blocks a failed attempt left in a key's blob are removed even if the key was evicted since or the replay has
+		// no messages of the key
+		for (String key : committedKeys) {
+			KeyWriter writer = writers.get(key);
+			if (writer == null) {
+				writer = new KeyWriter(key);
+				writers.put(key, writer);
+			}
+			writtenKeys.add(key);
+			written.add(writer);
+			writer.begin(false);
+		}
+		evict();
+	}
+
+	// adds the message to the block of its key; false if the message has no key, is too large for a block
+	// or its key has no blocks left in this batch, so the caller writes it to the partition's blobs
+	public boolean add(byte[] msg) {
+		long span = BlobIndex.findValue(msg, fieldKey);
+		if (span < 0) {
+			return false;
+		}
+		int start = (int) (span >>> 32);
+		String key = new String(msg, start, (int) span - start, StandardCharsets.UTF_8);
+		if (key.isEmpty()) {
+			return false;
+		}
+		KeyWriter writer = getWriter(key);
+		if (!writer.add(msg)) {
+			return false;
+		}
+		while (pendingBytes > maxPendingBytes) {
+			if (!sealLeastRecent(writer)) {
+				break;
+			}
+		}
+		return true;
+	}
+
+	// seals the pending messages and commits the blob of every key written by the batch
+	public void complete() {
+		for (KeyWriter writer : written) {
+			writer.seal();
+		}
+		uploader.drain();
+		for (KeyWriter writer : written) {
+			writer.commit();
+		}
+		writtenKeys.clear();
+		written.clear();
+		evictedKeys.clear();
+	}
+
+	public void shutdown() {
+		for (KeyWriter writer : writers.values()) {
+			writer.discardPending();
+		}
+		writers.clear();
+		encoder.end();
+		uploader.shutdown();
+	}
+
+	private KeyWriter getWriter(String key) {
+		KeyWriter writer = writers.get(key);
+		hitRateMetric.update(writer != null ? 1.0 : 0.0);
+		if (writer == null) {
+			writer = new KeyWriter(key);
+			writer.begin(evictedKeys.contains(key));
+			writers.put(key, writer);
+			writtenKeys.add(key);
+			written.add(writer);
+			evict();
+		} else if (writtenKeys.add(key)) {
+			writer.begin(false);
+			written.add(writer);
+		}
+		return writer;
+	}
+
+	// removes the least recently used keys beyond the capacity; their blobs are committed first
+	private void evict() {
+		Iterator<KeyWriter> eldest = writers.values().iterator();
+		while (writers.size() > keyCapacity) {
+			KeyWriter writer = eldest.next();
+			writer.seal();
+			if (writer.hasStagedBlocks()) {
+				uploader.drain();
+				writer.commit();
+			}
+			eldest.remove();
+			if (writtenKeys.contains(writer.key)) {
+				evictedKeys.add(writer.key);
+			}
+			evictedMetric.incr();
+			if (LogSetting.LOG_BLOCK) {
+				logger.info("p" + partitionIndex + ": evicted key " + writer.key);
+			}
+		}
+	}
+
+	// seals the messages of the least recently used key other than current; false if no other key holds messages
+	private boolean sealLeastRecent(KeyWriter current) {
+		for (KeyWriter writer : writers.values()) {
+			if (writer != current && !writer.pending.isEmpty()) {
+				writer.seal();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// key blobs are not striped: the block is stored as block blockid of blobname, which the encoder writes the blob
+	// header into for the first block and derives the Avro sync marker from
+	static Block newKeyBlock(long period, String blobname, int blobid, int blockid, BlockEncoder encoder) {
+		Block block = new Block(period, blobid, blockid, encoder);
+		block.storageBlobid = blobid;
+		block.storageBlockid = blockid;
+		block.storageBlobname = blobname;
+		return block;
+	}
+
+	// keeps the characters blob names and paths take as they are
+	static String toBlobKey(String key) {
+		StringBuilder sb = new StringBuilder(Math.min(key.length(), 128));
+		for (int i = 0; i < key.length() && i < 128; i++) {
+			char c = key.charAt(i);
+			boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.';
+			sb.append(safe ? c : '_');
+		}
+		return sb.toString();
+	}
+
+	// the blocks of a batch are named txid-sequence; the txid prefix is a multiple of 3 bytes long, so its Base64 is a
+	// prefix of the Base64 of every block id of the batch
+	private static String getBlockidStr(long txid, int sequence) {
+		return String.format("%012d-%05d", txid, sequence);
+	}
+
+	private static String getBlockEntryIdPrefix(long txid) {
+		return BlockList.toBlockEntryId(String.format("%012d", txid));
+	}
+
+	private class KeyWriter {
+		final String key;
+		final String blobKey;
+		long period;
+		int blobid;
+		String blobname;
+		// committed block list of the blob, followed by the blocks staged by the current attempt
+		List<BlockEntry> blocks;
+		int stagedCount;
+		// true when blocks of a failed attempt were dropped from the committed list
+		boolean trimmed;
+		// blocks the current attempt added to the blob
+		int batchBlockCount;
+		// messages of the next block, their bytes, and the bytes of their records in the worst case
+		final ArrayList<byte[]> pending = new ArrayList<byte[]>();
+		int pendingMessageBytes;
+		int pendingRecordBytes;
+		// true once a message of the current attempt went to the partition's blobs for lack of blocks
+		boolean overflowed;
+
+		KeyWriter(String key) {
+			this.key = key;
+			this.blobKey = toBlobKey(key);
+			this.period = -1;
+		}
+
+		// positions the writer for the current attempt, after the blocks of earlier batches in the first blob of the period
+		// with room for the batch. The blocks of the batch are dropped unless this attempt wrote them before the key was evicted
+		void begin(boolean evictedInBatch) {
+			if (period != BlobFanOut.this.period) {
+				period = BlobFanOut.this.period;
+				seekLastBlob();
+			}
+			String prefix = getBlockEntryIdPrefix(txid);
+			while (true) {
+				int batchCount = 0;
+				while (batchCount < blocks.size() && blocks.get(blocks.size() - batchCount - 1).getId().startsWith(prefix)) {
+					batchCount++;
+				}
+				if (evictedInBatch) {
+					batchBlockCount = batchCount;
+				} else {
+					blocks.subList(blocks.size() - batchCount, blocks.size()).clear();
+					batchBlockCount = 0;
+					trimmed |= batchCount > 0;
+				}
+				stagedCount = 0;
+				overflowed = false;
+				if (blocks.size() - batchBlockCount + batchBlocks <= BlockState.getMaxNumberBlocks()) {
+					return;
+				}
+				blobid++;
+				load();
+			}
+		}
+
+		// moves to the last blob of the period, or to the first blob; BlobCompactor leaves gaps in the blob ids of a key,
+		// so the key's blobs are listed rather than probed
+		private void seekLastBlob() {
+			blobid = 1;
+			String first = getBlobname();
+			String prefix = first.substring(0, first.length() - BlobCompactor.getBlobidDigits(first));
+			for (String name : BlobWriter.listBlobs(prefix)) {
+				int digits = BlobCompactor.getBlobidDigits(name);
+				if (name.length() - digits == prefix.length()) {
+					blobid = Math.max(blobid, Integer.parseInt(name.substring(prefix.length())));
+				}
+			}
+			load();
+		}
+
+		private String getBlobname() {
+			return Block.getBlobPath(period) + String.format(blobnameFormatter, partitionIndex, blobKey, blobid);
+		}
+
+		private void load() {
+			blobname = getBlobname();
+			blocks = new ArrayList<BlockEntry>(BlobWriter.downloadBlockList(blobname));
+			for (BlockEntry entry : blocks) {
+				entry.setSearchMode(BlockSearchMode.COMMITTED);
+			}
+		}
+
+		boolean add(byte[] msg) {
+			int recordBytes = msg.length + MAX_RECORD_OVERHEAD;
+			if (encoder.maxFrameSize(recordBytes) > Block.getMaxBlockBytes()) {
+				return false;
+			}
+			if (!pending.isEmpty() && (encoder.maxFrameSize(pendingRecordBytes) >= BlockState.getTargetBlockBytes()
+					|| encoder.maxFrameSize(pendingRecordBytes + recordBytes) > Block.getMaxBlockBytes())) {
+				seal();
+			}
+			if (pending.isEmpty() && batchBlockCount >= batchBlocks) {
+				overflowMetric.incr();
+				if (!overflowed) {
+					overflowed = true;
+					logger.warn("p" + partitionIndex + ": key " + key + " used up its " + batchBlocks + " blocks of batch " + txid
+							+ ", its further messages go to the partition's blobs");
+				}
+				return false;
+			}
+			pending.add(msg);
+			pendingMessageBytes += msg.length;
+			pendingRecordBytes += recordBytes;
+			pendingBytes += msg.length;
+			return true;
+		}
+
+		// encodes the pending messages into a block, stages it and hands it to the uploader; their records fit a block
+		// in the worst case, so they always make one block
+		void seal() {
+			if (pending.isEmpty()) {
+				return;
+			}
+			Block block = newKeyBlock(period, blobname, blobid, blocks.size() + 1, encoder);
+			for (byte[] msg : pending) {
+				if (!block.willMessageFitCurrentBlock(msg)) {
+					block.seal();
+					block.release();
+					throw new IllegalStateException("messages of key " + key + " exceed the block size");
+				}
+				block.addData(msg);
+			}
+			block.seal();
+			discardPending();
+			batchBlockCount++;
+			String blockidStr = getBlockidStr(txid, batchBlockCount);
+			blocks.add(new BlockEntry(BlockList.toBlockEntryId(blockidStr), BlockSearchMode.UNCOMMITTED));
+			stagedCount++;
+			blocksSealedMetric.incr();
+			uploader.upload(blobname, blockidStr, block, true);
+		}
+
+		boolean hasStagedBlocks() {
+			return stagedCount > 0 || trimmed;
+		}
+
+		void commit() {
+			if (!hasStagedBlocks()) {
+				return;
+			}
+			BlobWriter.commitBlockList(blobname, blocks);
+			committedKeys.add(key);
+			for (int i = blocks.size() - stagedCount; i < blocks.size(); i++) {
+				blocks.get(i).setSearchMode(BlockSearchMode.COMMITTED);
+			}
+			stagedCount = 0;
+			trimmed = false;
+		}
+
+		void discardPending() {
+			pendingBytes -= pendingMessageBytes;
+			pending.clear();
+			pendingMessageBytes = 0;
+			pendingRecordBytes = 0;
+		}
+	}
+}
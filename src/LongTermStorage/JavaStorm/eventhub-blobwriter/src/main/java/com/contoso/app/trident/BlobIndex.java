@@ -0,0 +1,391 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import backtype.storm.topology.FailedException;
+
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+
+// Index of the blocks of one data blob, written as the blob <blobname>.index once the partition moves on to the next blob.
+// Each entry holds the byte offset and length of a block in the blob, its message count, the min and max event time of
+// its messages and a Bloom filter of their device ids, so a reader fetches only the block ranges that may hold a device
+// and time range. Device id and event time are read from the JSON message fields storage.blob.index.device.field and
+// storage.blob.index.time.field; the time is epoch milliseconds or ISO-8601, and the arrival time when the field is missing.
+public class BlobIndex {
+	private static final int MAGIC = 0x42494458;
+	private static final short VERSION = 1;
+	private static final String INDEX_SUFFIX = ".index";
+	// the block blob service takes blocks of at most 4 MB, a larger index is written as several blocks
+	static final int MAX_INDEX_BLOCK_BYTES = 4 * 1024 * 1024;
+	private static boolean enabled = false;
+	private static String deviceField = "deviceId";
+	private static String timeField = "";
+	private static int bloomBits = 8192;
+	private static int bloomHashes = 4;
+	static {
+		String enabledStr = ConfigProperties.getProperty("storage.blob.index");
+		if (enabledStr != null) {
+			enabled = Boolean.parseBoolean(enabledStr.trim());
+		}
+		String deviceFieldStr = ConfigProperties.getProperty("storage.blob.index.device.field");
+		if (deviceFieldStr != null) {
+			deviceField = deviceFieldStr.trim();
+		}
+		String timeFieldStr = ConfigProperties.getProperty("storage.blob.index.time.field");
+		if (timeFieldStr != null) {
+			timeField = timeFieldStr.trim();
+		}
+		String bloomBitsStr = ConfigProperties.getProperty("storage.blob.index.bloom.bits");
+		if (bloomBitsStr != null) {
+			int bloomBitsInt = Integer.parseInt(bloomBitsStr.trim());
+			if (bloomBitsInt >= 64) {
+				bloomBits = bloomBitsInt;
+			}
+		}
+		String bloomHashesStr = ConfigProperties.getProperty("storage.blob.index.bloom.hashes");
+		if (bloomHashesStr != null) {
+			int bloomHashesInt = Integer.parseInt(bloomHashesStr.trim());
+			if (bloomHashesInt > 0 && bloomHashesInt <= 16) {
+				bloomHashes = bloomHashesInt;
+			}
+		}
+	}
+	private static final byte[] deviceKey = quote(deviceField);
+	private static final byte[] timeKey = timeField.isEmpty() ? null : quote(timeField);
+
+	public final String blobname;
+	// false when the index does not cover every block of the blob from its first one, such an index is not written
+	public boolean complete;
+	public final ArrayList<Entry> entries = new ArrayList<Entry>();
+
+	public BlobIndex(String blobname, boolean complete) {
+		this.blobname = blobname;
+		this.complete = complete;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static String getIndexBlobname(String blobname) {
+		return blobname + INDEX_SUFFIX;
+	}
+
+	public static boolean isIndexBlobname(String blobname) {
+		return blobname.endsWith(INDEX_SUFFIX);
+	}
+
+	// the encoded index cut into the blocks of the index blob
+	public static List<byte[]> split(byte[] data) {
+		List<byte[]> blocks = new ArrayList<byte[]>();
+		for (int offset = 0; offset < data.length; offset += MAX_INDEX_BLOCK_BYTES) {
+			blocks.add(Arrays.copyOfRange(data, offset, Math.min(data.length, offset + MAX_INDEX_BLOCK_BYTES)));
+		}
+		return blocks;
+	}
+
+	// uploads the encoded index of blobname as the blocks of its index blob and commits them, replacing an older index
+	public static void upload(BlobSink sink, String blobname, byte[] data) {
+		String indexBlobname = getIndexBlobname(blobname);
+		List<BlockEntry> blocks = new ArrayList<BlockEntry>();
+		List<byte[]> parts = split(data);
+		for (int i = 0; i < parts.size(); i++) {
+			String blockidStr = Block.getBlockidStr(i + 1);
+			sink.uploadBlock(indexBlobname, blockidStr, parts.get(i), parts.get(i).length);
+			blocks.add(new BlockEntry(BlockList.toBlockEntryId(blockidStr), BlockSearchMode.UNCOMMITTED));
+		}
+		sink.commitBlockList(indexBlobname, blocks);
+	}
+
+	// appends the sealed block after the blocks already in the index
+	public void add(Block block) {
+		Entry entry = block.indexEntry != null ? block.indexEntry : new Entry();
+		int expected = entries.isEmpty() ? 1 : entries.get(entries.size() - 1).blockid + 1;
+		if (block.indexIncomplete || block.storageBlockid != expected) {
+			complete = false;
+		}
+		entry.blockid = block.storageBlockid;
+		entry.offset = entries.isEmpty() ? 0 : entries.get(entries.size() - 1).offset + entries.get(entries.size() - 1).length;
+		entry.length = block.blockdataSize;
+		entries.add(entry);
+	}
+
+	// drops the entries of blockid and the blocks after it, which a failed batch sealed
+	public void truncate(int blockid) {
+		int i = entries.size();
+		while (i > 0 && entries.get(i - 1).blockid >= blockid) {
+			i--;
+		}
+		entries.subList(i, entries.size()).clear();
+	}
+
+	// entries of the blocks that may hold messages of deviceId, or of any device when it is null, between from and to
+	public List<Entry> find(String deviceId, long from, long to) {
+		List<Entry> found = new ArrayList<Entry>();
+		for (Entry entry : entries) {
+			if (entry.messageCount > 0 && entry.maxTime >= from && entry.minTime <= to
+					&& (deviceId == null || entry.devices.mightContain(deviceId))) {
+				found.add(entry);
+			}
+		}
+		return found;
+	}
+
+	// magic, version, Bloom filter bits and hashes, entry count, then per entry:
+	// blockid, offset, length, message count, min time, max time and the Bloom filter words
+	public byte[] encode() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + entries.size() * (36 + bloomBits / 8));
+		try {
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeInt(bloomBits);
+			out.writeByte(bloomHashes);
+			out.writeInt(entries.size());
+			for (Entry entry : entries) {
+				out.writeInt(entry.blockid);
+				out.writeLong(entry.offset);
+				out.writeInt(entry.length);
+				out.writeInt(entry.messageCount);
+				out.writeLong(entry.minTime);
+				out.writeLong(entry.maxTime);
+				for (long word : entry.devices.getBits()) {
+					out.writeLong(word);
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new FailedException(e.getMessage());
+		}
+		return bytes.toByteArray();
+	}
+
+	public static BlobIndex decode(String blobname, byte[] data, int length) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+			if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+				throw new FailedException(getIndexBlobname(blobname) + " is not a blob index");
+			}
+			int words = (in.readInt() + 63) / 64;
+			int hashes = in.readByte();
+			int count = in.readInt();
+			BlobIndex index = new BlobIndex(blobname, true);
+			for (int i = 0; i < count; i++) {
+				Entry entry = new Entry(new DeviceBloomFilter(new long[words], hashes));
+				entry.blockid = in.readInt();
+				entry.offset = in.readLong();
+				entry.length = in.readInt();
+				entry.messageCount = in.readInt();
+				entry.minTime = in.readLong();
+				entry.maxTime = in.readLong();
+				long[] bits = entry.devices.getBits();
+				for (int w = 0; w < words; w++) {
+					bits[w] = in.readLong();
+				}
+				index.entries.add(entry);
+			}
+			return index;
+		} catch (IOException e) {
+			throw new FailedException(getIndexBlobname(blobname) + " is truncated: " + e.getMessage());
+		}
+	}
+
+	// value of the device id field in a JSON message, null when it has none
+	public static String getDeviceId(byte[] msg) {
+		long span = findValue(msg, deviceKey);
+		return span < 0 ? null : new String(msg, (int) (span >>> 32), (int) span - (int) (span >>> 32), StandardCharsets.UTF_8);
+	}
+
+	// value of the time field in a JSON message in epoch milliseconds, or defaultTime when it has none
+	public static long getEventTime(byte[] msg, long defaultTime) {
+		if (timeKey == null) {
+			return defaultTime;
+		}
+		long span = findValue(msg, timeKey);
+		if (span < 0) {
+			return defaultTime;
+		}
+		int start = (int) (span >>> 32);
+		int end = (int) span;
+		if (start > 0 && msg[start - 1] == '"') {
+			long time = parseIsoTime(msg, start, end);
+			return time == Long.MIN_VALUE ? defaultTime : time;
+		}
+		// whole milliseconds of a number, a fraction is dropped
+		boolean negative = start < end && msg[start] == '-';
+		long time = 0;
+		int digits = 0;
+		for (int i = negative ? start + 1 : start; i < end && msg[i] >= '0' && msg[i] <= '9' && digits < 18; i++, digits++) {
+			time = time * 10 + (msg[i] - '0');
+		}
+		if (digits == 0) {
+			return defaultTime;
+		}
+		return negative ? -time : time;
+	}
+
+	// start and end of the value of the quoted key in a JSON message, packed as start << 32 | end, or -1.
+	// The scan looks for the quoted key followed by a colon and does not parse the message, so a nested field of the same
+	// name is found too; string values are returned without their quotes and escapes are left as they are
+	static long findValue(byte[] msg, byte[] quotedKey) {
+		int last = msg.length - quotedKey.length;
+		for (int i = 0; i <= last; i++) {
+			if (msg[i] != '"' || !regionMatches(msg, i, quotedKey)) {
+				continue;
+			}
+			int p = skipWhitespace(msg, i + quotedKey.length);
+			if (p >= msg.length || msg[p] != ':') {
+				continue;
+			}
+			p = skipWhitespace(msg, p + 1);
+			if (p >= msg.length) {
+				return -1;
+			}
+			int end = p;
+			if (msg[p] == '"') {
+				p++;
+				end = p;
+				while (end < msg.length && msg[end] != '"') {
+					end += msg[end] == '\\' ? 2 : 1;
+				}
+				if (end >= msg.length) {
+					return -1;
+				}
+			} else {
+				while (end < msg.length && msg[end] != ',' && msg[end] != '}' && msg[end] != ']' && msg[end] > ' ') {
+					end++;
+				}
+			}
+			return (long) p << 32 | end;
+		}
+		return -1;
+	}
+
+	// epoch milliseconds of yyyy-MM-ddTHH:mm:ss[.fraction][Z|+HH:mm|-HH:mm], without a zone the time is UTC;
+	// Long.MIN_VALUE when the text is not in this form
+	static long parseIsoTime(byte[] text, int start, int end) {
+		if (end - start < 19 || text[start + 4] != '-' || text[start + 7] != '-' || (text[start + 10] != 'T' && text[start + 10] != ' ')
+				|| text[start + 13] != ':' || text[start + 16] != ':') {
+			return Long.MIN_VALUE;
+		}
+		int year = digits(text, start, 4);
+		int month = digits(text, start + 5, 2);
+		int day = digits(text, start + 8, 2);
+		int hour = digits(text, start + 11, 2);
+		int minute = digits(text, start + 14, 2);
+		int second = digits(text, start + 17, 2);
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || minute < 0 || second < 0) {
+			return Long.MIN_VALUE;
+		}
+		int p = start + 19;
+		int millis = 0;
+		if (p < end && text[p] == '.') {
+			int scale = 100;
+			for (p++; p < end && text[p] >= '0' && text[p] <= '9'; p++) {
+				millis += (text[p] - '0') * scale;
+				scale /= 10;
+			}
+		}
+		int offsetMinutes = 0;
+		if (p < end && (text[p] == '+' || text[p] == '-')) {
+			if (end - p != 6 || text[p + 3] != ':' || digits(text, p + 1, 2) < 0 || digits(text, p + 4, 2) < 0) {
+				return Long.MIN_VALUE;
+			}
+			offsetMinutes = (text[p] == '-' ? -1 : 1) * (digits(text, p + 1, 2) * 60 + digits(text, p + 4, 2));
+		} else if (p < end && !(text[p] == 'Z' && p + 1 == end)) {
+			return Long.MIN_VALUE;
+		}
+		// days since 1970-01-01 of the proleptic Gregorian date
+		int y = month <= 2 ? year - 1 : year;
+		int era = y / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		long days = era * 146097L + dayOfEra - 719468;
+		return ((days * 24 + hour) * 60 + minute - offsetMinutes) * 60000L + second * 1000L + millis;
+	}
+
+	private static int digits(byte[] text, int start, int count) {
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			if (text[i] < '0' || text[i] > '9') {
+				return -1;
+			}
+			value = value * 10 + (text[i] - '0');
+		}
+		return value;
+	}
+
+	private static boolean regionMatches(byte[] msg, int offset, byte[] key) {
+		for (int i = 0; i < key.length; i++) {
+			if (msg[offset + i] != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int skipWhitespace(byte[] msg, int p) {
+		while (p < msg.length && (msg[p] == ' ' || msg[p] == '\t' || msg[p] == '\r' || msg[p] == '\n')) {
+			p++;
+		}
+		return p;
+	}
+
+	static byte[] quote(String field) {
+		return ("\"" + field + "\"").getBytes(StandardCharsets.UTF_8);
+	}
+
+	// statistics of the messages of one block, kept by Block while messages are added
+	public static class Entry {
+		public int blockid;
+		public long offset;
+		public int length;
+		public int messageCount;
+		public long minTime = Long.MAX_VALUE;
+		public long maxTime = Long.MIN_VALUE;
+		public final DeviceBloomFilter devices;
+
+		public Entry() {
+			this(new DeviceBloomFilter(bloomBits, bloomHashes));
+		}
+
+		Entry(DeviceBloomFilter devices) {
+			this.devices = devices;
+		}
+
+		public void add(byte[] msg) {
+			messageCount++;
+			long time = getEventTime(msg, System.currentTimeMillis());
+			if (time < minTime) {
+				minTime = time;
+			}
+			if (time > maxTime) {
+				maxTime = time;
+			}
+			long span = findValue(msg, deviceKey);
+			if (span >= 0) {
+				int start = (int) (span >>> 32);
+				devices.add(msg, start, (int) span - start);
+			}
+		}
+
+		public Entry copy() {
+			Entry entry = new Entry(devices.copy());
+			entry.messageCount = messageCount;
+			entry.minTime = minTime;
+			entry.maxTime = maxTime;
+			return entry;
+		}
+	}
+}
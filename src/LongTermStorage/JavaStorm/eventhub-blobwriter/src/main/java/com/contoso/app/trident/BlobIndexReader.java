@@ -0,0 +1,160 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+import com.microsoft.azure.storage.blob.BlockEntry;
+
+// Reads the messages of one device and time range from blobs using their indexes, downloading only the byte ranges
+// of the blocks whose time range overlaps and whose Bloom filter may hold the device.
+// Usage: BlobIndexReader <container suffix> <blobname prefix> <deviceId or *> [<from> <to>]
+// The container suffix is the topology start time the writer appended to storage.blob.account.container; from and to
+// are epoch milliseconds or ISO-8601. Messages of text blobs are printed, for avro blobs the matching block ranges.
+// Blobs are listed with listBlobs, which honors the manifests of compactions in progress; blobs without index are skipped.
+public class BlobIndexReader {
+	// magic, version, Bloom filter bits and hashes, entry count
+	private static final int HEADER_BYTES = 15;
+	private final BlobSink sink;
+
+	public BlobIndexReader(BlobSink sink) {
+		this.sink = sink;
+	}
+
+	public BlobIndex readIndex(String blobname) {
+		String indexBlobname = BlobIndex.getIndexBlobname(blobname);
+		byte[] header = new byte[HEADER_BYTES];
+		sink.downloadRange(indexBlobname, 0, header, header.length);
+		ByteBuffer fields = ByteBuffer.wrap(header, 6, header.length - 6);
+		int words = (fields.getInt() + 63) / 64;
+		fields.get();
+		int count = fields.getInt();
+		byte[] data = new byte[HEADER_BYTES + count * (36 + words * 8)];
+		sink.downloadRange(indexBlobname, 0, data, data.length);
+		return BlobIndex.decode(blobname, data, data.length);
+	}
+
+	public byte[] readBlock(String blobname, BlobIndex.Entry entry) {
+		byte[] data = new byte[entry.length];
+		sink.downloadRange(blobname, entry.offset, data, entry.length);
+		return data;
+	}
+
+	// the blobs whose names start with prefix and the committed bytes to read of each, without index blobs and compaction
+	// manifests, and without the blobs a manifest names once the blob they are merged into holds their blocks. The block
+	// lists are read between two listings, again until the listings agree, so a compaction that moves on in between
+	// shows neither its merged blobs twice nor none of them
+	public TreeMap<String, Long> listBlobs(String prefix) {
+		List<String> blobnames = sink.listBlobs(prefix);
+		while (true) {
+			TreeMap<String, Long> blobs = new TreeMap<String, Long>();
+			HashMap<String, Integer> blockCounts = new HashMap<String, Integer>();
+			List<BlobCompactor.Manifest> manifests = new ArrayList<BlobCompactor.Manifest>();
+			for (String blobname : blobnames) {
+				if (blobname.endsWith(BlobCompactor.MANIFEST_SUFFIX)) {
+					BlobCompactor.Manifest manifest = BlobCompactor.readManifest(sink, blobname);
+					if (manifest != null) {
+						manifests.add(manifest);
+					}
+				} else if (!BlobIndex.isIndexBlobname(blobname)) {
+					List<BlockEntry> blocks = sink.downloadBlockList(blobname);
+					blobs.put(blobname, BlobCompactor.getBytes(blocks));
+					blockCounts.put(blobname, blocks.size());
+				}
+			}
+			for (BlobCompactor.Manifest manifest : manifests) {
+				Integer blockCount = blockCounts.get(manifest.blobname);
+				int covered = manifest.getCovered(blockCount == null ? 0 : blockCount);
+				for (String blobname : manifest.merged.subList(0, covered)) {
+					blobs.remove(blobname);
+				}
+			}
+			List<String> again = sink.listBlobs(prefix);
+			if (again.equals(blobnames)) {
+				return blobs;
+			}
+			blobnames = again;
+		}
+	}
+
+	// messages of a text block, gzip blocks are read as the sequence of gzip members they are made of
+	public static BufferedReader openTextBlock(byte[] data) throws IOException {
+		InputStream in = new ByteArrayInputStream(data);
+		if (data.length > 1 && (data[0] & 0xff) == 0x1f && (data[1] & 0xff) == 0x8b) {
+			in = new GZIPInputStream(in);
+		}
+		return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3 && args.length != 5) {
+			System.err.println("usage: BlobIndexReader <container suffix> <blobname prefix> <deviceId or *> [<from> <to>]");
+			System.exit(2);
+		}
+		String deviceId = "*".equals(args[2]) ? null : args[2];
+		long from = args.length == 5 ? parseTime(args[3]) : Long.MIN_VALUE;
+		long to = args.length == 5 ? parseTime(args[4]) : Long.MAX_VALUE;
+		boolean text = !BlockEncoder.isAvro();
+
+		BlobSink sink = BlobWriter.getSink(args[0]);
+		BlobIndexReader reader = new BlobIndexReader(sink);
+		long blockCount = 0;
+		long readCount = 0;
+		long bytes = 0;
+		for (Map.Entry<String, Long> blob : reader.listBlobs(args[1]).entrySet()) {
+			String blobname = blob.getKey();
+			if (sink.downloadBlockList(BlobIndex.getIndexBlobname(blobname)).isEmpty()) {
+				System.err.println(blobname + " has no index, skipped");
+				continue;
+			}
+			BlobIndex index = reader.readIndex(blobname);
+			blockCount += index.entries.size();
+			for (BlobIndex.Entry entry : index.find(deviceId, from, to)) {
+				// an index may run ahead of the listed bytes of its blob
+				if (entry.offset + entry.length > blob.getValue()) {
+					continue;
+				}
+				readCount++;
+				bytes += entry.length;
+				if (!text) {
+					System.out.println(blobname + " block " + entry.blockid + " offset " + entry.offset + " length " + entry.length);
+					continue;
+				}
+				try (BufferedReader lines = openTextBlock(reader.readBlock(blobname, entry))) {
+					for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+						byte[] msg = line.getBytes(StandardCharsets.UTF_8);
+						long time = BlobIndex.getEventTime(msg, from);
+						if ((deviceId == null || deviceId.equals(BlobIndex.getDeviceId(msg))) && time >= from && time <= to) {
+							System.out.println(line);
+						}
+					}
+				}
+			}
+		}
+		System.err.println(readCount + " of " + blockCount + " blocks read, " + bytes + " bytes");
+	}
+
+	private static long parseTime(String time) {
+		try {
+			return Long.parseLong(time);
+		} catch (NumberFormatException e) {
+			byte[] text = time.getBytes(StandardCharsets.US_ASCII);
+			long millis = BlobIndex.parseIsoTime(text, 0, text.length);
+			if (millis == Long.MIN_VALUE) {
+				throw new IllegalArgumentException("not epoch milliseconds or ISO-8601: " + time);
+			}
+			return millis;
+		}
+	}
+}
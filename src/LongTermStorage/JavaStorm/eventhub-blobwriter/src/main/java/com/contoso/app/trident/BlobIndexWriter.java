@@ -0,0 +1,89 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// Collects the BlobIndex of the blobs a partition writes as its blocks are sealed, and writes the index of a blob once
+// the partition has moved on to the next blob, or to the next group of blobs when it stripes. An index larger than a block
+// is written as several blocks of the index blob. Only blobs this worker wrote from their first block get an index:
+// the statistics of blocks written before a restart are not kept anywhere.
+public class BlobIndexWriter {
+	// indexes of the blobs touched since the last completed batch, in the order they were written
+	private final LinkedHashMap<String, BlobIndex> indexes = new LinkedHashMap<String, BlobIndex>();
+	// indexes written by the batch in progress, dropped once the batch completes
+	private final ArrayList<BlobIndex> written = new ArrayList<BlobIndex>();
+
+	// starts a batch at block first; a replay drops what the failed attempt indexed from that block on, in every stripe
+	// blob written together with first's blob. Earlier blobs stay, their index is written by this batch when the last
+	// batch sealed their last block
+	public void begin(Block first, int partitionIndex) {
+		written.clear();
+		String[] blobnames = first.getStripeBlobnames(partitionIndex);
+		int[] blockids = first.getStripeBlockids();
+		List<String> current = Arrays.asList(blobnames);
+		// blobs after the current ones were rolled over to by the failed attempt
+		boolean after = false;
+		for (Iterator<String> i = indexes.keySet().iterator(); i.hasNext();) {
+			String blobname = i.next();
+			if (current.contains(blobname)) {
+				after = true;
+			} else if (after) {
+				i.remove();
+			}
+		}
+		for (int i = 0; i < blobnames.length; i++) {
+			BlobIndex index = indexes.get(blobnames[i]);
+			if (index == null) {
+				indexes.put(blobnames[i], new BlobIndex(blobnames[i], blockids[i] == 1));
+			} else {
+				index.truncate(blockids[i]);
+			}
+		}
+	}
+
+	// adds a sealed block to the index of its blob
+	public void sealed(String blobname, Block block) {
+		BlobIndex index = indexes.get(blobname);
+		if (index == null) {
+			index = new BlobIndex(blobname, block.storageBlockid == 1);
+			indexes.put(blobname, index);
+		}
+		index.add(block);
+	}
+
+	// writes the indexes of the blobs before the ones current is written with, which the partition does not append to
+	// anymore; with a journal the index is appended as a block of the index blob and committed with the batch,
+	// otherwise it is uploaded and committed right away, so it is in storage before the batch's cursor is persisted
+	public void write(Block current, int partitionIndex, BlockJournal journal) {
+		List<String> currentBlobnames = Arrays.asList(current.getStripeBlobnames(partitionIndex));
+		for (BlobIndex index : indexes.values()) {
+			if (currentBlobnames.contains(index.blobname)) {
+				break;
+			}
+			if (index.complete && !index.entries.isEmpty()) {
+				byte[] data = index.encode();
+				if (journal != null) {
+					List<byte[]> blocks = BlobIndex.split(data);
+					for (int i = 0; i < blocks.size(); i++) {
+						journal.append(BlobIndex.getIndexBlobname(index.blobname), i + 1, blocks.get(i), blocks.get(i).length);
+					}
+				} else {
+					BlobIndex.upload(BlobWriter.getSink(), index.blobname, data);
+				}
+			}
+			written.add(index);
+		}
+	}
+
+	// the batch completed, so it is not replayed and the indexes it wrote are not needed anymore
+	public void complete() {
+		for (BlobIndex index : written) {
+			indexes.remove(index.blobname);
+		}
+		written.clear();
+	}
+}
@@ -0,0 +1,38 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.util.List;
+
+import com.microsoft.azure.storage.blob.BlockEntry;
+
+// Storage the blocks are written to. Implementations are called from the upload threads and must be thread safe.
+public interface BlobSink {
+	// uploads the block without committing it; the block becomes part of the blob with the next commitBlockList
+	void uploadBlock(String blobname, String blockIdStr, byte[] data, int length);
+
+	// commits blocks as the block list of the blob; the caller keeps the list, so no block list is downloaded
+	void commitBlockList(String blobname, List<BlockEntry> blocks);
+
+	// reads the first length bytes of a committed block into buffer
+	void downloadBlock(String blobname, String blockIdStr, byte[] buffer, int length);
+
+	// committed blocks of the blob in order, with their sizes; empty if the blob does not exist
+	List<BlockEntry> downloadBlockList(String blobname);
+
+	// reads length bytes of the committed blob starting at offset into buffer, for readers that know where a block starts
+	void downloadRange(String blobname, long offset, byte[] buffer, int length);
+
+	// names of the committed blobs that start with prefix, in name order
+	List<String> listBlobs(String prefix);
+
+	// stages a block of blobname holding length bytes of the committed blob sourceBlobname from offset on, copied within
+	// the storage where it can; the block becomes part of the blob with the next commitBlockList like an uploaded one
+	void copyBlock(String sourceBlobname, long offset, int length, String blobname, String blockIdStr);
+
+	// replaces blobname with a copy of the committed blob sourceBlobname, block list included, made within the storage
+	// where it can; returns once the copy is committed
+	void copyBlob(String sourceBlobname, String blobname);
+
+	// deletes the blob with its committed and staged blocks, if it exists
+	void deleteBlob(String blobname);
+}
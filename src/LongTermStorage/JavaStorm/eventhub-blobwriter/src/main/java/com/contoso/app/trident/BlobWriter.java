@@ -1,108 +1,101 @@
 // Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
 package com.contoso.app.trident;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.io.File;
+import java.util.List;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import backtype.storm.topology.FailedException;
-
-import com.microsoft.azure.storage.AccessCondition;
-import com.microsoft.azure.storage.CloudStorageAccount;
-import com.microsoft.azure.storage.blob.BlobRequestOptions;
 import com.microsoft.azure.storage.blob.BlockEntry;
-import com.microsoft.azure.storage.blob.BlockListingFilter;
-import com.microsoft.azure.storage.blob.BlockSearchMode;
-import com.microsoft.azure.storage.blob.CloudBlobClient;
-import com.microsoft.azure.storage.blob.CloudBlobContainer;
-import com.microsoft.azure.storage.blob.CloudBlockBlob;
-import com.microsoft.azure.storage.core.Base64;
 
+// Worker-wide entry point to the BlobSink selected by storage.blob.sink: azure (default) or local.
+// The sink is created on first use; benchmarks and tests install a stand-in with setSink before the first block is written.
+// Every run writes to a container of its own unless storage.state.warm.restart is set, in which case runs share the
+// container and each partition continues the blob its cursor points to.
 public class BlobWriter {
-	private static final Logger logger = (Logger) LoggerFactory.getLogger(BlobWriter.class);
-	static CloudBlobContainer container = null;
+	private static String sinkName = "azure";
+	private static boolean warmRestart = false;
 	static {
-		try {
-			String containerName = ConfigProperties.getProperty("storage.blob.account.container") + BlobWriterTopology.topologyStartTime;
-			String accountName = ConfigProperties.getProperty("storage.blob.account.name");
-			String accountKey = ConfigProperties.getProperty("storage.blob.account.key");
-			String connectionStrFormatter = "DefaultEndpointsProtocol=http;AccountName=%s;AccountKey=%s";
-			String connectionStr = String.format(connectionStrFormatter, accountName, accountKey);
-			CloudStorageAccount account = CloudStorageAccount.parse(String.format(connectionStr, accountName, accountKey));
-			CloudBlobClient blobClient = account.createCloudBlobClient();
-			container = blobClient.getContainerReference(containerName);
-			container.createIfNotExists();
-		} catch (Exception e) {
-			logger.error(e.getMessage());
-			throw new ExceptionInInitializerError(e.getMessage());
+		String sinkNameStr = ConfigProperties.getProperty("storage.blob.sink");
+		if (sinkNameStr != null) {
+			sinkName = sinkNameStr.trim().toLowerCase();
+		}
+		String warmRestartStr = ConfigProperties.getProperty("storage.state.warm.restart");
+		if (warmRestartStr != null) {
+			warmRestart = Boolean.parseBoolean(warmRestartStr.trim());
+		}
+	}
+	private static BlobSink sink = null;
+
+	private static boolean sinkInstalled = false;
+
+	public static boolean isWarmRestart() {
+		return warmRestart;
+	}
+
+	// appended to storage.blob.account.container: the start time of the run, or nothing when runs share the container
+	public static String getContainerSuffix() {
+		return warmRestart ? "" : BlobWriterTopology.topologyStartTime;
+	}
+
+	static synchronized BlobSink getSink() {
+		if (sink == null) {
+			sink = createSink(getContainerSuffix());
 		}
+		return sink;
 	}
 
-	static public void upload(String blobname, String blockIdStr, String data) {
-		InputStream stream = null;
-		try {
-			if (LogSetting.LOG_BLOBWRITER) {
-				logger.info("upload Begin");
-				logger.info("upload blobname = " + blobname);
-				logger.info("upload blockIdStr = " + blockIdStr);
-			}
-			if (LogSetting.LOG_BLOBWRITERDATA) {
-				logger.info("upload data= \r\n" + data);				
-			}
-			CloudBlockBlob blockBlob = container.getBlockBlobReference(blobname);
-			BlobRequestOptions blobOptions = new BlobRequestOptions();
-			stream = new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8));
-			BlockEntry newBlock = new BlockEntry(Base64.encode(blockIdStr.getBytes()), BlockSearchMode.UNCOMMITTED);
-			ArrayList<BlockEntry> blocksBeforeUpload = new ArrayList<BlockEntry>();
-			if (blockBlob.exists(AccessCondition.generateEmptyCondition(), blobOptions, null)) {
-				blocksBeforeUpload = blockBlob.downloadBlockList(BlockListingFilter.COMMITTED, null, blobOptions, null);
-			}
-			if (LogSetting.LOG_BLOBWRITER) {
-				int i = 0;
-				String id = null;
-				for (BlockEntry e : blocksBeforeUpload) {
-					i++;
-					id = e.getId();
-					logger.info("BlockEntry Before Upload id=" + id + ", Index = " + i);
-				}
-				if (id != null) {
-					logger.info("BlockEntry Before Upload id=" + id + ", Index = " + i + " --last before");
-				}
-			}
-			blockBlob.uploadBlock(newBlock.getId(), stream, -1);
-			if (!blocksBeforeUpload.contains(newBlock)) {
-				blocksBeforeUpload.add(newBlock);
-			}
-			if (LogSetting.LOG_BLOBWRITER) {
-				int i = 0;
-				String id = null;
-				for (BlockEntry e : blocksBeforeUpload) {
-					i++;
-					id = e.getId();
-					logger.info("BlockEntry After Upload id=" + id + ", Index = " + i);
-				}
-				if (id != null) {
-					logger.info("BlockEntry After Upload id=" + id + ", Index = " + i + " --last after");
-				}
-			}
-			blockBlob.commitBlockList(blocksBeforeUpload);
-		} catch (Exception e) {
-			throw new FailedException(e.getMessage());
-		} finally {
-			if (stream != null) {
-				try {
-					stream.close();
-				} catch (Exception e) {
-					logger.error("failed to close the stream that upload to azrue blob");
-				}
-			}
+	// the sink of the container written by the run of the worker started at containerSuffix, for blocks that run left
+	// in its BlockJournal; a sink installed with setSink is used for every run
+	static synchronized BlobSink getSink(String containerSuffix) {
+		if (sinkInstalled || containerSuffix.equals(getContainerSuffix())) {
+			return getSink();
 		}
-		if (LogSetting.LOG_BLOBWRITER) {
-			logger.info("upload End");
+		return createSink(containerSuffix);
+	}
+
+	private static BlobSink createSink(String containerSuffix) {
+		String containerName = ConfigProperties.getProperty("storage.blob.account.container") + containerSuffix;
+		if ("azure".equals(sinkName)) {
+			return new AzureBlobSink(containerName);
+		} else if ("local".equals(sinkName)) {
+			return new LocalFileBlobSink(new File(LocalFileBlobSink.getDirectory(), containerName));
 		}
+		throw new IllegalArgumentException("unknown storage.blob.sink: " + sinkName);
+	}
+
+	public static synchronized void setSink(BlobSink blobSink) {
+		sink = blobSink;
+		sinkInstalled = blobSink != null;
+	}
+
+	static public void uploadBlock(String blobname, String blockIdStr, byte[] data, int length) {
+		getSink().uploadBlock(blobname, blockIdStr, data, length);
+	}
+
+	static public void commitBlockList(String blobname, List<BlockEntry> blocks) {
+		getSink().commitBlockList(blobname, blocks);
+	}
+
+	static public void downloadBlock(String blobname, String blockIdStr, byte[] buffer, int length) {
+		getSink().downloadBlock(blobname, blockIdStr, buffer, length);
+	}
+
+	static public List<BlockEntry> downloadBlockList(String blobname) {
+		return getSink().downloadBlockList(blobname);
+	}
+
+	static public void downloadRange(String blobname, long offset, byte[] buffer, int length) {
+		getSink().downloadRange(blobname, offset, buffer, length);
+	}
+
+	static public List<String> listBlobs(String prefix) {
+		return getSink().listBlobs(prefix);
+	}
+
+	static public void copyBlock(String sourceBlobname, long offset, int length, String blobname, String blockIdStr) {
+		getSink().copyBlock(sourceBlobname, offset, length, blobname, blockIdStr);
+	}
+
+	static public void deleteBlob(String blobname) {
+		getSink().deleteBlob(blobname);
 	}
 }
@@ -8,6 +8,7 @@ import backtype.storm.Config;
 import backtype.storm.LocalCluster;
 import backtype.storm.StormSubmitter;
 import backtype.storm.generated.StormTopology;
+import backtype.storm.metric.LoggingMetricsConsumer;
 import backtype.storm.tuple.Fields;
 import com.microsoft.eventhubs.spout.EventHubSpoutConfig;
 import com.microsoft.eventhubs.trident.OpaqueTridentEventHubSpout;
@@ -27,10 +28,21 @@ public class BlobWriterTopology {
 			topologyName = args[0];
 			isLocalCluster = false;
 		}
-		int numWorkers = Integer.parseInt(ConfigProperties.getProperty("eventhubspout.partitions.count"));
+		int partitionCount = Integer.parseInt(ConfigProperties.getProperty("eventhubspout.partitions.count"));
+		// several partitions can share a worker, they share its upload threads and block memory budget
+		int numWorkers = partitionCount;
+		String numWorkersStr = ConfigProperties.getProperty("topology.workers");
+		if (numWorkersStr != null) {
+			int numWorkersInt = Integer.parseInt(numWorkersStr.trim());
+			if (numWorkersInt > 0) {
+				numWorkers = numWorkersInt;
+			}
+		}
 		Config config = new Config();
 		config.setNumWorkers(numWorkers);
-		config.setMaxTaskParallelism(numWorkers);
+		config.setMaxTaskParallelism(partitionCount);
+		// per-partition writer metrics (messages, block_upload_latency, state_set_latency, replays, ...) are written to the workers' metrics log
+		config.registerMetricsConsumer(LoggingMetricsConsumer.class, 1);
 		StormTopology stormTopology = buildTopology(topologyName);
 		if (isLocalCluster) {
 			LocalCluster localCluster = new LocalCluster();
@@ -45,6 +57,9 @@ public class BlobWriterTopology {
 		Stream inputStream = null;
 		EventHubSpoutConfig spoutConfig = readConfig();
 		spoutConfig.setTopologyName(topologyName);
+		if (BinaryEventDataScheme.isEnabled()) {
+			spoutConfig.setScheme(new BinaryEventDataScheme());
+		}
 		OpaqueTridentEventHubSpout spout = new OpaqueTridentEventHubSpout(spoutConfig);
 		// the OpaqueTridentEventHubSpout emits events called "message"
 		inputStream = tridentTopology.newStream("message", spout);
@@ -2,6 +2,9 @@
 
 package com.contoso.app.trident;
 
+import java.util.Calendar;
+import java.util.TimeZone;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,13 +13,39 @@ public class Block {
 	private static String blockidFormatter = "%05d";
 	private static String blobidAndblockidFormatter = "%05d_%05d";
 	private static String blockNameFormatter = "partition_%05d/blob_%05d";
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+	// length of the time period a blob belongs to, 0 when blobs do not roll over by time
+	private static long rolloverPeriodMs = 0;
+	// prefix of the blob name, formatted with the UTC start of the blob's period
+	private static String blobPathFormatter = "";
 
 	private static int maxBlockBytes = 4194304;
+	// when true, blocks are only staged on upload and the block list is committed once per batch
+	private static boolean commitDeferred = false;
+	// number of blobs a partition appends to at the same time
+	private static int stripes = 1;
 	static {
 		String blockNameFormatterStr = ConfigProperties.getProperty("BLOBNAME_FORMATTER");
 		if (blockNameFormatterStr != null) {
 			blockNameFormatter = blockNameFormatterStr;
 		}
+		String rolloverStr = ConfigProperties.getProperty("storage.blob.rollover");
+		if (rolloverStr != null) {
+			rolloverStr = rolloverStr.trim().toLowerCase();
+			if ("hour".equals(rolloverStr)) {
+				rolloverPeriodMs = 3600000L;
+				blobPathFormatter = "%1$tY/%1$tm/%1$td/%1$tH/";
+			} else if ("day".equals(rolloverStr)) {
+				rolloverPeriodMs = 86400000L;
+				blobPathFormatter = "%1$tY/%1$tm/%1$td/";
+			} else if (!"none".equals(rolloverStr)) {
+				throw new IllegalArgumentException("unknown storage.blob.rollover: " + rolloverStr);
+			}
+		}
+		String blobPathFormatterStr = ConfigProperties.getProperty("BLOBPATH_FORMATTER");
+		if (blobPathFormatterStr != null && rolloverPeriodMs > 0) {
+			blobPathFormatter = blobPathFormatterStr;
+		}
 
 		String blockidFormatterStr = ConfigProperties.getProperty("BLOCKID_FORMATTER");
 		if (blockidFormatterStr != null) {
@@ -34,45 +63,123 @@ public class Block {
 				maxBlockBytes = maxBlockBytesStrInt;
 			}
 		}
+
+		String commitDeferredStr = ConfigProperties.getProperty("storage.blob.block.commit.deferred");
+		if (commitDeferredStr != null) {
+			commitDeferred = Boolean.parseBoolean(commitDeferredStr.trim());
+		}
+		String stripesStr = ConfigProperties.getProperty("storage.blob.stripes");
+		if (stripesStr != null) {
+			int stripesInt = Integer.parseInt(stripesStr.trim());
+			if (stripesInt > 0 && stripesInt <= 64) {
+				stripes = stripesInt;
+			}
+		}
 	}
 
+	// UTC start of the time period the blob belongs to, 0 when blobs do not roll over by time
+	public long period;
+	// position of the block in the partition's sequence of blocks, which the block cursors hold
 	public int blobid;
 	public int blockid;
-	public StringBuilder blockdata;
-	public int blockdataSize; 
+	// blob and block id the block is stored under. With storage.blob.stripes = K, the K blobs
+	// (blobid - 1) * K + 1 .. blobid * K are written together and block blockid goes to the ((blockid - 1) % K)-th of them,
+	// as its ((blockid - 1) / K + 1)-th block; without striping they are blobid and blockid
+	public int storageBlobid;
+	public int storageBlockid;
+	// name of the blob the block is stored in when it is not one of the partition's blobs, e.g. a key blob of BlobFanOut
+	String storageBlobname;
+	// encoded messages; the buffer is borrowed from BlockBufferPool on the first addData
+	public byte[] blockdata;
+	public int blockdataSize;
 	public String blobidAndBlockidStr;
+	// leading bytes of blockdata that are already committed in the blob, set when a block is carried into the next batch
+	public int committedSize;
+	// the partition's encoder, it writes into blockdata until the block is sealed
+	private BlockEncoder encoder;
+	private boolean frameOpen;
+	private long createdTime;
+	// statistics of the block's messages for its BlobIndex, null unless storage.blob.index is set
+	BlobIndex.Entry indexEntry;
+	// statistics of the committed prefix, restored when a carried block is reopened; a failed attempt may have committed
+	// more of the block, so the statistics of the prefix before its uploadPartial are kept too
+	private BlobIndex.Entry committedIndexEntry;
+	private int previousCommittedSize;
+	private BlobIndex.Entry previousIndexEntry;
+	// true when indexEntry does not cover the messages of the committed prefix
+	boolean indexIncomplete;
+
+	public Block(int blobid, int blockid, BlockEncoder encoder) {
+		this(0, blobid, blockid, encoder);
+	}
 
-	public Block(int blobid, int blockid) {
+	public Block(long period, int blobid, int blockid, BlockEncoder encoder) {
 		if (LogSetting.LOG_BLOCK) {
 			logger.info("Block Constructor Begin");
 		}
+		this.period = period;
 		this.blobid = blobid;
 		this.blockid = blockid;
-		blockdata = new StringBuilder(maxBlockBytes);
+		storageBlobid = (blobid - 1) * stripes + (blockid - 1) % stripes + 1;
+		storageBlockid = (blockid - 1) / stripes + 1;
+		this.encoder = encoder;
+		blockdata = null;
 		blockdataSize = 0;
+		committedSize = 0;
+		frameOpen = false;
 		blobidAndBlockidStr = String.format(blobidAndblockidFormatter, this.blobid, this.blockid);
 		if (LogSetting.LOG_BLOCK) {
 			logger.info("Block Constructor End");
 		}
 	}
 
-	public void addData(String msg) {
+	public static int getMaxBlockBytes() {
+		return maxBlockBytes;
+	}
+
+	public static int getStripes() {
+		return stripes;
+	}
+
+	// lets tests stripe blobs without a configuration of their own
+	static void setStripes(int stripeCount) {
+		stripes = stripeCount;
+	}
+
+	public void addData(byte[] msg) {
 		if (LogSetting.LOG_MESSAGE) {
 			logger.info("Block.addData Begin");
 		}
-		blockdata.append(msg);
-		blockdataSize += msg.getBytes().length;
+		if (blockdata == null) {
+			blockdata = BlockBufferPool.acquire(maxBlockBytes);
+		}
+		if (!frameOpen) {
+			if (blockdataSize == 0) {
+				createdTime = System.currentTimeMillis();
+			}
+			// a carried block continues with a new frame after the frames that are already committed
+			encoder.begin(this, blockdataSize, maxBlockBytes);
+			frameOpen = true;
+		}
+		encoder.write(msg, 0, msg.length);
+		blockdataSize = encoder.position();
+		if (BlobIndex.isEnabled()) {
+			if (indexEntry == null) {
+				indexEntry = new BlobIndex.Entry();
+			}
+			indexEntry.add(msg);
+		}
 		if (LogSetting.LOG_MESSAGE) {
 			logger.info("Block.addData End");
 		}
 	}
 
-	public static boolean isMessageSizeWithnLimit(String msg) {
+	public boolean isMessageSizeWithnLimit(byte[] msg) {
 		if (LogSetting.LOG_MESSAGE) {
 			logger.info("Block.isMessageSizeWithnLimit Begin");
 		}
 		boolean result = false;
-		if (msg.getBytes().length <= maxBlockBytes) {
+		if (encoder.maxFrameSize(msg.length) <= maxBlockBytes) {
 			result = true;
 		}
 		if (LogSetting.LOG_MESSAGE) {
@@ -81,14 +188,15 @@ public class Block {
 		return result;
 	}
 
-	public boolean willMessageFitCurrentBlock(String msg) {
+	public boolean willMessageFitCurrentBlock(byte[] msg) {
 		if (LogSetting.LOG_MESSAGE) {
 			logger.info("Block.willMessageFitCurrentBlock Begin");
 		}
 		boolean result = false;
-		int newSize = blockdataSize + msg.getBytes().length;
-		if (newSize <= maxBlockBytes) {
-			result = true;
+		if (!frameOpen) {
+			result = blockdataSize + encoder.maxFrameSize(msg.length) <= maxBlockBytes;
+		} else {
+			result = encoder.willFit(msg.length);
 		}
 		if (LogSetting.LOG_MESSAGE) {
 			logger.info("Block.willMessageFitCurrentBlock End");
@@ -96,15 +204,191 @@ public class Block {
 		return result;
 	}
 
-	public void upload(int partitionIndex) {
+	// true if the block holds data that is not committed in the blob yet
+	public boolean hasUncommittedData() {
+		return blockdataSize > committedSize;
+	}
+
+	// milliseconds since the first message was added, 0 for an empty block
+	public long getAgeMs() {
+		return blockdataSize == 0 ? 0 : System.currentTimeMillis() - createdTime;
+	}
+
+	private void closeFrame() {
+		if (frameOpen) {
+			blockdataSize = encoder.finish();
+			frameOpen = false;
+		}
+	}
+
+	// encoder writing the block, null once it is sealed
+	BlockEncoder getEncoder() {
+		return encoder;
+	}
+
+	// completes the encoded frame; no data can be added afterwards
+	public void seal() {
+		closeFrame();
+		encoder = null;
+	}
+
+	// start of the period that timeMillis falls into
+	public static long getPeriod(long timeMillis) {
+		return rolloverPeriodMs > 0 ? timeMillis - timeMillis % rolloverPeriodMs : 0;
+	}
+
+	// length of a blob's time period, 0 when blobs do not roll over by time
+	public static long getRolloverPeriodMs() {
+		return rolloverPeriodMs;
+	}
+
+	public static String getBlobname(int partitionIndex, long period, int blobid) {
+		return getBlobPath(period) + String.format(blockNameFormatter, partitionIndex, blobid);
+	}
+
+	// prefix of the names of the blobs of a period, empty when blobs do not roll over by time
+	public static String getBlobPath(long period) {
+		if (rolloverPeriodMs == 0) {
+			return "";
+		}
+		Calendar periodStart = Calendar.getInstance(UTC);
+		periodStart.setTimeInMillis(period);
+		return String.format(blobPathFormatter, periodStart);
+	}
+
+	public String getBlobname(int partitionIndex) {
+		return storageBlobname != null ? storageBlobname : getBlobname(partitionIndex, period, storageBlobid);
+	}
+
+	// names of the blobs written together with this block's blob, in stripe order
+	public String[] getStripeBlobnames(int partitionIndex) {
+		String[] blobnames = new String[stripes];
+		for (int i = 0; i < stripes; i++) {
+			blobnames[i] = getBlobname(partitionIndex, period, (blobid - 1) * stripes + i + 1);
+		}
+		return blobnames;
+	}
+
+	// storage block id of the first block at or after this one in each of the stripe blobs, in stripe order
+	public int[] getStripeBlockids() {
+		int[] blockids = new int[stripes];
+		for (int i = 0; i < stripes; i++) {
+			int next = blockid + i;
+			blockids[(next - 1) % stripes] = (next - 1) / stripes + 1;
+		}
+		return blockids;
+	}
+
+	public static String getBlockidStr(int blockid) {
+		return String.format(blockidFormatter, blockid);
+	}
+
+	// stages the block in blockList and hands it to the uploader, which releases the buffer when it is done;
+	// returns false when the upload was skipped because an earlier attempt uploaded the same bytes
+	public boolean upload(int partitionIndex, BlockList blockList, BlockUploader uploader) {
 		if (LogSetting.LOG_BLOCK) {
 			logger.info("Block.upload Begin");
 		}
-		String blobname = String.format(blockNameFormatter, partitionIndex, blobid);
-		String blockidStr = String.format(blockidFormatter, blockid);
-		BlobWriter.upload(blobname, blockidStr, blockdata.toString());
+		seal();
+		boolean uploaded = stage(partitionIndex, blockList, uploader, true);
 		if (LogSetting.LOG_BLOCK) {
 			logger.info("BlobState.upload End");
 		}
+		return uploaded;
+	}
+
+	// uploads the frames written so far under this block's id but keeps the block open, so the next batch can
+	// continue filling it; the uploaded bytes become the committed prefix of the block
+	public boolean uploadPartial(int partitionIndex, BlockList blockList, BlockUploader uploader) {
+		if (LogSetting.LOG_BLOCK) {
+			logger.info("Block.uploadPartial Begin");
+		}
+		closeFrame();
+		previousCommittedSize = committedSize;
+		previousIndexEntry = committedIndexEntry;
+		committedSize = blockdataSize;
+		committedIndexEntry = indexEntry == null ? null : indexEntry.copy();
+		boolean uploaded = stage(partitionIndex, blockList, uploader, false);
+		if (LogSetting.LOG_BLOCK) {
+			logger.info("Block.uploadPartial End");
+		}
+		return uploaded;
+	}
+
+	private boolean stage(int partitionIndex, BlockList blockList, BlockUploader uploader, boolean releaseBuffer) {
+		String blobname = getBlobname(partitionIndex);
+		String blockidStr = getBlockidStr(storageBlockid);
+		if (uploader.isJournaled()) {
+			uploader.upload(blobname, blockidStr, this, releaseBuffer);
+			return true;
+		}
+		blockList.seed(blobname, storageBlockid);
+		byte[] digest = blockList.digest(blockdata, blockdataSize);
+		boolean uploaded = !blockList.wasUploaded(blockidStr, digest);
+		if (uploaded) {
+			blockList.stage(blockidStr);
+			uploader.upload(blobname, blockidStr, this, releaseBuffer);
+			blockList.recordUpload(blockidStr, digest);
+		} else {
+			// a replay produced the same bytes, the blob already holds them under this id
+			blockList.stageUploaded(blockidStr);
+			if (releaseBuffer) {
+				release();
+			}
+		}
+		if (!commitDeferred) {
+			uploader.drain();
+			blockList.commit();
+		}
+		return uploaded;
+	}
+
+	// continues a carried block after its first prefixSize bytes, dropping whatever a failed batch added after them
+	public void reopen(BlockEncoder encoder, int prefixSize) {
+		this.encoder = encoder;
+		frameOpen = false;
+		BlobIndex.Entry prefixIndexEntry = getIndexEntry(prefixSize);
+		indexIncomplete |= prefixSize > 0 && prefixIndexEntry == null;
+		blockdataSize = prefixSize;
+		committedSize = prefixSize;
+		committedIndexEntry = prefixIndexEntry;
+		previousIndexEntry = null;
+		indexEntry = prefixIndexEntry == null ? null : prefixIndexEntry.copy();
+	}
+
+	// statistics of the first prefixSize bytes, null when the block does not have them
+	private BlobIndex.Entry getIndexEntry(int prefixSize) {
+		if (prefixSize == committedSize) {
+			return committedIndexEntry;
+		}
+		return prefixSize == previousCommittedSize ? previousIndexEntry : null;
+	}
+
+	// reads the committed prefix of a carried block back when it is no longer in memory, from the journal when its batch
+	// is not drained yet and from the blob otherwise; the index statistics are taken from the block object that wrote the
+	// prefix when there is one
+	public void restore(int partitionIndex, int prefixSize, Block writer, BlockJournal journal) {
+		if (writer != null) {
+			committedSize = writer.committedSize;
+			committedIndexEntry = writer.committedIndexEntry;
+			previousCommittedSize = writer.previousCommittedSize;
+			previousIndexEntry = writer.previousIndexEntry;
+			indexIncomplete = writer.indexIncomplete;
+		}
+		if (blockdata == null) {
+			blockdata = BlockBufferPool.acquire(maxBlockBytes);
+		}
+		String blobname = getBlobname(partitionIndex);
+		if (journal == null || !journal.readCommitted(blobname, storageBlockid, blockdata, prefixSize)) {
+			BlobWriter.downloadBlock(blobname, getBlockidStr(storageBlockid), blockdata, prefixSize);
+		}
+		reopen(encoder, prefixSize);
+		createdTime = System.currentTimeMillis();
+	}
+
+	// returns the buffer to the pool; the block keeps its size so callers can still tell it was not empty
+	public void release() {
+		BlockBufferPool.release(blockdata);
+		blockdata = null;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,108 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.topology.FailedException;
+
+// Worker-wide pool of block buffers. Every buffer has the same capacity (the max block size), so a buffer
+// released by one partition can be reused by any other partition running in the same worker.
+// With storage.blob.block.memory.max set, the buffers handed out at a time are limited to that many bytes;
+// acquire() waits in arrival order while the budget is used up, so no partition starves, and fails the batch
+// after storage.blob.block.memory.wait.ms. Idle buffers are not counted.
+public final class BlockBufferPool {
+	private static final Logger logger = (Logger) LoggerFactory.getLogger(BlockBufferPool.class);
+	private static int maxIdleBuffers = 4;
+	private static final ConcurrentLinkedQueue<byte[]> idleBuffers = new ConcurrentLinkedQueue<byte[]>();
+	private static final AtomicInteger idleCount = new AtomicInteger(0);
+	// budget in KB, null when the memory is not limited
+	private static Semaphore budget = null;
+	private static long budgetBytes = 0;
+	private static long budgetWaitMs = 60000;
+
+	static {
+		String maxIdleBuffersStr = ConfigProperties.getProperty("storage.blob.block.buffer.pool.idle.max");
+		if (maxIdleBuffersStr != null) {
+			int maxIdleBuffersInt = Integer.parseInt(maxIdleBuffersStr);
+			if (maxIdleBuffersInt >= 0) {
+				maxIdleBuffers = maxIdleBuffersInt;
+			}
+		}
+		String budgetBytesStr = ConfigProperties.getProperty("storage.blob.block.memory.max");
+		if (budgetBytesStr != null) {
+			long budgetBytesLong = Long.parseLong(budgetBytesStr.trim());
+			if (budgetBytesLong > 0) {
+				budgetBytes = budgetBytesLong;
+				budget = new Semaphore(toKb(budgetBytes), true);
+			}
+		}
+		String budgetWaitMsStr = ConfigProperties.getProperty("storage.blob.block.memory.wait.ms");
+		if (budgetWaitMsStr != null) {
+			long budgetWaitMsLong = Long.parseLong(budgetWaitMsStr.trim());
+			if (budgetWaitMsLong >= 0) {
+				budgetWaitMs = budgetWaitMsLong;
+			}
+		}
+	}
+
+	private BlockBufferPool() {
+	}
+
+	public static byte[] acquire(int capacity) {
+		if (budget != null) {
+			reserve(capacity);
+		}
+		byte[] buffer = idleBuffers.poll();
+		if (buffer != null) {
+			idleCount.decrementAndGet();
+			if (buffer.length == capacity) {
+				return buffer;
+			}
+		}
+		if (LogSetting.LOG_BLOCK) {
+			logger.info("acquire: allocating a new block buffer of " + capacity + " bytes");
+		}
+		return new byte[capacity];
+	}
+
+	public static void release(byte[] buffer) {
+		if (buffer == null) {
+			return;
+		}
+		if (budget != null) {
+			budget.release(toKb(buffer.length));
+		}
+		// keep at most maxIdleBuffers around, the rest is left to the garbage collector
+		if (idleCount.incrementAndGet() <= maxIdleBuffers) {
+			idleBuffers.offer(buffer);
+		} else {
+			idleCount.decrementAndGet();
+		}
+	}
+
+	private static void reserve(int capacity) {
+		int kb = toKb(capacity);
+		if (kb > toKb(budgetBytes)) {
+			throw new FailedException("a block buffer of " + capacity + " bytes exceeds storage.blob.block.memory.max");
+		}
+		try {
+			if (!budget.tryAcquire(kb, budgetWaitMs, TimeUnit.MILLISECONDS)) {
+				throw new FailedException("no block buffer of " + capacity + " bytes within the block memory budget of " + budgetBytes + " bytes after "
+						+ budgetWaitMs + " ms");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FailedException("interrupted while waiting for a block buffer");
+		}
+	}
+
+	private static int toKb(long bytes) {
+		return (int) Math.min((bytes + 1023) / 1024, Integer.MAX_VALUE);
+	}
+}
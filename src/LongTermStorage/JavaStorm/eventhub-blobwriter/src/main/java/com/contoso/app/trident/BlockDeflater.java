@@ -0,0 +1,95 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.util.zip.Deflater;
+
+// Raw deflate stream written straight into a block buffer. Encoders ask willFit before every record:
+// the check uses the real compressed size so far plus the deflate worst case for the input that is not
+// flushed yet, and flushes the deflater only when that estimate no longer fits.
+class BlockDeflater {
+	// room for the final deflate block and a sync flush marker
+	private static final int FINISH_RESERVE = 16;
+
+	private final Deflater deflater;
+	private byte[] buffer;
+	private int position;
+	private int capacity;
+	private long flushedBytesRead;
+
+	BlockDeflater(int level) {
+		deflater = new Deflater(level, true);
+	}
+
+	void begin(byte[] buffer, int offset, int capacity) {
+		deflater.reset();
+		this.buffer = buffer;
+		this.position = offset;
+		this.capacity = capacity;
+		flushedBytesRead = 0;
+	}
+
+	int position() {
+		return position;
+	}
+
+	long bytesRead() {
+		return deflater.getBytesRead();
+	}
+
+	// the compressed size of length input bytes in the worst case, including the end of the stream
+	static int maxCompressedSize(long length) {
+		return deflateBound(length) + FINISH_RESERVE;
+	}
+
+	// true if length more input bytes are guaranteed to fit, leaving reserve bytes after the stream
+	boolean willFit(int length, int reserve) {
+		if (fits(deflater.getBytesRead() - flushedBytesRead + length, reserve)) {
+			return true;
+		}
+		if (deflater.getBytesRead() == flushedBytesRead) {
+			return false;
+		}
+		// the estimate for the buffered input is too pessimistic, flush it to learn the real size
+		int n;
+		do {
+			n = deflater.deflate(buffer, position, capacity - position, Deflater.SYNC_FLUSH);
+			position += n;
+		} while (n > 0 && position < capacity);
+		flushedBytesRead = deflater.getBytesRead();
+		return fits(length, reserve);
+	}
+
+	void write(byte[] data, int offset, int length) {
+		deflater.setInput(data, offset, length);
+		while (!deflater.needsInput()) {
+			position += deflater.deflate(buffer, position, capacity - position, Deflater.NO_FLUSH);
+		}
+	}
+
+	// ends the deflate stream and returns the position after it
+	int finish() {
+		deflater.finish();
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buffer, position, capacity - position);
+			if (n == 0 && position == capacity) {
+				throw new IllegalStateException("deflate stream exceeds the block size");
+			}
+			position += n;
+		}
+		buffer = null;
+		return position;
+	}
+
+	void end() {
+		deflater.end();
+	}
+
+	private boolean fits(long pendingBytes, int reserve) {
+		return position + maxCompressedSize(pendingBytes) + reserve <= capacity;
+	}
+
+	// zlib's conservative deflateBound for stored blocks
+	private static int deflateBound(long length) {
+		return (int) (length + ((length + 7) >> 3) + ((length + 63) >> 6) + 5);
+	}
+}
@@ -0,0 +1,84 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.nio.charset.StandardCharsets;
+
+// Encodes the messages of a block into the block buffer as one self-contained frame, so every block
+// of a blob can be decoded on its own. Each partition owns one encoder and reuses it for block after block.
+public abstract class BlockEncoder {
+	public static final byte[] RECORD_DELIMITER = "\r\n".getBytes(StandardCharsets.UTF_8);
+	private static String format = "text";
+	private static String codec = "none";
+	private static int compressionLevel = -1;
+	static {
+		String formatStr = ConfigProperties.getProperty("storage.blob.block.format");
+		if (formatStr != null) {
+			format = formatStr.trim().toLowerCase();
+		}
+		String codecStr = ConfigProperties.getProperty("storage.blob.block.codec");
+		if (codecStr != null) {
+			codec = codecStr.trim().toLowerCase();
+		}
+		String compressionLevelStr = ConfigProperties.getProperty("storage.blob.block.codec.level");
+		if (compressionLevelStr != null) {
+			int compressionLevelInt = Integer.parseInt(compressionLevelStr.trim());
+			if (compressionLevelInt >= -1 && compressionLevelInt <= 9) {
+				compressionLevel = compressionLevelInt;
+			}
+		}
+	}
+
+	public static BlockEncoder create(int partitionIndex) {
+		boolean compressed;
+		if ("gzip".equals(codec) || "deflate".equals(codec)) {
+			compressed = true;
+		} else if ("none".equals(codec)) {
+			compressed = false;
+		} else {
+			throw new IllegalArgumentException("unknown storage.blob.block.codec: " + codec);
+		}
+		if ("avro".equals(format)) {
+			return new AvroBlockEncoder(partitionIndex, compressed ? compressionLevel : null);
+		} else if ("text".equals(format)) {
+			return compressed ? new GzipBlockEncoder(compressionLevel) : new PlainBlockEncoder();
+		}
+		throw new IllegalArgumentException("unknown storage.blob.block.format: " + format);
+	}
+
+	// Avro blobs start with a container header, so their blocks can't be moved to another blob
+	public static boolean isAvro() {
+		return "avro".equals(format);
+	}
+
+	protected byte[] buffer;
+	protected int capacity;
+	protected int position;
+
+	// starts a new frame of the block at block.blockdata[offset]; the frame may use the buffer up to capacity
+	public void begin(Block block, int offset, int capacity) {
+		this.buffer = block.blockdata;
+		this.position = offset;
+		this.capacity = capacity;
+	}
+
+	// end of the bytes written to the buffer so far
+	public int position() {
+		return position;
+	}
+
+	// the size of a frame holding only a message of the given length, in the worst case
+	public abstract int maxFrameSize(int length);
+
+	// true if a message of the given length is guaranteed to fit into the current frame
+	public abstract boolean willFit(int length);
+
+	// writes one message, the encoder adds whatever delimits or frames the message
+	public abstract void write(byte[] data, int offset, int length);
+
+	// completes the frame and returns the end of the frame in the buffer
+	public abstract int finish();
+
+	public void end() {
+		buffer = null;
+	}
+}
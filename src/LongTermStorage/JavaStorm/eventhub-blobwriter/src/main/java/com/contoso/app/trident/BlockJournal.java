@@ -0,0 +1,574 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.topology.FailedException;
+
+// Local spill journal of one partition, so a slow or throttled storage account does not fail the batch.
+// Sealed and carried blocks are appended to a memory-mapped file on the worker's disk, and a batch completes once its
+// commit record is forced to disk, along with the regions of the file written since the last commit. A drainer thread
+// uploads the blocks, commits the block list of each blob once per batch and then advances the partition's watermark
+// in BlockStateStore. While storage fails the drainer retries from the watermark with backoff, and batches keep
+// completing until the journal is full.
+// The file is a ring of records addressed by a position that only grows. Each record carries its position and a CRC,
+// so records of an earlier lap or torn by a crash are not read back. Records after the last commit record belong to
+// an attempt that did not complete and are never drained.
+// When a worker starts, the committed records past the watermark that its previous run left are drained into the
+// container that run wrote to, before the partition state is cleared.
+public class BlockJournal {
+	private static final Logger logger = (Logger) LoggerFactory.getLogger(BlockJournal.class);
+	private static final int MAGIC = 0x424a4e4c;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 4096;
+	// type, payload length, position
+	private static final int RECORD_HEADER_SIZE = 16;
+	private static final int CRC_SIZE = 4;
+	private static final int BLOCK = 1;
+	private static final int COMMIT = 2;
+	private static final int WRAP = 3;
+	private static final long MAX_RETRY_DELAY_MS = 30000;
+	// a commit forces the regions of the file it wrote to, MappedByteBuffer.force of Java 7 always flushes a whole mapping
+	private static final int REGION_SIZE = 4194304;
+	private static boolean enabled = false;
+	private static String directory = "journal";
+	private static int journalBytes = 268435456;
+	private static boolean fsync = true;
+	static {
+		String enabledStr = ConfigProperties.getProperty("storage.blob.journal");
+		if (enabledStr != null) {
+			enabled = Boolean.parseBoolean(enabledStr.trim());
+		}
+		String directoryStr = ConfigProperties.getProperty("storage.blob.journal.dir");
+		if (directoryStr != null) {
+			directory = directoryStr.trim();
+		}
+		String journalBytesStr = ConfigProperties.getProperty("storage.blob.journal.bytes");
+		if (journalBytesStr != null) {
+			long journalBytesLong = Long.parseLong(journalBytesStr.trim());
+			if (journalBytesLong > 0) {
+				// a mapped buffer is limited to 2GB
+				journalBytes = (int) Math.min(journalBytesLong, Integer.MAX_VALUE - HEADER_SIZE);
+			}
+		}
+		String fsyncStr = ConfigProperties.getProperty("storage.blob.journal.fsync");
+		if (fsyncStr != null) {
+			fsync = Boolean.parseBoolean(fsyncStr.trim());
+		}
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	private final ByteAggregator byteAggregator;
+	private final File file;
+	private final int capacity;
+	private final LatencyHistogram uploadLatency;
+	private RandomAccessFile raf;
+	// mappings of the same file, one per REGION_SIZE bytes, only used to force the regions a commit wrote to
+	private MappedByteBuffer[] regions;
+	private int mappedCapacity;
+	// the aggregator thread writes and looks up blocks, the drainer reads, each through its own views of the mapping
+	private ByteBuffer writeBuffer;
+	private ByteBuffer lookupBuffer;
+	private ByteBuffer readBuffer;
+	private final CRC32 writeCrc = new CRC32();
+	private final CRC32 lookupCrc = new CRC32();
+	private final CRC32 readCrc = new CRC32();
+	// next write position and end of the bytes forced to disk, only used by the aggregator thread
+	private long head;
+	private long forced;
+	// end of the last commit record and end of the last drained commit record, guarded by this
+	private long committed;
+	private long watermark;
+	// next record the drainer reads, only used by the drainer thread
+	private long drained;
+	private Thread drainer;
+	private volatile boolean running;
+
+	public BlockJournal(ByteAggregator byteAggregator, LatencyHistogram uploadLatency) {
+		this(byteAggregator, new File(directory, String.format("partition_%05d.journal", byteAggregator.partitionIndex)), journalBytes,
+				uploadLatency);
+	}
+
+	// opens the journal file and drains what the previous run left in it
+	BlockJournal(ByteAggregator byteAggregator, File file, int capacity, LatencyHistogram uploadLatency) {
+		this.byteAggregator = byteAggregator;
+		this.file = file;
+		this.capacity = capacity;
+		this.uploadLatency = uploadLatency;
+		try {
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("can't create journal directory " + parent);
+			}
+			raf = new RandomAccessFile(file, "rw");
+			String containerSuffix = readHeader();
+			if (containerSuffix != null) {
+				recover(containerSuffix);
+			}
+		} catch (IOException e) {
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	// empties the journal for this run and starts the drainer; the caller clears the watermark with the partition state
+	public void start() {
+		try {
+			if (raf.length() != HEADER_SIZE + capacity) {
+				raf.setLength(HEADER_SIZE + capacity);
+			}
+			map(capacity);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			byte[] suffix = BlobWriter.getContainerSuffix().getBytes(StandardCharsets.UTF_8);
+			header.putInt(MAGIC).putInt(VERSION).putInt(capacity).putShort((short) suffix.length).put(suffix);
+			writeBuffer.position(0);
+			writeBuffer.put(header.array());
+			force(0, HEADER_SIZE);
+		} catch (IOException e) {
+			throw new FailedException(e.getMessage());
+		}
+		head = 0;
+		forced = 0;
+		committed = 0;
+		watermark = 0;
+		drained = 0;
+		running = true;
+		drainer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runDrainer();
+			}
+		}, "blob-journal-drainer-p" + byteAggregator.partitionIndex);
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	// copies a block into the journal; waits while the journal is full
+	public void append(String blobname, int blockid, byte[] data, int length) {
+		byte[] name = blobname.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer meta = beginRecord(BLOCK, 2 + name.length + 4 + length, 2 + name.length + 4);
+		meta.putShort((short) name.length).put(name).putInt(blockid);
+		endRecord(meta, data, length);
+	}
+
+	// makes the records of the batch durable and hands them to the drainer
+	public void commit(long txid) {
+		ByteBuffer meta = beginRecord(COMMIT, 8, 8);
+		meta.putLong(txid);
+		endRecord(meta, null, 0);
+		if (fsync) {
+			forceWritten();
+		}
+		synchronized (this) {
+			committed = head;
+			notifyAll();
+		}
+	}
+
+	// drops the records of a failed attempt, its blocks are appended again by the next one
+	public void rollback() {
+		synchronized (this) {
+			head = committed;
+		}
+	}
+
+	// reads the first length bytes of the newest committed record of the block into buffer while its batch is not drained;
+	// returns false once the drainer got past the record, the blob holds the block then. Only the aggregator thread writes
+	// records, so the ones between the watermark and the last commit stay in place while it reads them
+	public boolean readCommitted(String blobname, int blockid, byte[] buffer, int length) {
+		long position;
+		long end;
+		synchronized (this) {
+			position = watermark;
+			end = committed;
+		}
+		long found = -1;
+		while (position < end) {
+			position = skipWrap(lookupBuffer, position);
+			int type = lookupBuffer.getInt(HEADER_SIZE + (int) (position % mappedCapacity));
+			Record record = type == BLOCK ? readBlock(lookupBuffer, lookupCrc, position, buffer)
+					: readCommit(lookupBuffer, lookupCrc, position);
+			if (record == null) {
+				throw new FailedException("p" + byteAggregator.partitionIndex + ": journal record at " + position + " is corrupted");
+			}
+			if (type == BLOCK && record.blockid == blockid && blobname.equals(record.blobname) && record.length >= length) {
+				found = position;
+			}
+			position = record.next;
+		}
+		if (found < 0) {
+			return false;
+		}
+		readBlock(lookupBuffer, lookupCrc, found, buffer);
+		return true;
+	}
+
+	// waits until every committed batch is in blob storage
+	public synchronized void awaitDrained() {
+		while (watermark < committed) {
+			await();
+		}
+	}
+
+	// bytes of committed batches not yet in blob storage
+	public synchronized long getBacklogBytes() {
+		return committed - watermark;
+	}
+
+	public void shutdown() {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		if (drainer != null) {
+			drainer.interrupt();
+		}
+		try {
+			raf.close();
+		} catch (IOException e) {
+			logger.error("failed to close " + file + ": " + e.getMessage());
+		}
+	}
+
+	// reserves room for a record, skipping to the next lap when it does not fit before the end of the file;
+	// returns a buffer for the header and the payload fields before the data
+	private ByteBuffer beginRecord(int type, int payloadLength, int metaLength) {
+		int recordSize = RECORD_HEADER_SIZE + payloadLength + CRC_SIZE;
+		long start = head;
+		int offset = (int) (start % capacity);
+		if (capacity - offset < recordSize) {
+			start += capacity - offset;
+		}
+		long end = start + recordSize;
+		if (end - committed > capacity) {
+			throw new FailedException("p" + byteAggregator.partitionIndex + ": batch does not fit the journal of " + capacity
+					+ " bytes, raise storage.blob.journal.bytes");
+		}
+		synchronized (this) {
+			while (end - watermark > capacity) {
+				await();
+			}
+		}
+		if (start != head && capacity - offset >= RECORD_HEADER_SIZE) {
+			writeBuffer.putInt(HEADER_SIZE + offset, WRAP);
+			writeBuffer.putInt(HEADER_SIZE + offset + 4, 0);
+			writeBuffer.putLong(HEADER_SIZE + offset + 8, head);
+		}
+		head = start;
+		ByteBuffer meta = ByteBuffer.allocate(RECORD_HEADER_SIZE + metaLength);
+		meta.putInt(type).putInt(payloadLength).putLong(start);
+		return meta;
+	}
+
+	private void endRecord(ByteBuffer meta, byte[] data, int length) {
+		writeCrc.reset();
+		writeCrc.update(meta.array(), 0, meta.position());
+		if (length > 0) {
+			writeCrc.update(data, 0, length);
+		}
+		writeBuffer.position(HEADER_SIZE + (int) (head % capacity));
+		writeBuffer.put(meta.array(), 0, meta.position());
+		if (length > 0) {
+			writeBuffer.put(data, 0, length);
+		}
+		writeBuffer.putInt((int) writeCrc.getValue());
+		head += meta.position() + length + CRC_SIZE;
+	}
+
+	// waits for the drainer, fails the batch once the journal is shut down
+	private void await() {
+		if (!running) {
+			throw new FailedException("p" + byteAggregator.partitionIndex + ": journal is shut down");
+		}
+		try {
+			wait(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FailedException("interrupted while waiting for the journal drainer");
+		}
+	}
+
+	private void runDrainer() {
+		BlockList blockList = null;
+		long retryDelayMs = 0;
+		while (true) {
+			long end;
+			synchronized (this) {
+				while (running && drained >= committed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (!running) {
+					return;
+				}
+				end = committed;
+			}
+			try {
+				if (blockList == null) {
+					blockList = new BlockList(BlobWriter.getSink());
+				}
+				drain(blockList, end);
+				retryDelayMs = 0;
+			} catch (Exception e) {
+				// storage is failing, the batches past the watermark are uploaded again later
+				if (blockList != null) {
+					blockList.discardStaged();
+				}
+				drained = watermark;
+				retryDelayMs = retryDelayMs == 0 ? 1000 : Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+				logger.error("p" + byteAggregator.partitionIndex + ": journal drain failed, retrying in " + retryDelayMs + " ms: "
+						+ e.getMessage());
+				try {
+					Thread.sleep(retryDelayMs);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	// uploads the records from drained up to end and commits each batch, advancing the watermark
+	private void drain(BlockList blockList, long end) {
+		byte[] buffer = null;
+		try {
+			while (drained < end) {
+				long position = skipWrap(readBuffer, drained);
+				int type = readBuffer.getInt(HEADER_SIZE + (int) (position % mappedCapacity));
+				if (type == BLOCK) {
+					if (buffer == null) {
+						buffer = BlockBufferPool.acquire(Block.getMaxBlockBytes());
+					}
+					Record record = readBlock(readBuffer, readCrc, position, buffer);
+					if (record == null) {
+						throw new FailedException("p" + byteAggregator.partitionIndex + ": journal record at " + position + " is corrupted");
+					}
+					if (record.length > buffer.length) {
+						BlockBufferPool.release(buffer);
+						buffer = BlockBufferPool.acquire(record.length);
+						record = readBlock(readBuffer, readCrc, position, buffer);
+					}
+					String blockidStr = Block.getBlockidStr(record.blockid);
+					blockList.seed(record.blobname, record.blockid);
+					// a batch drained again after a failure skips the blocks that were uploaded with the same bytes
+					byte[] digest = blockList.digest(buffer, record.length);
+					if (blockList.wasUploaded(blockidStr, digest)) {
+						blockList.stageUploaded(blockidStr);
+					} else {
+						blockList.stage(blockidStr);
+						long start = System.nanoTime();
+						blockList.getSink().uploadBlock(record.blobname, blockidStr, buffer, record.length);
+						long micros = (System.nanoTime() - start) / 1000;
+						uploadLatency.update(micros);
+						if (byteAggregator.blockSizeController != null) {
+							byteAggregator.blockSizeController.recordUpload(record.length, micros);
+						}
+						blockList.recordUpload(blockidStr, digest);
+					}
+					drained = record.next;
+				} else {
+					Record record = readCommit(readBuffer, readCrc, position);
+					if (record == null) {
+						throw new FailedException("p" + byteAggregator.partitionIndex + ": journal record at " + position + " is corrupted");
+					}
+					blockList.commit();
+					byteAggregator.stateStore.setJournalWatermark(byteAggregator, record.next);
+					blockList.forgetUploads();
+					drained = record.next;
+					synchronized (this) {
+						watermark = record.next;
+						notifyAll();
+					}
+				}
+			}
+		} finally {
+			BlockBufferPool.release(buffer);
+		}
+	}
+
+	// returns the header of a previous run, or null when the file holds no journal
+	private String readHeader() throws IOException {
+		if (raf.length() < HEADER_SIZE) {
+			return null;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		FileChannel channel = raf.getChannel();
+		int read = 0;
+		while (header.hasRemaining() && read >= 0) {
+			read = channel.read(header, header.position());
+		}
+		header.flip();
+		if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+			return null;
+		}
+		int previousCapacity = header.getInt();
+		if (previousCapacity <= 0 || raf.length() < HEADER_SIZE + (long) previousCapacity) {
+			return null;
+		}
+		byte[] suffix = new byte[header.getShort()];
+		header.get(suffix);
+		map(previousCapacity);
+		return new String(suffix, StandardCharsets.UTF_8);
+	}
+
+	// drains the committed batches past the watermark into the container of the previous run
+	private void recover(String containerSuffix) {
+		long start = byteAggregator.stateStore.getJournalWatermark(byteAggregator);
+		long end = start;
+		long position = start;
+		byte[] buffer = BlockBufferPool.acquire(Block.getMaxBlockBytes());
+		try {
+			while (true) {
+				position = skipWrap(readBuffer, position);
+				int type = readBuffer.getInt(HEADER_SIZE + (int) (position % mappedCapacity));
+				Record record = type == BLOCK ? readBlock(readBuffer, readCrc, position, buffer) : readCommit(readBuffer, readCrc, position);
+				if (record == null) {
+					break;
+				}
+				if (record.length > buffer.length) {
+					BlockBufferPool.release(buffer);
+					buffer = BlockBufferPool.acquire(record.length);
+					if (readBlock(readBuffer, readCrc, position, buffer) == null) {
+						break;
+					}
+				}
+				position = record.next;
+				if (type == COMMIT) {
+					end = position;
+				}
+			}
+		} finally {
+			BlockBufferPool.release(buffer);
+		}
+		if (end == start) {
+			return;
+		}
+		logger.info("p" + byteAggregator.partitionIndex + ": draining " + (end - start) + " journal bytes of container suffix "
+				+ containerSuffix);
+		drained = start;
+		drain(new BlockList(BlobWriter.getSink(containerSuffix)), end);
+	}
+
+	private void map(int mapCapacity) throws IOException {
+		FileChannel channel = raf.getChannel();
+		long size = HEADER_SIZE + (long) mapCapacity;
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		mappedCapacity = mapCapacity;
+		writeBuffer = mapped.duplicate();
+		lookupBuffer = mapped.duplicate();
+		readBuffer = mapped.duplicate();
+		// shared mappings of a file share its pages, so forcing a region writes back what the other views changed there
+		regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+		for (int i = 0; i < regions.length; i++) {
+			long offset = (long) i * REGION_SIZE;
+			regions[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, Math.min(REGION_SIZE, size - offset));
+		}
+	}
+
+	// forces the records written since the last force, which may wrap around the end of the file
+	private void forceWritten() {
+		if (head - forced >= capacity) {
+			force(HEADER_SIZE, HEADER_SIZE + (long) capacity);
+		} else if (head > forced) {
+			long start = forced % capacity;
+			long end = start + (head - forced);
+			force(HEADER_SIZE + start, HEADER_SIZE + Math.min(end, capacity));
+			if (end > capacity) {
+				force(HEADER_SIZE, HEADER_SIZE + end - capacity);
+			}
+		}
+		forced = head;
+	}
+
+	// forces the regions holding the file bytes from start to end
+	private void force(long start, long end) {
+		for (int i = (int) (start / REGION_SIZE); i <= (int) ((end - 1) / REGION_SIZE); i++) {
+			regions[i].force();
+		}
+	}
+
+	// the position of the record at position, after a wrap marker or the unused end of a lap
+	private long skipWrap(ByteBuffer view, long position) {
+		int offset = (int) (position % mappedCapacity);
+		if (mappedCapacity - offset < RECORD_HEADER_SIZE
+				|| (view.getInt(HEADER_SIZE + offset) == WRAP && view.getLong(HEADER_SIZE + offset + 8) == position)) {
+			return position + mappedCapacity - offset;
+		}
+		return position;
+	}
+
+	// reads a block record into buffer; returns null unless the record is intact and was written at position.
+	// Only the length is filled in when the data does not fit the buffer
+	private Record readBlock(ByteBuffer view, CRC32 crc, long position, byte[] buffer) {
+		int offset = HEADER_SIZE + (int) (position % mappedCapacity);
+		int payloadLength = view.getInt(offset + 4);
+		if (view.getInt(offset) != BLOCK || view.getLong(offset + 8) != position || payloadLength < 6
+				|| payloadLength > mappedCapacity - (offset - HEADER_SIZE) - RECORD_HEADER_SIZE - CRC_SIZE) {
+			return null;
+		}
+		int nameLength = view.getShort(offset + RECORD_HEADER_SIZE);
+		int metaLength = RECORD_HEADER_SIZE + 2 + nameLength + 4;
+		if (nameLength < 0 || metaLength > RECORD_HEADER_SIZE + payloadLength) {
+			return null;
+		}
+		Record record = new Record();
+		record.length = RECORD_HEADER_SIZE + payloadLength - metaLength;
+		record.next = position + RECORD_HEADER_SIZE + payloadLength + CRC_SIZE;
+		if (record.length > buffer.length) {
+			return record;
+		}
+		byte[] meta = new byte[metaLength];
+		view.position(offset);
+		view.get(meta);
+		view.get(buffer, 0, record.length);
+		crc.reset();
+		crc.update(meta, 0, metaLength);
+		crc.update(buffer, 0, record.length);
+		if (view.getInt() != (int) crc.getValue()) {
+			return null;
+		}
+		record.blobname = new String(meta, RECORD_HEADER_SIZE + 2, nameLength, StandardCharsets.UTF_8);
+		record.blockid = ByteBuffer.wrap(meta, RECORD_HEADER_SIZE + 2 + nameLength, 4).getInt();
+		return record;
+	}
+
+	private Record readCommit(ByteBuffer view, CRC32 crc, long position) {
+		int offset = HEADER_SIZE + (int) (position % mappedCapacity);
+		if (mappedCapacity - (offset - HEADER_SIZE) < RECORD_HEADER_SIZE + 8 + CRC_SIZE || view.getInt(offset) != COMMIT
+				|| view.getInt(offset + 4) != 8 || view.getLong(offset + 8) != position) {
+			return null;
+		}
+		byte[] meta = new byte[RECORD_HEADER_SIZE + 8];
+		view.position(offset);
+		view.get(meta);
+		crc.reset();
+		crc.update(meta, 0, meta.length);
+		if (view.getInt() != (int) crc.getValue()) {
+			return null;
+		}
+		Record record = new Record();
+		record.next = position + meta.length + CRC_SIZE;
+		return record;
+	}
+
+	private static class Record {
+		String blobname;
+		int blockid;
+		int length;
+		long next;
+	}
+}
@@ -0,0 +1,227 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+import com.microsoft.azure.storage.core.Base64;
+
+// In-memory copy of the block list of the blob a partition is appending to, and of the blobs it staged blocks for
+// earlier in the batch, which are the other stripes when storage.blob.stripes is set.
+// Block ids within a blob are sequential, so the list of blocks committed before a given block
+// can always be rebuilt from the block cursor kept in BlockStateStore without asking the storage service.
+// Blocks are first staged (uploaded but not committed) and become part of the blob on commit().
+// The list also remembers the MD5 of every block uploaded since forgetUploads(), so a replayed batch can skip
+// uploading a block whose bytes the blob already holds under the same id, committed or not.
+public class BlockList {
+	private static final Logger logger = (Logger) LoggerFactory.getLogger(BlockList.class);
+
+	private static boolean skipReplayedUploads = true;
+	static {
+		String skipReplayedUploadsStr = ConfigProperties.getProperty("storage.blob.upload.replayed.skip");
+		if (skipReplayedUploadsStr != null) {
+			skipReplayedUploads = Boolean.parseBoolean(skipReplayedUploadsStr.trim());
+		}
+	}
+
+	// sink the block lists are committed to, null for the sink of BlobWriter
+	private final BlobSink sink;
+	private String blobname = null;
+	private ArrayList<BlockEntry> blocks = new ArrayList<BlockEntry>();
+	// the last stagedCount entries of blocks are uploaded but not committed yet
+	private int stagedCount = 0;
+	// blobs rolled over in the current batch that still have staged blocks
+	private final ArrayList<BlockList> previousBlobs = new ArrayList<BlockList>();
+	// MD5 of the bytes last uploaded for "blobname blockid"
+	private final HashMap<String, byte[]> uploads;
+	private MessageDigest md5;
+
+	public BlockList() {
+		this(null);
+	}
+
+	public BlockList(BlobSink sink) {
+		this(sink, new HashMap<String, byte[]>());
+	}
+
+	private BlockList(BlobSink sink, HashMap<String, byte[]> uploads) {
+		this.sink = sink;
+		this.uploads = uploads;
+	}
+
+	public BlobSink getSink() {
+		return sink != null ? sink : BlobWriter.getSink();
+	}
+
+	public String getBlobname() {
+		return blobname;
+	}
+
+	public ArrayList<BlockEntry> getBlocks() {
+		return blocks;
+	}
+
+	// makes the list hold blocks 1 .. blockid-1 of blobname, i.e. the blocks written before blockid
+	public void seed(String blobname, int blockid) {
+		int committedCount = blockid - 1;
+		if (!blobname.equals(this.blobname)) {
+			resume(blobname);
+		}
+		if (blobname.equals(this.blobname) && blocks.size() >= committedCount) {
+			if (blocks.size() > committedCount) {
+				// replay: drop the blocks of the failed batch, they are uploaded again
+				int removed = blocks.size() - committedCount;
+				blocks.subList(committedCount, blocks.size()).clear();
+				stagedCount = Math.max(0, stagedCount - removed);
+			}
+			return;
+		}
+		if (LogSetting.LOG_BLOBWRITER) {
+			logger.info("seed blobname= " + blobname + " with " + committedCount + " committed blocks");
+		}
+		if (stagedCount > 0) {
+			// rollover to the next blob in the middle of a batch, the previous blob is committed in commit()
+			BlockList previous = new BlockList(sink, uploads);
+			previous.blobname = this.blobname;
+			previous.blocks = this.blocks;
+			previous.stagedCount = this.stagedCount;
+			previousBlobs.add(previous);
+			blocks = new ArrayList<BlockEntry>();
+			stagedCount = 0;
+		}
+		this.blobname = blobname;
+		blocks.clear();
+		blocks.ensureCapacity(committedCount + 1);
+		for (int i = 1; i <= committedCount; i++) {
+			blocks.add(new BlockEntry(toBlockEntryId(Block.getBlockidStr(i)), BlockSearchMode.COMMITTED));
+		}
+	}
+
+	// makes blobname's list current again when blocks were staged for it earlier in the batch, as a partition writing
+	// to striped blobs goes back and forth between them; the current list is kept if it has staged blocks
+	private void resume(String blobname) {
+		for (int i = 0; i < previousBlobs.size(); i++) {
+			BlockList previous = previousBlobs.get(i);
+			if (previous.blobname.equals(blobname)) {
+				previousBlobs.remove(i);
+				if (stagedCount > 0) {
+					BlockList current = new BlockList(sink, uploads);
+					current.blobname = this.blobname;
+					current.blocks = this.blocks;
+					current.stagedCount = this.stagedCount;
+					previousBlobs.add(current);
+				}
+				this.blobname = previous.blobname;
+				blocks = previous.blocks;
+				stagedCount = previous.stagedCount;
+				return;
+			}
+		}
+	}
+
+	// records a block that was uploaded to the blob but is not committed yet
+	public void stage(String blockIdStr) {
+		blocks.add(new BlockEntry(toBlockEntryId(blockIdStr), BlockSearchMode.UNCOMMITTED));
+		stagedCount++;
+	}
+
+	// records a block whose bytes an earlier attempt uploaded; it is committed with the latest version of the block,
+	// the uncommitted one if the earlier attempt did not commit it
+	public void stageUploaded(String blockIdStr) {
+		blocks.add(new BlockEntry(toBlockEntryId(blockIdStr), BlockSearchMode.LATEST));
+		stagedCount++;
+	}
+
+	// MD5 of the block bytes for wasUploaded and recordUpload, null when replayed uploads are not skipped
+	public byte[] digest(byte[] data, int length) {
+		if (!skipReplayedUploads) {
+			return null;
+		}
+		if (md5 == null) {
+			try {
+				md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		md5.update(data, 0, length);
+		return md5.digest();
+	}
+
+	// true if the bytes with this digest were uploaded for the block of the current blob since forgetUploads()
+	public boolean wasUploaded(String blockIdStr, byte[] digest) {
+		return digest != null && Arrays.equals(uploads.get(blobname + " " + blockIdStr), digest);
+	}
+
+	public void recordUpload(String blockIdStr, byte[] digest) {
+		if (digest != null) {
+			uploads.put(blobname + " " + blockIdStr, digest);
+		}
+	}
+
+	// called once the blocks recorded so far can not be replayed any more, or may not have reached the blob
+	public void forgetUploads() {
+		uploads.clear();
+	}
+
+	public boolean hasStagedBlocks() {
+		return stagedCount > 0 || !previousBlobs.isEmpty();
+	}
+
+	// commits the staged blocks of every blob touched since the last commit, one commitBlockList per blob
+	public void commit() {
+		for (BlockList previous : previousBlobs) {
+			previous.commitStagedBlocks();
+		}
+		previousBlobs.clear();
+		commitStagedBlocks();
+	}
+
+	// forgets the staged blocks of a failed batch; the blob still holds them uncommitted until they are uploaded again
+	public void discardStaged() {
+		if (stagedCount > 0) {
+			blocks.subList(blocks.size() - stagedCount, blocks.size()).clear();
+			stagedCount = 0;
+		}
+		previousBlobs.clear();
+	}
+
+	private void commitStagedBlocks() {
+		if (stagedCount == 0) {
+			return;
+		}
+		try {
+			getSink().commitBlockList(blobname, blocks);
+		} catch (RuntimeException e) {
+			// a block recorded as uploaded may be missing from the blob, so the next attempt uploads the blob's blocks again
+			forgetUploads(blobname);
+			throw e;
+		}
+		for (int i = blocks.size() - stagedCount; i < blocks.size(); i++) {
+			blocks.get(i).setSearchMode(BlockSearchMode.COMMITTED);
+		}
+		stagedCount = 0;
+	}
+
+	private void forgetUploads(String blobname) {
+		Iterator<String> keys = uploads.keySet().iterator();
+		while (keys.hasNext()) {
+			if (keys.next().startsWith(blobname + " ")) {
+				keys.remove();
+			}
+		}
+	}
+
+	public static String toBlockEntryId(String blockIdStr) {
+		return Base64.encode(blockIdStr.getBytes());
+	}
+}
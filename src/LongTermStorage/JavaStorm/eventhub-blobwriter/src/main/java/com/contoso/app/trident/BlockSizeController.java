@@ -0,0 +1,156 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Tunes the size at which a partition seals its blocks, between storage.blob.block.bytes.adaptive.min and the max block
+// bytes, starting from storage.blob.block.bytes.target. Upload times are fitted to time = fixed + bytes * perByte with
+// exponentially weighted least squares, and the target is the smallest block whose fixed per-request cost is at most
+// the configured overhead share of its upload time. Blocks stay at most half the bytes of a batch, so a batch's blocks
+// upload while the next ones fill; with hour or day rollover they are at least large enough for the rest of the period
+// to fit in the blocks left in the blob. The target moves once per batch, by at most a factor of 2.
+// Block buffers are still allocated at the max block bytes, so a smaller target does not reduce memory.
+public class BlockSizeController {
+	private static final Logger logger = (Logger) LoggerFactory.getLogger(BlockSizeController.class);
+	private static final int QUANTUM = 4096;
+	// weight of a new upload sample and of a new batch in the averages
+	private static final double SAMPLE_WEIGHT = 0.05;
+	private static final double BATCH_WEIGHT = 0.2;
+	// uploads needed before the fit is used
+	private static final int MIN_SAMPLES = 8;
+	private static boolean enabled = false;
+	private static int minBytes = 65536;
+	private static double overhead = 0.1;
+	static {
+		String enabledStr = ConfigProperties.getProperty("storage.blob.block.bytes.adaptive");
+		if (enabledStr != null) {
+			enabled = Boolean.parseBoolean(enabledStr.trim());
+		}
+		String minBytesStr = ConfigProperties.getProperty("storage.blob.block.bytes.adaptive.min");
+		if (minBytesStr != null) {
+			int minBytesInt = Integer.parseInt(minBytesStr.trim());
+			if (minBytesInt > 0) {
+				minBytes = minBytesInt;
+			}
+		}
+		String overheadStr = ConfigProperties.getProperty("storage.blob.block.bytes.adaptive.overhead");
+		if (overheadStr != null) {
+			double overheadDouble = Double.parseDouble(overheadStr.trim());
+			if (overheadDouble > 0 && overheadDouble < 1) {
+				overhead = overheadDouble;
+			}
+		}
+	}
+
+	private final int partitionIndex;
+	private final int lowerBytes;
+	private final int upperBytes;
+	private volatile int targetBytes;
+	// weighted sums of the upload samples (bytes, micros), guarded by this
+	private double weight;
+	private double sumBytes;
+	private double sumMicros;
+	private double sumBytesSquared;
+	private double sumBytesMicros;
+	private int samples;
+	// averages of the batches, only used by the partition's thread
+	private double batchBytes = -1;
+	private double bytesPerSecond = -1;
+	private long lastBatchTime = 0;
+
+	public BlockSizeController(int partitionIndex, int initialBytes) {
+		this(partitionIndex, initialBytes, minBytes, Block.getMaxBlockBytes());
+	}
+
+	BlockSizeController(int partitionIndex, int initialBytes, int lowerBytes, int upperBytes) {
+		this.partitionIndex = partitionIndex;
+		this.upperBytes = upperBytes;
+		this.lowerBytes = Math.min(lowerBytes, upperBytes);
+		this.targetBytes = clamp(initialBytes);
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	// block size at which the partition seals its blocks
+	public int getTargetBytes() {
+		return targetBytes;
+	}
+
+	// records an upload of a block; called by the upload threads and the journal drainer
+	public synchronized void recordUpload(int bytes, long micros) {
+		double keep = 1 - SAMPLE_WEIGHT;
+		weight = weight * keep + 1;
+		sumBytes = sumBytes * keep + bytes;
+		sumMicros = sumMicros * keep + micros;
+		sumBytesSquared = sumBytesSquared * keep + (double) bytes * bytes;
+		sumBytesMicros = sumBytesMicros * keep + (double) bytes * micros;
+		samples++;
+	}
+
+	// records a completed batch that added blockBytes encoded bytes to blocks and moves the target;
+	// block is the partition's last block of the batch
+	public void batchCompleted(long blockBytes, Block block, long now) {
+		if (lastBatchTime > 0 && now > lastBatchTime) {
+			double rate = blockBytes * 1000.0 / (now - lastBatchTime);
+			bytesPerSecond = bytesPerSecond < 0 ? rate : bytesPerSecond + BATCH_WEIGHT * (rate - bytesPerSecond);
+		}
+		lastBatchTime = now;
+		// an idle partition keeps its target
+		if (blockBytes == 0) {
+			return;
+		}
+		batchBytes = batchBytes < 0 ? blockBytes : batchBytes + BATCH_WEIGHT * (blockBytes - batchBytes);
+		double wanted = getEfficientBytes();
+		if (wanted < 0) {
+			return;
+		}
+		wanted = Math.min(wanted, batchBytes / 2);
+		long periodMs = Block.getRolloverPeriodMs();
+		if (periodMs > 0 && bytesPerSecond > 0) {
+			long remainingMs = block.period + periodMs - now;
+			int remainingBlocks = Math.max(1, BlockState.getMaxNumberBlocks() * Block.getStripes() - block.blockid + 1);
+			wanted = Math.max(wanted, bytesPerSecond * Math.max(0, remainingMs) / 1000.0 / remainingBlocks);
+		}
+		int current = targetBytes;
+		wanted = Math.max(current / 2.0, Math.min(current * 2.0, wanted));
+		int next = clamp((long) (wanted / QUANTUM + 0.5) * QUANTUM);
+		if (next != current) {
+			targetBytes = next;
+			if (LogSetting.LOG_BLOCK) {
+				logger.info("p" + partitionIndex + ": target block bytes " + current + " -> " + next);
+			}
+		}
+	}
+
+	// smallest block whose fixed upload cost is within the overhead share, or -1 while there are too few samples.
+	// Blocks of nearly the same size do not tell the fixed cost from the per byte cost, so the target is probed upwards
+	private synchronized double getEfficientBytes() {
+		if (samples < MIN_SAMPLES) {
+			return -1;
+		}
+		double meanBytes = sumBytes / weight;
+		double meanMicros = sumMicros / weight;
+		double varianceBytes = sumBytesSquared / weight - meanBytes * meanBytes;
+		double covariance = sumBytesMicros / weight - meanBytes * meanMicros;
+		if (varianceBytes < 0.01 * meanBytes * meanBytes) {
+			return targetBytes * 1.25;
+		}
+		double perByte = covariance / varianceBytes;
+		double fixed = meanMicros - perByte * meanBytes;
+		if (perByte <= 0) {
+			// uploads take as long whatever their size, only fewer requests help
+			return Double.MAX_VALUE;
+		}
+		if (fixed <= 0) {
+			return 0;
+		}
+		return fixed / perByte * (1 - overhead) / overhead;
+	}
+
+	private int clamp(long bytes) {
+		return (int) Math.max(lowerBytes, Math.min(upperBytes, bytes));
+	}
+}
@@ -1,16 +1,25 @@
 // Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
 package com.contoso.app.trident;
 
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import backtype.storm.topology.FailedException;
 
+import com.microsoft.azure.storage.blob.BlockEntry;
+
 public class BlockState {
 	private static final Logger logger = (Logger) LoggerFactory.getLogger(BlockState.class);
 
 	private static String blockLogFormatter = "partition=%05d_Txid=%05d:";
 	private static int maxNumberBlocks = 50000;
+	// a block smaller than minBlockBytes at the end of a batch is committed but kept open for the next batch, 0 seals every block
+	private static int minBlockBytes = 0;
+	// a block is sealed once it reaches targetBlockBytes, or once it is older than maxBlockAgeMs (0 for no deadline)
+	private static int targetBlockBytes = Block.getMaxBlockBytes();
+	private static long maxBlockAgeMs = 0;
 	static {
 		String blockLogFormatterStr = ConfigProperties.getProperty("PARTITION_TXID_LOG_FORMATTER");
 		if (blockLogFormatterStr != null) {
@@ -23,11 +32,50 @@ public class BlockState {
 				maxNumberBlocks = maxNumberBlocksInt;
 			}
 		}
+		String minBlockBytesStr = ConfigProperties.getProperty("storage.blob.block.bytes.min");
+		if (minBlockBytesStr != null) {
+			int minBlockBytesInt = Integer.parseInt(minBlockBytesStr);
+			if (minBlockBytesInt >= 0 && minBlockBytesInt <= Block.getMaxBlockBytes()) {
+				minBlockBytes = minBlockBytesInt;
+			}
+		}
+		String targetBlockBytesStr = ConfigProperties.getProperty("storage.blob.block.bytes.target");
+		if (targetBlockBytesStr != null) {
+			int targetBlockBytesInt = Integer.parseInt(targetBlockBytesStr);
+			if (targetBlockBytesInt > 0 && targetBlockBytesInt <= Block.getMaxBlockBytes()) {
+				targetBlockBytes = targetBlockBytesInt;
+			}
+		}
+		String maxBlockAgeMsStr = ConfigProperties.getProperty("storage.blob.block.age.max.ms");
+		if (maxBlockAgeMsStr != null) {
+			long maxBlockAgeMsLong = Long.parseLong(maxBlockAgeMsStr);
+			if (maxBlockAgeMsLong >= 0) {
+				maxBlockAgeMs = maxBlockAgeMsLong;
+			}
+		}
+	}
+	public static int getMaxNumberBlocks() {
+		return maxNumberBlocks;
+	}
+
+	public static int getTargetBlockBytes() {
+		return targetBlockBytes;
+	}
+
+	// lets tests carry blocks into the next batch without a configuration of their own
+	static void setMinBlockBytes(int bytes) {
+		minBlockBytes = bytes;
 	}
+
 	public ByteAggregator byteAggregator;
 	public Block firstBlock;
 	public Block currentBlock;
 	public String partitionTxidLogStr;
+	public long batchPeriod;
+	// bytes of firstBlock that were committed by earlier batches
+	public int firstBlockPrefixSize;
+	// true if currentBlock stays open for the next batch
+	public boolean carryCurrentBlock;
 
 	public BlockState(ByteAggregator aggregator) {
 		byteAggregator = aggregator;
@@ -37,7 +85,11 @@ public class BlockState {
 		if (LogSetting.LOG_BLOCK) {
 			logger.info(partitionTxidLogStr + "Constructor Begin");
 		}
-		String lastTxidStr = BlockStateStore.get(byteAggregator.txidKey);
+		// txid, firstblock and lastblock are read together so a batch pays a single state store round-trip
+		String[] state = byteAggregator.stateStore.getState(byteAggregator);
+		// a batch stays in the period it started in, so a replay writes the same blobs as the failed attempt
+		batchPeriod = Block.getPeriod(System.currentTimeMillis());
+		String lastTxidStr = state[0];
 		if (lastTxidStr == null) {
 			// the very first time the topology is running
 			currentBlock = getNewBlock();
@@ -48,30 +100,121 @@ public class BlockState {
 			long lastTxid = Long.parseLong(lastTxidStr);
 			if (txid != lastTxid) {
 				// this is a new batch, not a replay, last batch is successful, we just need to get the next block
-				currentBlock = getNextBlockAfterLastSuccessBatch();
+				currentBlock = getNextBlockAfterLastSuccessBatch(state[2]);
 				if (LogSetting.LOG_BLOCK) {
 					logger.info("New Batch: partition= " + partitionIndex + " last txid= " + lastTxidStr + " current txid= " + txid);
 				}
 			} else {
 				// since txid == lastTxid, this is a replay, we need to restart from the first block in the last failed batch
-				currentBlock = getFirstBlockInLastFailedBatch();
+				byteAggregator.replaysMetric.incr();
+				currentBlock = getFirstBlockInLastFailedBatch(state[1]);
 				if (LogSetting.LOG_BLOCK) {
 					logger.info("Replay: partition= " + partitionIndex + " last txid= " + lastTxidStr + " current txid= " + txid);
 				}
 			}
 		}
+		if (byteAggregator.carriedBlock != null && byteAggregator.carriedBlock != currentBlock) {
+			byteAggregator.carriedBlock.release();
+		}
+		byteAggregator.carriedBlock = null;
 		firstBlock = currentBlock;
+		firstBlockPrefixSize = currentBlock.committedSize;
+		carryCurrentBlock = false;
 		if (LogSetting.LOG_BLOCK) {
 			logger.info(partitionTxidLogStr + "Constructor End with blobid=" + currentBlock.blobid + ", blockid=" + currentBlock.blockid);
 			logger.info(partitionTxidLogStr + "Constructor End");
 		}
 	}
 
+	private Block newBlock(long period, int blobid, int blockid) {
+		return new Block(period, blobid, blockid, byteAggregator.blockEncoder);
+	}
+
+	// continues block blobid_blockid after its first prefixSize bytes, which an earlier batch committed
+	private Block reopenBlock(long period, int blobid, int blockid, int prefixSize) {
+		Block carried = byteAggregator.carriedBlock;
+		if (carried != null && carried.period == period && carried.blobid == blobid && carried.blockid == blockid && carried.blockdata != null
+				&& carried.blockdataSize >= prefixSize) {
+			carried.reopen(byteAggregator.blockEncoder, prefixSize);
+			return carried;
+		}
+		// the worker restarted or the block was sealed by a failed attempt, read the prefix back from the journal
+		// while its batch is not drained, from the blob otherwise
+		Block block = newBlock(period, blobid, blockid);
+		boolean sameBlock = carried != null && carried.period == period && carried.blobid == blobid && carried.blockid == blockid;
+		block.restore(byteAggregator.partitionIndex, prefixSize, sameBlock ? carried : null, byteAggregator.blockJournal);
+		return block;
+	}
+
+	// true if the block should be sealed before more messages are added
+	public boolean isBlockComplete(Block block) {
+		int target = byteAggregator.blockSizeController != null ? byteAggregator.blockSizeController.getTargetBytes() : targetBlockBytes;
+		return block.blockdataSize > 0 && (block.blockdataSize >= target || isBlockExpired(block));
+	}
+
+	// true if the block is too small to be sealed at the end of a batch and has not reached its deadline
+	public boolean shouldCarryBlock(Block block) {
+		return minBlockBytes > 0 && block.blockdataSize < minBlockBytes && !isBlockExpired(block);
+	}
+
+	private boolean isBlockExpired(Block block) {
+		return maxBlockAgeMs > 0 && block.getAgeMs() >= maxBlockAgeMs;
+	}
+
+	// cursor values persisted in the state store: blobid_blockid_bytes_period, where bytes is the committed prefix
+	// of a block that is continued by the next batch and period is the blob's time period;
+	// state written without these fields reads as 0
+	public String getFirstBlockStateStr() {
+		return firstBlock.blobidAndBlockidStr + "_" + firstBlockPrefixSize + "_" + firstBlock.period;
+	}
+
+	public String getLastBlockStateStr() {
+		return currentBlock.blobidAndBlockidStr + "_" + (carryCurrentBlock ? currentBlock.committedSize : 0) + "_" + currentBlock.period;
+	}
+
+	private static int getCursorBytes(String[] strArray) {
+		return strArray.length > 2 ? Integer.parseInt(strArray[2]) : 0;
+	}
+
+	private static long getCursorPeriod(String[] strArray) {
+		return strArray.length > 3 ? Long.parseLong(strArray[3]) : 0;
+	}
+
+	// checks, before a warm restart continues after it, that the blob holds the blocks up to the partition's last cursor;
+	// a cursor ahead of the blob belongs to another container or to state that outlived its blobs
+	public static void verifyLastBlock(ByteAggregator byteAggregator) {
+		String[] state = byteAggregator.stateStore.getState(byteAggregator);
+		if (state[0] == null || state[2] == null) {
+			return;
+		}
+		String[] strArray = state[2].split("_");
+		int carriedBytes = getCursorBytes(strArray);
+		Block block = new Block(getCursorPeriod(strArray), Integer.parseInt(strArray[0]), Integer.parseInt(strArray[1]), null);
+		String blobname = block.getBlobname(byteAggregator.partitionIndex);
+		List<BlockEntry> committed = BlobWriter.downloadBlockList(blobname);
+		boolean matches = committed.size() >= block.storageBlockid;
+		for (int i = 1; matches && i <= block.storageBlockid; i++) {
+			matches = committed.get(i - 1).getId().equals(BlockList.toBlockEntryId(Block.getBlockidStr(i)));
+		}
+		if (matches && carriedBytes > 0) {
+			matches = committed.get(block.storageBlockid - 1).getSize() >= carriedBytes;
+		}
+		if (!matches) {
+			String message = "p" + byteAggregator.partitionIndex + ": cursor " + state[2] + " of txid " + state[0] + " is ahead of " + blobname
+					+ " with " + committed.size() + " committed blocks; clear the partition's state or turn off storage.state.warm.restart";
+			logger.error(message);
+			throw new FailedException(message);
+		}
+		if (LogSetting.LOG_BLOCK) {
+			logger.info("p" + byteAggregator.partitionIndex + ": warm restart continues after cursor " + state[2] + " of txid " + state[0]);
+		}
+	}
+
 	private Block getNewBlock() {
 		if (LogSetting.LOG_BLOCK) {
 			logger.info(partitionTxidLogStr + "getNewBlock Begin");
 		}
-		Block block = new Block(1, 1);
+		Block block = newBlock(batchPeriod, 1, 1);
 		if (LogSetting.LOG_BLOCK) {
 			logger.info(partitionTxidLogStr + "getNewBlock End");
 		}
@@ -85,14 +228,15 @@ public class BlockState {
 		if (LogSetting.LOG_BLOCK) {
 			logger.info("getNextBlock Begin");
 		}
-		if (previous.blockid < maxNumberBlocks) {
+		// with striping each of the blob's stripes holds maxNumberBlocks blocks
+		if (previous.blockid < maxNumberBlocks * Block.getStripes()) {
 			blobid = previous.blobid;
 			blockid = previous.blockid + 1;
 		} else {
 			blobid = previous.blobid + 1;
 			blockid = 1;
 		}
-		block = new Block(blobid, blockid);
+		block = newBlock(previous.period, blobid, blockid);
 		if (LogSetting.LOG_BLOCK) {
 			logger.info("getNextBlock returns blobid=" + blobid + ", blockid=" + blockid);
 			logger.info("getNextBlock End");
@@ -100,18 +244,26 @@ public class BlockState {
 		return block;
 	}
 
-	private Block getNextBlockAfterLastSuccessBatch() {
+	private Block getNextBlockAfterLastSuccessBatch(String lastBlockStr) {
 		Block block = null;
 		if (LogSetting.LOG_BLOCK) {
 			logger.info(partitionTxidLogStr + "getNextBlockAfterLastSuccessBatch Begin");
 		}
-		String lastBlockStr = BlockStateStore.get(byteAggregator.lastblockKey);
 		if (lastBlockStr != null) {
 			String[] strArray = lastBlockStr.split("_");
 			int blobid = Integer.parseInt(strArray[0]);
 			int blockid = Integer.parseInt(strArray[1]);
-			Block lastblock = new Block(blobid, blockid);
-			block = getNextBlock(lastblock);
+			int carriedBytes = getCursorBytes(strArray);
+			long period = getCursorPeriod(strArray);
+			if (period != batchPeriod) {
+				// the last batch wrote to an earlier period, start the first blob of the current one
+				block = getNewBlock();
+			} else if (carriedBytes > 0) {
+				block = reopenBlock(period, blobid, blockid, carriedBytes);
+			} else {
+				Block lastblock = newBlock(period, blobid, blockid);
+				block = getNextBlock(lastblock);
+			}
 			if (LogSetting.LOG_BLOCK) {
 				logger.info(partitionTxidLogStr + " value for " + byteAggregator.lastblockKey + " is " + lastBlockStr);
 			}
@@ -128,17 +280,22 @@ public class BlockState {
 		return block;
 	}
 
-	private Block getFirstBlockInLastFailedBatch() {
+	private Block getFirstBlockInLastFailedBatch(String firstBlockStr) {
 		Block block = null;
 		if (LogSetting.LOG_BLOCK) {
 			logger.info(partitionTxidLogStr + "getFirstBlockInLastFailedBatch Begin");
 		}
-		String firstBlockStr = BlockStateStore.get(byteAggregator.firstblockKey);
 		if (firstBlockStr != null) {
 			String[] strArray = firstBlockStr.split("_");
 			int blobid = Integer.parseInt(strArray[0]);
 			int blockid = Integer.parseInt(strArray[1]);
-			block = new Block(blobid, blockid);
+			int prefixBytes = getCursorBytes(strArray);
+			long period = getCursorPeriod(strArray);
+			if (prefixBytes > 0) {
+				block = reopenBlock(period, blobid, blockid, prefixBytes);
+			} else {
+				block = newBlock(period, blobid, blockid);
+			}
 			if (LogSetting.LOG_BLOCK) {
 				logger.info(partitionTxidLogStr + " value for " + byteAggregator.firstblockKey + " is " + firstBlockStr);
 			}
@@ -157,7 +314,7 @@ public class BlockState {
 		if (LogSetting.LOG_BLOCK) {
 			logger.info(partitionTxidLogStr + " persistState Begin");
 		}
-		BlockStateStore.setState(this);
+		byteAggregator.stateStore.setState(this);
 		if (LogSetting.LOG_BLOCK) {
 			logger.info(partitionTxidLogStr + " persistState End");
 		}
@@ -0,0 +1,44 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.util.Map;
+
+// Creates the BlockStateStore selected by storage.state.store: redis (default), zookeeper, local or memory.
+public final class BlockStateStores {
+	private static String store = "redis";
+	static {
+		String storeStr = ConfigProperties.getProperty("storage.state.store");
+		if (storeStr != null) {
+			store = storeStr.trim().toLowerCase();
+		}
+	}
+	// the local and in-memory stores are shared by the partitions of a worker
+	private static BlockStateStore localStore = null;
+	private static BlockStateStore memoryStore = null;
+
+	private BlockStateStores() {
+	}
+
+	public static BlockStateStore create(@SuppressWarnings("rawtypes") Map conf) {
+		return create(store, conf);
+	}
+
+	public static synchronized BlockStateStore create(String name, @SuppressWarnings("rawtypes") Map conf) {
+		if ("redis".equals(name)) {
+			return new RedisBlockStateStore();
+		} else if ("zookeeper".equals(name)) {
+			return new ZooKeeperBlockStateStore(ZooKeeperBlockStateStore.getConnectString(conf));
+		} else if ("local".equals(name)) {
+			if (localStore == null) {
+				localStore = new LocalBlockStateStore();
+			}
+			return localStore;
+		} else if ("memory".equals(name)) {
+			if (memoryStore == null) {
+				memoryStore = new InMemoryBlockStateStore();
+			}
+			return memoryStore;
+		}
+		throw new IllegalArgumentException("unknown storage.state.store: " + name);
+	}
+}
@@ -0,0 +1,204 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.topology.FailedException;
+
+// Uploads sealed blocks of one partition in the background. The upload threads are shared by the partitions
+// of the worker; at most maxInFlight blocks of a partition are queued or being uploaded at a time and upload()
+// blocks the caller while the window is full, so a busy partition can not crowd the others out of the queue.
+// drain() waits for every outstanding upload and rethrows the first failure, so the caller can commit.
+// With a BlockJournal, blocks are copied into the journal instead and its drainer uploads them.
+public class BlockUploader {
+	private static final Logger logger = (Logger) LoggerFactory.getLogger(BlockUploader.class);
+	private static int uploadThreads = 0;
+	private static int maxInFlight = 4;
+	static {
+		String uploadThreadsStr = ConfigProperties.getProperty("storage.blob.upload.threads");
+		if (uploadThreadsStr != null) {
+			int uploadThreadsInt = Integer.parseInt(uploadThreadsStr);
+			if (uploadThreadsInt >= 0) {
+				uploadThreads = uploadThreadsInt;
+			}
+		}
+		String maxInFlightStr = ConfigProperties.getProperty("storage.blob.upload.inflight.max");
+		if (maxInFlightStr != null) {
+			int maxInFlightInt = Integer.parseInt(maxInFlightStr);
+			if (maxInFlightInt > 0) {
+				maxInFlight = maxInFlightInt;
+			}
+		}
+	}
+
+	// created by the first uploader of the worker and shut down with the last one
+	private static ExecutorService sharedExecutor = null;
+	private static int sharedExecutorUsers = 0;
+
+	private final int partitionIndex;
+	private final ExecutorService executor;
+	private final Semaphore window;
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+	private final LatencyHistogram uploadLatency;
+	private final BlockJournal journal;
+	// fed with the size and time of every upload, may be null
+	private final BlockSizeController sizeController;
+
+	public BlockUploader(int partitionIndex, LatencyHistogram uploadLatency) {
+		this(partitionIndex, uploadLatency, null, null);
+	}
+
+	public BlockUploader(int partitionIndex, LatencyHistogram uploadLatency, BlockJournal journal, BlockSizeController sizeController) {
+		this.partitionIndex = partitionIndex;
+		this.uploadLatency = uploadLatency;
+		this.journal = journal;
+		this.sizeController = sizeController;
+		this.window = new Semaphore(maxInFlight);
+		if (uploadThreads > 0 && journal == null) {
+			executor = acquireExecutor();
+		} else {
+			// synchronous uploads on the calling thread
+			executor = null;
+		}
+	}
+
+	// uploads the block without committing it; with releaseBuffer the block's buffer is released once the upload
+	// is done, otherwise the caller must not change the uploaded bytes before drain()
+	public void upload(final String blobname, final String blockidStr, final Block block, final boolean releaseBuffer) {
+		throwIfFailed();
+		final byte[] data = block.blockdata;
+		final int length = block.blockdataSize;
+		if (journal != null) {
+			try {
+				journal.append(blobname, block.storageBlockid, data, length);
+			} finally {
+				if (releaseBuffer) {
+					block.release();
+				}
+			}
+			return;
+		}
+		if (executor == null) {
+			try {
+				uploadBlock(blobname, blockidStr, data, length);
+			} finally {
+				if (releaseBuffer) {
+					block.release();
+				}
+			}
+			return;
+		}
+		acquire(1);
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						uploadBlock(blobname, blockidStr, data, length);
+					} catch (Throwable t) {
+						logger.error("p" + partitionIndex + ": upload of " + blobname + " block " + blockidStr + " failed: " + t.getMessage());
+						failure.compareAndSet(null, t);
+					} finally {
+						if (releaseBuffer) {
+							block.release();
+						}
+						window.release();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			if (releaseBuffer) {
+				block.release();
+			}
+			window.release();
+			throw new FailedException(e);
+		}
+	}
+
+	// true if blocks go to a BlockJournal, whose drainer keeps the block lists and commits them
+	public boolean isJournaled() {
+		return journal != null;
+	}
+
+	private void uploadBlock(String blobname, String blockidStr, byte[] data, int length) {
+		long start = System.nanoTime();
+		BlobWriter.uploadBlock(blobname, blockidStr, data, length);
+		long micros = (System.nanoTime() - start) / 1000;
+		uploadLatency.update(micros);
+		if (sizeController != null) {
+			sizeController.recordUpload(length, micros);
+		}
+	}
+
+	// waits until every block handed to upload() is uploaded
+	public void drain() {
+		if (executor != null) {
+			acquire(maxInFlight);
+			window.release(maxInFlight);
+		}
+		throwIfFailed();
+	}
+
+	// waits for the uploads of a failed attempt and forgets their failure; returns true if one of them failed
+	public boolean reset() {
+		if (executor != null) {
+			acquire(maxInFlight);
+			window.release(maxInFlight);
+		}
+		return failure.getAndSet(null) != null;
+	}
+
+	public void shutdown() {
+		if (executor != null) {
+			releaseExecutor();
+		}
+	}
+
+	private static synchronized ExecutorService acquireExecutor() {
+		if (sharedExecutor == null) {
+			sharedExecutor = Executors.newFixedThreadPool(uploadThreads, new ThreadFactory() {
+				private final AtomicInteger threadCount = new AtomicInteger(0);
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "blob-uploader-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		sharedExecutorUsers++;
+		return sharedExecutor;
+	}
+
+	private static synchronized void releaseExecutor() {
+		if (--sharedExecutorUsers == 0) {
+			sharedExecutor.shutdown();
+			sharedExecutor = null;
+		}
+	}
+
+	private void acquire(int permits) {
+		try {
+			window.acquire(permits);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FailedException("interrupted while waiting for block uploads");
+		}
+	}
+
+	private void throwIfFailed() {
+		Throwable t = failure.get();
+		if (t != null) {
+			throw new FailedException(t.getMessage());
+		}
+	}
+}
@@ -2,10 +2,15 @@
 
 package com.contoso.app.trident;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import backtype.storm.metric.api.CountMetric;
+import backtype.storm.metric.api.IMetric;
+import backtype.storm.metric.api.MeanReducer;
+import backtype.storm.metric.api.ReducedMetric;
 import backtype.storm.topology.FailedException;
 import backtype.storm.tuple.Values;
 import storm.trident.operation.BaseAggregator;
@@ -20,14 +25,55 @@ public class ByteAggregator extends BaseAggregator<BlockState> {
 	private static String txidKeyFormatter = "partition_%05d_transactionid";
 	private static String firstblockKeyFormatter = "partition_%05d_firstblock";
 	private static String lastblockKeyFormatter = "partition_%05d_lastblock";
+	private static String watermarkKeyFormatter = "partition_%05d_journal_watermark";
+	private static int metricsBucketSeconds = 60;
 
 	public long txid;
 	public int partitionIndex;
 	private long msgCount;
+	private long msgBytes;
+	// encoded bytes the batch added to blocks
+	private long blockBytes;
 	public String txidKey = null;
 	public String firstblockKey = null;
 	public String lastblockKey = null;
+	public String watermarkKey = null;
 	boolean needPersist = false;
+	// txid of the attempts whose uploads blockList remembers; a later attempt of the same txid is a replay
+	private long uploadsTxid = -1;
+	// metrics reported every metricsBucketSeconds, counts are per bucket
+	private transient ReducedMetric batchInitLatencyMetric;
+	private transient CountMetric messagesMetric;
+	private transient CountMetric messageBytesMetric;
+	private transient CountMetric skippedMessagesMetric;
+	private transient CountMetric blocksSealedMetric;
+	private transient CountMetric blocksCarriedMetric;
+	private transient CountMetric uploadsSkippedMetric;
+	private transient ReducedMetric blockFillRatioMetric;
+	private transient LatencyHistogram uploadLatencyMetric;
+	private transient LatencyHistogram commitLatencyMetric;
+	private transient LatencyHistogram stateGetLatencyMetric;
+	private transient LatencyHistogram stateSetLatencyMetric;
+	transient CountMetric replaysMetric;
+	// committed block list of the blob this partition is appending to
+	transient BlockList blockList;
+	transient BlockUploader blockUploader;
+	// local spill journal, null unless storage.blob.journal is set
+	transient BlockJournal blockJournal;
+	// target block size of the partition, null unless storage.blob.block.bytes.adaptive is set
+	transient BlockSizeController blockSizeController;
+	// indexes of the blobs being written, null unless storage.blob.index is set
+	transient BlobIndexWriter blobIndexWriter;
+	// blobs of the message keys, null unless storage.blob.fanout.field is set
+	transient BlobFanOut fanOut;
+	transient BlockEncoder blockEncoder;
+	transient BlockStateStore stateStore;
+	// groups the state writes of the worker's partitions, null unless storage.state.group.commit.window.ms is set
+	private transient GroupCommitBlockStateStore groupCommitStore;
+	// block left open by the last batch, reused by the next one instead of reading its prefix back
+	transient Block carriedBlock;
+	// state of the batch in progress, its open block is released when the batch fails
+	private transient BlockState openState;
 
 	static {
 		String txidKeyFormatterStr = ConfigProperties.getProperty("PARTITION_TXID_KEY_FORMATTER");
@@ -42,6 +88,17 @@ public class ByteAggregator extends BaseAggregator<BlockState> {
 		if (lastblockKeyFormatterStr != null) {
 			lastblockKeyFormatter = lastblockKeyFormatterStr;
 		}
+		String watermarkKeyFormatterStr = ConfigProperties.getProperty("PARTITION_WATERMARK_KEY_FORMATTER");
+		if (watermarkKeyFormatterStr != null) {
+			watermarkKeyFormatter = watermarkKeyFormatterStr;
+		}
+		String metricsBucketSecondsStr = ConfigProperties.getProperty("metrics.bucket.seconds");
+		if (metricsBucketSecondsStr != null) {
+			int metricsBucketSecondsInt = Integer.parseInt(metricsBucketSecondsStr);
+			if (metricsBucketSecondsInt > 0) {
+				metricsBucketSeconds = metricsBucketSecondsInt;
+			}
+		}
 	}
 
 	public ByteAggregator() {
@@ -55,17 +112,110 @@ public class ByteAggregator extends BaseAggregator<BlockState> {
 		if (LogSetting.LOG_BATCH) {
 			logger.info("prepare Begin");
 		}
-		partitionIndex = context.getPartitionIndex();
-		txidKey = String.format(txidKeyFormatter, partitionIndex);
-		firstblockKey = String.format(firstblockKeyFormatter, partitionIndex);
-		lastblockKey = String.format(lastblockKeyFormatter, partitionIndex);
-		BlockStateStore.clearState(this);
+		prepare(context.getPartitionIndex(), BlockStateStores.create(conf));
+		context.registerMetric("batch_init_latency_ms", batchInitLatencyMetric, metricsBucketSeconds);
+		context.registerMetric("messages", messagesMetric, metricsBucketSeconds);
+		context.registerMetric("message_bytes", messageBytesMetric, metricsBucketSeconds);
+		context.registerMetric("messages_skipped", skippedMessagesMetric, metricsBucketSeconds);
+		context.registerMetric("blocks_sealed", blocksSealedMetric, metricsBucketSeconds);
+		context.registerMetric("blocks_carried", blocksCarriedMetric, metricsBucketSeconds);
+		context.registerMetric("block_uploads_skipped", uploadsSkippedMetric, metricsBucketSeconds);
+		context.registerMetric("block_fill_ratio", blockFillRatioMetric, metricsBucketSeconds);
+		context.registerMetric("block_upload_latency", uploadLatencyMetric, metricsBucketSeconds);
+		context.registerMetric("blocklist_commit_latency", commitLatencyMetric, metricsBucketSeconds);
+		context.registerMetric("state_get_latency", stateGetLatencyMetric, metricsBucketSeconds);
+		context.registerMetric("state_set_latency", stateSetLatencyMetric, metricsBucketSeconds);
+		context.registerMetric("replays", replaysMetric, metricsBucketSeconds);
+		if (blockSizeController != null) {
+			context.registerMetric("block_target_bytes", new IMetric() {
+				@Override
+				public Object getValueAndReset() {
+					return blockSizeController.getTargetBytes();
+				}
+			}, metricsBucketSeconds);
+		}
+		if (fanOut != null) {
+			context.registerMetric("fanout_cache_hit_rate", fanOut.hitRateMetric, metricsBucketSeconds);
+			context.registerMetric("fanout_keys_evicted", fanOut.evictedMetric, metricsBucketSeconds);
+			context.registerMetric("fanout_blocks_sealed", fanOut.blocksSealedMetric, metricsBucketSeconds);
+			context.registerMetric("fanout_messages_overflowed", fanOut.overflowMetric, metricsBucketSeconds);
+			context.registerMetric("fanout_keys", new IMetric() {
+				@Override
+				public Object getValueAndReset() {
+					return fanOut.getKeyCount();
+				}
+			}, metricsBucketSeconds);
+		}
+		if (blockJournal != null) {
+			context.registerMetric("journal_backlog_bytes", new IMetric() {
+				@Override
+				public Object getValueAndReset() {
+					return blockJournal.getBacklogBytes();
+				}
+			}, metricsBucketSeconds);
+		}
 		super.prepare(conf, context);
 		if (LogSetting.LOG_BATCH) {
 			logger.info("p" + partitionIndex + ": prepare End");
 		}
 	}
 
+	// sets up the partition without a Storm context, so benchmarks can drive the aggregator with stand-in stores
+	void prepare(int partitionIndex, BlockStateStore stateStore) {
+		this.partitionIndex = partitionIndex;
+		batchInitLatencyMetric = new ReducedMetric(new MeanReducer());
+		messagesMetric = new CountMetric();
+		messageBytesMetric = new CountMetric();
+		skippedMessagesMetric = new CountMetric();
+		blocksSealedMetric = new CountMetric();
+		blocksCarriedMetric = new CountMetric();
+		uploadsSkippedMetric = new CountMetric();
+		blockFillRatioMetric = new ReducedMetric(new MeanReducer());
+		uploadLatencyMetric = new LatencyHistogram();
+		commitLatencyMetric = new LatencyHistogram();
+		stateGetLatencyMetric = new LatencyHistogram();
+		stateSetLatencyMetric = new LatencyHistogram();
+		replaysMetric = new CountMetric();
+		if (GroupCommitBlockStateStore.isEnabled()) {
+			groupCommitStore = new GroupCommitBlockStateStore(stateStore);
+			stateStore = groupCommitStore;
+		}
+		// the set latency of a grouped write includes the wait for the other partitions
+		this.stateStore = new TimedBlockStateStore(stateStore, stateGetLatencyMetric, stateSetLatencyMetric);
+		txidKey = String.format(txidKeyFormatter, partitionIndex);
+		firstblockKey = String.format(firstblockKeyFormatter, partitionIndex);
+		lastblockKey = String.format(lastblockKeyFormatter, partitionIndex);
+		watermarkKey = String.format(watermarkKeyFormatter, partitionIndex);
+		if (BlockSizeController.isEnabled()) {
+			blockSizeController = new BlockSizeController(partitionIndex, BlockState.getTargetBlockBytes());
+		}
+		if (BlockJournal.isEnabled()) {
+			// blocks the previous run of the worker left in the journal are uploaded before its state is cleared or checked
+			blockJournal = new BlockJournal(this, uploadLatencyMetric);
+		}
+		if (BlobWriter.isWarmRestart()) {
+			// the cursors stay, the journal of this run starts empty
+			BlockState.verifyLastBlock(this);
+			if (blockJournal != null) {
+				this.stateStore.setJournalWatermark(this, 0);
+			}
+		} else {
+			this.stateStore.clearState(this);
+		}
+		blockList = new BlockList();
+		blockUploader = new BlockUploader(partitionIndex, uploadLatencyMetric, blockJournal, blockSizeController);
+		blockEncoder = BlockEncoder.create(partitionIndex);
+		if (BlobIndex.isEnabled()) {
+			blobIndexWriter = new BlobIndexWriter();
+		}
+		if (BlobFanOut.isEnabled()) {
+			fanOut = new BlobFanOut(partitionIndex, uploadLatencyMetric);
+		}
+		if (blockJournal != null) {
+			blockJournal.start();
+		}
+	}
+
 	public BlockState init(Object batchId, TridentCollector collector) {
 		if (LogSetting.LOG_BATCH) {
 			logger.info("p" + partitionIndex + ": init End");
@@ -76,8 +226,40 @@ public class ByteAggregator extends BaseAggregator<BlockState> {
 			throw new FailedException("Error configuring ByteAggregator");
 		}
 		msgCount = 0;
+		msgBytes = 0;
+		blockBytes = 0;
 		needPersist = false;
+		// blocks staged by a failed attempt are uploaded again by this one, unless they reached the blob with the same bytes.
+		// The uploads of a txid are kept after it completed, as the txid is still replayed when the batch fails later on
+		if (blockUploader.reset() || txid != uploadsTxid) {
+			blockList.forgetUploads();
+		}
+		uploadsTxid = txid;
+		blockList.discardStaged();
+		if (blockJournal != null) {
+			blockJournal.rollback();
+		}
+		// with the uploads of the failed attempt done, its open block goes back to the pool; a first block that continued
+		// a committed prefix is handed to the replay as the carried block, which continues it after the same prefix
+		// without reading the prefix back from the blob while its buffer is still held
+		if (openState != null) {
+			Block first = openState.firstBlockPrefixSize > 0 ? openState.firstBlock : null;
+			if (openState.currentBlock != first) {
+				openState.currentBlock.release();
+			}
+			carriedBlock = first;
+			openState = null;
+		}
+		long initStart = System.nanoTime();
 		BlockState blockState = new BlockState(this);
+		batchInitLatencyMetric.update((System.nanoTime() - initStart) / 1000000.0);
+		openState = blockState;
+		if (blobIndexWriter != null) {
+			blobIndexWriter.begin(blockState.currentBlock, partitionIndex);
+		}
+		if (fanOut != null) {
+			fanOut.begin(txid, blockState.batchPeriod);
+		}
 		if (LogSetting.LOG_BATCH) {
 			logger.info(blockState.partitionTxidLogStr + "init End");
 		}
@@ -88,19 +270,32 @@ public class ByteAggregator extends BaseAggregator<BlockState> {
 		if (LogSetting.LOG_MESSAGE) {
 			logger.info(blockState.partitionTxidLogStr + "aggregate Begin");
 		}
-		String tupleStr = tuple.getString(0);
-		if (tupleStr != null && tupleStr.length() > 0) {
+		Object value = tuple.getValue(0);
+		// with BinaryEventDataScheme the event body arrives as byte[] and is copied into the block buffer as it is;
+		// a String body is encoded once. The same bytes are used for the size checks and the copy,
+		// the block encoder adds the record delimiter or framing
+		byte[] msg = value instanceof byte[] ? (byte[]) value : value == null ? null : value.toString().getBytes(StandardCharsets.UTF_8);
+		if (msg != null && msg.length > 0) {
 			if (LogSetting.LOG_MESSAGE) {
-				logger.info(blockState.partitionTxidLogStr + "Message= " + tupleStr);
+				logger.info(blockState.partitionTxidLogStr + "Message= " + new String(msg, StandardCharsets.UTF_8));
 			}
-			String msg = tupleStr + "\r\n";
-			if (Block.isMessageSizeWithnLimit(msg)) {
-				if (blockState.currentBlock.willMessageFitCurrentBlock(msg)) {
+			if (fanOut != null && fanOut.add(msg)) {
+				// the message went to the blob of its key
+				msgCount++;
+				msgBytes += msg.length;
+			} else if (blockState.currentBlock.isMessageSizeWithnLimit(msg)) {
+				if (!blockState.isBlockComplete(blockState.currentBlock) && blockState.currentBlock.willMessageFitCurrentBlock(msg)) {
 					blockState.currentBlock.addData(msg);
 				} else {
-					// since the new msg will not fit into the current block, we will upload the current block,
-					// and then get the next block, and add the new msg to the next block
-					blockState.currentBlock.upload(partitionIndex);
+					// since the current block reached its target size or deadline, or the new msg will not fit into it,
+					// we will upload the current block, and then get the next block, and add the new msg to the next block
+					if (blockState.currentBlock.hasUncommittedData()) {
+						upload(blockState.currentBlock);
+					} else {
+						// a carried block without new messages is already committed
+						indexSealed(blockState.currentBlock);
+						blockState.currentBlock.release();
+					}
 					needPersist = true;
 					if (LogSetting.LOG_MESSAGEROLLOVER) {
 						logger.info(blockState.partitionTxidLogStr + " Message does not fit current block; rollover to next block");
@@ -109,9 +304,12 @@ public class ByteAggregator extends BaseAggregator<BlockState> {
 					blockState.currentBlock.addData(msg);
 				}
 				msgCount++;
+				msgBytes += msg.length;
 			} else {
 				// message size is not within the limit, skip the message and log it.
-				logger.error(blockState.partitionTxidLogStr + "message skiped: message size exceeds the size limit, message= " + tupleStr);
+				skippedMessagesMetric.incr();
+				logger.error(blockState.partitionTxidLogStr + "message skiped: message size exceeds the size limit, message= "
+						+ (value instanceof byte[] ? msg.length + " bytes" : value));
 			}
 		}
 		if (LogSetting.LOG_MESSAGE) {
@@ -123,17 +321,114 @@ public class ByteAggregator extends BaseAggregator<BlockState> {
 		if (LogSetting.LOG_BATCH) {
 			logger.info(blockState.partitionTxidLogStr + "complete Begin");
 		}
-		if (blockState.currentBlock.blockdataSize > 0) {
-			blockState.currentBlock.upload(partitionIndex);
+		Block block = blockState.currentBlock;
+		if (block.hasUncommittedData()) {
+			if (blockState.shouldCarryBlock(block)) {
+				// a small block is committed as it is and filled further by the next batch
+				blockBytes += block.blockdataSize - block.committedSize;
+				if (!block.uploadPartial(partitionIndex, blockList, blockUploader)) {
+					uploadsSkippedMetric.incr();
+				}
+				blockState.carryCurrentBlock = true;
+				blocksCarriedMetric.incr();
+			} else {
+				upload(block);
+			}
 			needPersist = true;
+		} else if (block.committedSize > 0) {
+			// a carried block that got no new messages is sealed as it is once it reaches its deadline
+			blockState.carryCurrentBlock = blockState.shouldCarryBlock(block);
+			if (!blockState.carryCurrentBlock) {
+				indexSealed(block);
+				block.release();
+				needPersist = true;
+			}
+		}
+		if (blockJournal != null) {
+			// the batch is done once its blocks are on the local disk, the drainer uploads and commits them
+			long commitStart = System.nanoTime();
+			if (blobIndexWriter != null) {
+				blobIndexWriter.write(block, partitionIndex, blockJournal);
+			}
+			blockJournal.commit(txid);
+			commitLatencyMetric.updateSince(commitStart);
+		} else {
+			// wait for the background uploads, then one commitBlockList per blob touched by the batch,
+			// all before the block cursor is persisted
+			blockUploader.drain();
+			long commitStart = System.nanoTime();
+			blockList.commit();
+			commitLatencyMetric.updateSince(commitStart);
+			// the indexes of blobs the partition moved past are written once their data is committed
+			if (blobIndexWriter != null) {
+				blobIndexWriter.write(block, partitionIndex, null);
+			}
+		}
+		if (fanOut != null) {
+			// the key blobs are committed before the batch completes, a replay rewrites the blocks of its txid
+			long commitStart = System.nanoTime();
+			fanOut.complete();
+			commitLatencyMetric.updateSince(commitStart);
 		}
 		if (needPersist) {
 			blockState.persistState();
+		} else if (groupCommitStore != null) {
+			groupCommitStore.skipState(txid);
+		}
+		if (blobIndexWriter != null) {
+			blobIndexWriter.complete();
+		}
+		messagesMetric.incrBy(msgCount);
+		messageBytesMetric.incrBy(msgBytes);
+		if (blockSizeController != null) {
+			blockSizeController.batchCompleted(blockBytes, block, System.currentTimeMillis());
 		}
+		carriedBlock = blockState.carryCurrentBlock ? block : null;
+		openState = null;
 		collector.emit(new Values(msgCount));
 		if (LogSetting.LOG_BATCH) {
 			logger.info(blockState.partitionTxidLogStr + "message count = " + msgCount);
 			logger.info(blockState.partitionTxidLogStr + "complete End");
 		}
 	}
+
+	private void upload(Block block) {
+		blockBytes += block.blockdataSize - block.committedSize;
+		if (!block.upload(partitionIndex, blockList, blockUploader)) {
+			uploadsSkippedMetric.incr();
+		}
+		indexSealed(block);
+		blocksSealedMetric.incr();
+		blockFillRatioMetric.update((double) block.blockdataSize / Block.getMaxBlockBytes());
+	}
+
+	private void indexSealed(Block block) {
+		if (blobIndexWriter != null) {
+			blobIndexWriter.sealed(block.getBlobname(partitionIndex), block);
+		}
+	}
+
+	@Override
+	public void cleanup() {
+		if (blockUploader != null) {
+			blockUploader.shutdown();
+		}
+		if (blockJournal != null) {
+			blockJournal.shutdown();
+		}
+		if (fanOut != null) {
+			fanOut.shutdown();
+		}
+		if (carriedBlock != null) {
+			carriedBlock.release();
+			carriedBlock = null;
+		}
+		if (blockEncoder != null) {
+			blockEncoder.end();
+		}
+		if (groupCommitStore != null) {
+			groupCommitStore.close();
+		}
+		super.cleanup();
+	}
 }
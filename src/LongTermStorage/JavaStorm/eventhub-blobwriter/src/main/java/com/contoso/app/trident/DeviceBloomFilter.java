@@ -0,0 +1,83 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.nio.charset.StandardCharsets;
+
+// Bloom filter of the device ids in a block. The bit positions are derived from a 64-bit FNV-1a hash of the id's UTF-8
+// bytes by double hashing, so BlobIndexReader finds the bits BlobIndexWriter set without sharing anything but the bits.
+public class DeviceBloomFilter {
+	private final long[] bits;
+	private final int hashes;
+
+	public DeviceBloomFilter(int bitCount, int hashes) {
+		this(new long[(bitCount + 63) / 64], hashes);
+	}
+
+	DeviceBloomFilter(long[] bits, int hashes) {
+		this.bits = bits;
+		this.hashes = hashes;
+	}
+
+	public void add(byte[] data, int offset, int length) {
+		long hash = hash(data, offset, length);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long bitCount = (long) bits.length * 64;
+		for (int i = 0; i < hashes; i++) {
+			int bit = (int) (((h1 + i * h2) & 0xffffffffL) % bitCount);
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	// false when the device is certainly not in the block
+	public boolean mightContain(String deviceId) {
+		byte[] data = deviceId.getBytes(StandardCharsets.UTF_8);
+		long hash = hash(data, 0, data.length);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long bitCount = (long) bits.length * 64;
+		for (int i = 0; i < hashes; i++) {
+			int bit = (int) (((h1 + i * h2) & 0xffffffffL) % bitCount);
+			if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean isEmpty() {
+		for (long word : bits) {
+			if (word != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	long[] getBits() {
+		return bits;
+	}
+
+	int getHashes() {
+		return hashes;
+	}
+
+	public DeviceBloomFilter copy() {
+		return new DeviceBloomFilter(bits.clone(), hashes);
+	}
+
+	// FNV-1a, followed by the MurmurHash3 finalizer so ids that differ in their last character spread over all bits
+	private static long hash(byte[] data, int offset, int length) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = offset; i < offset + length; i++) {
+			hash ^= data[i] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
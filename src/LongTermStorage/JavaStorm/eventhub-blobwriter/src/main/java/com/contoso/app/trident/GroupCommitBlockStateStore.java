@@ -0,0 +1,185 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import backtype.storm.topology.FailedException;
+
+// Collects the setState requests of the partitions of a worker and writes them with one setStates call.
+// The first partition to arrive leads a group: it waits until every partition of the worker has joined or
+// storage.state.group.commit.window.ms has passed, writes the group, and wakes the others, which return or fail
+// with the group's result. A partition arriving while a group is being written starts the next one.
+// A partition with nothing to persist in a batch says so with skipState, so the group of that txid does not wait for it.
+// Every partition of the worker wraps the same kind of store, so the leader writes the group through its own.
+public class GroupCommitBlockStateStore implements BlockStateStore {
+	private static long windowMs = 0;
+	static {
+		String windowMsStr = ConfigProperties.getProperty("storage.state.group.commit.window.ms");
+		if (windowMsStr != null) {
+			long windowMsLong = Long.parseLong(windowMsStr.trim());
+			if (windowMsLong >= 0) {
+				windowMs = windowMsLong;
+			}
+		}
+	}
+	private static final Object lock = new Object();
+	// partitions of the worker that write through a group, and the group still open for requests, guarded by lock
+	private static int partitions = 0;
+	private static ArrayList<Request> open = null;
+	// partitions that skip persisting the state of a txid, guarded by lock
+	private static final HashMap<Long, Integer> idle = new HashMap<Long, Integer>();
+
+	private final BlockStateStore store;
+	private final long groupWindowMs;
+
+	public GroupCommitBlockStateStore(BlockStateStore store) {
+		this(store, windowMs);
+	}
+
+	GroupCommitBlockStateStore(BlockStateStore store, long groupWindowMs) {
+		this.store = store;
+		this.groupWindowMs = groupWindowMs;
+		synchronized (lock) {
+			partitions++;
+		}
+	}
+
+	public static boolean isEnabled() {
+		return windowMs > 0;
+	}
+
+	@Override
+	public String[] getState(ByteAggregator byteAggregator) {
+		return store.getState(byteAggregator);
+	}
+
+	@Override
+	public void setState(BlockState blockState) {
+		Request request = new Request(blockState);
+		long txid = blockState.byteAggregator.txid;
+		ArrayList<Request> group = null;
+		try {
+			synchronized (lock) {
+				if (open == null) {
+					open = new ArrayList<Request>();
+					group = open;
+				}
+				open.add(request);
+				if (group == null) {
+					if (open.size() + getIdle(txid) >= partitions) {
+						lock.notifyAll();
+					}
+					while (!request.done) {
+						lock.wait();
+					}
+				} else {
+					long deadline = System.currentTimeMillis() + groupWindowMs;
+					long remaining = groupWindowMs;
+					while (group.size() + getIdle(txid) < partitions && remaining > 0) {
+						lock.wait(remaining);
+						remaining = deadline - System.currentTimeMillis();
+					}
+					open = null;
+					// skips of this txid and earlier ones are not waited for any more
+					for (Iterator<Long> i = idle.keySet().iterator(); i.hasNext();) {
+						if (i.next() <= txid) {
+							i.remove();
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FailedException("p" + blockState.byteAggregator.partitionIndex + ": interrupted while committing state");
+		}
+		if (group != null) {
+			write(group);
+		}
+		if (request.failure != null) {
+			throw new FailedException(request.failure.getMessage(), request.failure);
+		}
+	}
+
+	// the partition has no state to persist for txid, the group of txid is written without it
+	public void skipState(long txid) {
+		synchronized (lock) {
+			int count = getIdle(txid) + 1;
+			if (count >= partitions) {
+				// no partition persists this txid
+				idle.remove(txid);
+			} else {
+				idle.put(txid, count);
+			}
+			lock.notifyAll();
+		}
+	}
+
+	// guarded by lock
+	private static int getIdle(long txid) {
+		Integer count = idle.get(txid);
+		return count == null ? 0 : count;
+	}
+
+	// writes the group outside the lock, so the next group can fill meanwhile
+	private void write(ArrayList<Request> group) {
+		List<BlockState> blockStates = new ArrayList<BlockState>(group.size());
+		for (Request request : group) {
+			blockStates.add(request.blockState);
+		}
+		RuntimeException failure = null;
+		try {
+			store.setStates(blockStates);
+		} catch (RuntimeException e) {
+			failure = e;
+		}
+		synchronized (lock) {
+			for (Request request : group) {
+				request.failure = failure;
+				request.done = true;
+			}
+			lock.notifyAll();
+		}
+	}
+
+	@Override
+	public void setStates(List<BlockState> blockStates) {
+		store.setStates(blockStates);
+	}
+
+	@Override
+	public void clearState(ByteAggregator byteAggregator) {
+		store.clearState(byteAggregator);
+	}
+
+	@Override
+	public long getJournalWatermark(ByteAggregator byteAggregator) {
+		return store.getJournalWatermark(byteAggregator);
+	}
+
+	@Override
+	public void setJournalWatermark(ByteAggregator byteAggregator, long watermark) {
+		store.setJournalWatermark(byteAggregator, watermark);
+	}
+
+	// a partition is removed from the worker's count when its aggregator is cleaned up
+	public void close() {
+		synchronized (lock) {
+			partitions--;
+			lock.notifyAll();
+		}
+	}
+
+	private static class Request {
+		final BlockState blockState;
+		// guarded by lock
+		boolean done;
+		RuntimeException failure;
+
+		Request(BlockState blockState) {
+			this.blockState = blockState;
+		}
+	}
+}
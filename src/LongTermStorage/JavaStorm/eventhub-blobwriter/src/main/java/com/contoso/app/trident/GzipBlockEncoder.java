@@ -0,0 +1,71 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Compresses each block of delimited messages into its own gzip member. A blob is then a valid multi-member
+// gzip file that standard tools read as a whole, and any single block can still be downloaded and
+// decompressed alone.
+public class GzipBlockEncoder extends BlockEncoder {
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+	private static final int TRAILER_SIZE = 8;
+
+	private final BlockDeflater deflater;
+	private final CRC32 crc = new CRC32();
+
+	public GzipBlockEncoder(int level) {
+		deflater = new BlockDeflater(level);
+	}
+
+	@Override
+	public void begin(Block block, int offset, int capacity) {
+		super.begin(block, offset, capacity);
+		crc.reset();
+		System.arraycopy(HEADER, 0, buffer, position, HEADER.length);
+		position += HEADER.length;
+		deflater.begin(buffer, position, capacity);
+	}
+
+	@Override
+	public int maxFrameSize(int length) {
+		return HEADER.length + BlockDeflater.maxCompressedSize(length + RECORD_DELIMITER.length) + TRAILER_SIZE;
+	}
+
+	@Override
+	public boolean willFit(int length) {
+		boolean result = deflater.willFit(length + RECORD_DELIMITER.length, TRAILER_SIZE);
+		position = deflater.position();
+		return result;
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) {
+		crc.update(data, offset, length);
+		crc.update(RECORD_DELIMITER, 0, RECORD_DELIMITER.length);
+		deflater.write(data, offset, length);
+		deflater.write(RECORD_DELIMITER, 0, RECORD_DELIMITER.length);
+		position = deflater.position();
+	}
+
+	@Override
+	public int finish() {
+		position = deflater.finish();
+		writeInt((int) crc.getValue());
+		writeInt((int) deflater.bytesRead());
+		return position;
+	}
+
+	@Override
+	public void end() {
+		super.end();
+		deflater.end();
+	}
+
+	private void writeInt(int value) {
+		buffer[position++] = (byte) value;
+		buffer[position++] = (byte) (value >> 8);
+		buffer[position++] = (byte) (value >> 16);
+		buffer[position++] = (byte) (value >> 24);
+	}
+}
@@ -0,0 +1,48 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps the partition cursors in the worker's memory, for tests and benchmarks; state is lost with the worker.
+public class InMemoryBlockStateStore implements BlockStateStore {
+	private final ConcurrentHashMap<String, String[]> states = new ConcurrentHashMap<String, String[]>();
+	private final ConcurrentHashMap<String, Long> watermarks = new ConcurrentHashMap<String, Long>();
+
+	@Override
+	public String[] getState(ByteAggregator byteAggregator) {
+		String[] state = states.get(byteAggregator.txidKey);
+		return state == null ? new String[3] : state.clone();
+	}
+
+	@Override
+	public void setState(BlockState blockState) {
+		String[] state = new String[] { String.valueOf(blockState.byteAggregator.txid), blockState.getFirstBlockStateStr(),
+				blockState.getLastBlockStateStr() };
+		states.put(blockState.byteAggregator.txidKey, state);
+	}
+
+	@Override
+	public void setStates(List<BlockState> blockStates) {
+		for (BlockState blockState : blockStates) {
+			setState(blockState);
+		}
+	}
+
+	@Override
+	public void clearState(ByteAggregator byteAggregator) {
+		states.remove(byteAggregator.txidKey);
+		watermarks.remove(byteAggregator.txidKey);
+	}
+
+	@Override
+	public long getJournalWatermark(ByteAggregator byteAggregator) {
+		Long watermark = watermarks.get(byteAggregator.txidKey);
+		return watermark == null ? 0 : watermark;
+	}
+
+	@Override
+	public void setJournalWatermark(ByteAggregator byteAggregator, long watermark) {
+		watermarks.put(byteAggregator.txidKey, watermark);
+	}
+}
@@ -0,0 +1,79 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import backtype.storm.metric.api.IMetric;
+
+// Storm metric counting latencies in fixed millisecond buckets. update() may be called from any thread.
+// Each report holds the count, mean, max, p50/p90/p99 (upper bound of the bucket the percentile falls into)
+// and the count of every non-empty bucket, keyed "le_<bound>ms".
+public class LatencyHistogram implements IMetric {
+	private static final long[] BOUNDS_MS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, Long.MAX_VALUE };
+
+	private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_MS.length);
+	private final AtomicLong sumMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	// records the time since startNanos, taken from System.nanoTime()
+	public void updateSince(long startNanos) {
+		update((System.nanoTime() - startNanos) / 1000);
+	}
+
+	public void update(long micros) {
+		int bucket = 0;
+		while (bucket < BOUNDS_MS.length - 1 && micros > BOUNDS_MS[bucket] * 1000) {
+			bucket++;
+		}
+		counts.incrementAndGet(bucket);
+		sumMicros.addAndGet(micros);
+		long max = maxMicros.get();
+		while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+			max = maxMicros.get();
+		}
+	}
+
+	@Override
+	public Object getValueAndReset() {
+		long[] snapshot = new long[BOUNDS_MS.length];
+		long count = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = counts.getAndSet(i, 0);
+			count += snapshot[i];
+		}
+		long sum = sumMicros.getAndSet(0);
+		long max = maxMicros.getAndSet(0);
+		Map<String, Object> value = new LinkedHashMap<String, Object>();
+		value.put("count", count);
+		if (count == 0) {
+			return value;
+		}
+		value.put("mean_ms", sum / 1000.0 / count);
+		value.put("max_ms", max / 1000.0);
+		value.put("p50_ms", percentile(snapshot, count, 0.50));
+		value.put("p90_ms", percentile(snapshot, count, 0.90));
+		value.put("p99_ms", percentile(snapshot, count, 0.99));
+		for (int i = 0; i < snapshot.length; i++) {
+			if (snapshot[i] > 0) {
+				value.put(BOUNDS_MS[i] == Long.MAX_VALUE ? "gt_" + BOUNDS_MS[i - 1] + "ms" : "le_" + BOUNDS_MS[i] + "ms", snapshot[i]);
+			}
+		}
+		return value;
+	}
+
+	private static long percentile(long[] snapshot, long count, double fraction) {
+		long rank = (long) Math.ceil(count * fraction);
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				// the open-ended bucket reports the last finite bound
+				return BOUNDS_MS[i] == Long.MAX_VALUE ? BOUNDS_MS[i - 1] : BOUNDS_MS[i];
+			}
+		}
+		return BOUNDS_MS[BOUNDS_MS.length - 2];
+	}
+}
@@ -0,0 +1,278 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.topology.FailedException;
+
+// Keeps the cursors of each partition in an append-only file on the local disk, for single-node runs without
+// an external store. Every setState appends one line "txid firstblock lastblock crc" and forces it to disk;
+// getState reads the last line whose CRC matches, so a record torn by a crash is ignored.
+// Once the file grows past compactBytes it is rewritten with the last record only.
+public class LocalBlockStateStore implements BlockStateStore {
+	private static final Logger logger = (Logger) LoggerFactory.getLogger(LocalBlockStateStore.class);
+	private static String directory = "state";
+	private static long compactBytes = 1048576;
+	private static boolean fsync = true;
+	static {
+		String directoryStr = ConfigProperties.getProperty("storage.state.local.dir");
+		if (directoryStr != null) {
+			directory = directoryStr.trim();
+		}
+		String compactBytesStr = ConfigProperties.getProperty("storage.state.local.compact.bytes");
+		if (compactBytesStr != null) {
+			long compactBytesLong = Long.parseLong(compactBytesStr);
+			if (compactBytesLong > 0) {
+				compactBytes = compactBytesLong;
+			}
+		}
+		String fsyncStr = ConfigProperties.getProperty("storage.state.local.fsync");
+		if (fsyncStr != null) {
+			fsync = Boolean.parseBoolean(fsyncStr.trim());
+		}
+	}
+
+	// one log per partition; a partition is only used by the thread running its batches
+	private final ConcurrentHashMap<Integer, PartitionLog> logs = new ConcurrentHashMap<Integer, PartitionLog>();
+
+	@Override
+	public String[] getState(ByteAggregator byteAggregator) {
+		String[] state = getLog(byteAggregator).state.clone();
+		if (LogSetting.LOG_STATESTORE) {
+			logger.info("getState End returns " + state[0] + ", " + state[1] + ", " + state[2]);
+		}
+		return state;
+	}
+
+	@Override
+	public void setState(BlockState blockState) {
+		PartitionLog log = getLog(blockState.byteAggregator);
+		String[] state = new String[] { String.valueOf(blockState.byteAggregator.txid), blockState.getFirstBlockStateStr(),
+				blockState.getLastBlockStateStr() };
+		if (LogSetting.LOG_STATESTORE) {
+			logger.info(blockState.partitionTxidLogStr + "append " + state[0] + ", " + state[1] + ", " + state[2]);
+		}
+		try {
+			if (log.size >= compactBytes) {
+				log.compact(state);
+			} else {
+				log.append(state);
+			}
+		} catch (IOException e) {
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	// every partition has a log file of its own, so each is appended and forced in turn
+	@Override
+	public void setStates(List<BlockState> blockStates) {
+		for (BlockState blockState : blockStates) {
+			setState(blockState);
+		}
+	}
+
+	@Override
+	public void clearState(ByteAggregator byteAggregator) {
+		try {
+			getLog(byteAggregator).truncate();
+			Files.deleteIfExists(getWatermarkFile(byteAggregator).toPath());
+		} catch (IOException e) {
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	@Override
+	public long getJournalWatermark(ByteAggregator byteAggregator) {
+		File file = getWatermarkFile(byteAggregator);
+		if (!file.exists()) {
+			return 0;
+		}
+		try {
+			String[] record = PartitionLog.decode(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+			return record == null ? 0 : Long.parseLong(record[0]);
+		} catch (IOException e) {
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	// the watermark is written by the partition's journal drainer, so it is kept in a file of its own and replaced as a whole
+	@Override
+	public void setJournalWatermark(ByteAggregator byteAggregator, long watermark) {
+		File file = getWatermarkFile(byteAggregator);
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("can't create state directory " + parent);
+			}
+			try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+				out.setLength(0);
+				out.write(PartitionLog.encode(new String[] { String.valueOf(watermark), "", "" }));
+				if (fsync) {
+					out.getChannel().force(true);
+				}
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	private static File getWatermarkFile(ByteAggregator byteAggregator) {
+		return new File(directory, String.format("partition_%05d.watermark", byteAggregator.partitionIndex));
+	}
+
+	private PartitionLog getLog(ByteAggregator byteAggregator) {
+		PartitionLog log = logs.get(byteAggregator.partitionIndex);
+		if (log == null) {
+			try {
+				log = new PartitionLog(new File(directory, String.format("partition_%05d.state", byteAggregator.partitionIndex)));
+			} catch (IOException e) {
+				throw new FailedException(e.getMessage());
+			}
+			PartitionLog existing = logs.putIfAbsent(byteAggregator.partitionIndex, log);
+			if (existing != null) {
+				log.close();
+				log = existing;
+			}
+		}
+		return log;
+	}
+
+	private static class PartitionLog {
+		private final File file;
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		private long size;
+		private String[] state = new String[3];
+
+		PartitionLog(File file) throws IOException {
+			this.file = file;
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("can't create state directory " + parent);
+			}
+			open();
+			recover();
+		}
+
+		private void open() throws IOException {
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+		}
+
+		// reads the last intact record and cuts off anything after it
+		private void recover() throws IOException {
+			ByteBuffer bytes = ByteBuffer.allocate((int) channel.size());
+			int read = 0;
+			while (bytes.hasRemaining() && read >= 0) {
+				read = channel.read(bytes, bytes.position());
+			}
+			String content = new String(bytes.array(), 0, bytes.position(), StandardCharsets.UTF_8);
+			long validSize = 0;
+			int lineStart = 0;
+			int lineEnd;
+			while ((lineEnd = content.indexOf('\n', lineStart)) >= 0) {
+				String line = content.substring(lineStart, lineEnd);
+				String[] record = decode(line);
+				if (record == null) {
+					break;
+				}
+				state = record;
+				lineStart = lineEnd + 1;
+				validSize += line.getBytes(StandardCharsets.UTF_8).length + 1;
+			}
+			channel.truncate(validSize);
+			size = validSize;
+		}
+
+		void append(String[] record) throws IOException {
+			ByteBuffer bytes = ByteBuffer.wrap(encode(record));
+			while (bytes.hasRemaining()) {
+				channel.write(bytes, size + bytes.position());
+			}
+			if (fsync) {
+				channel.force(false);
+			}
+			size += bytes.limit();
+			state = record;
+		}
+
+		// writes the record to a new file and renames it over the log
+		void compact(String[] record) throws IOException {
+			File compacted = new File(file.getPath() + ".tmp");
+			try (RandomAccessFile out = new RandomAccessFile(compacted, "rw")) {
+				out.setLength(0);
+				out.write(encode(record));
+				if (fsync) {
+					out.getChannel().force(true);
+				}
+			}
+			close();
+			if (!compacted.renameTo(file)) {
+				// renameTo does not replace an existing file on every platform
+				if (!file.delete() || !compacted.renameTo(file)) {
+					open();
+					throw new IOException("can't replace " + file + " with " + compacted);
+				}
+			}
+			open();
+			size = channel.size();
+			state = record;
+		}
+
+		void truncate() throws IOException {
+			channel.truncate(0);
+			if (fsync) {
+				channel.force(false);
+			}
+			size = 0;
+			state = new String[3];
+		}
+
+		void close() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				logger.error("failed to close " + file + ": " + e.getMessage());
+			}
+		}
+
+		private static byte[] encode(String[] record) {
+			String line = record[0] + " " + record[1] + " " + record[2];
+			CRC32 crc = new CRC32();
+			byte[] lineBytes = line.getBytes(StandardCharsets.UTF_8);
+			crc.update(lineBytes, 0, lineBytes.length);
+			return (line + " " + Long.toHexString(crc.getValue()) + "\n").getBytes(StandardCharsets.UTF_8);
+		}
+
+		// returns null for a torn or corrupted record
+		private static String[] decode(String line) {
+			String[] fields = line.split(" ");
+			if (fields.length != 4) {
+				return null;
+			}
+			String content = fields[0] + " " + fields[1] + " " + fields[2];
+			CRC32 crc = new CRC32();
+			byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+			crc.update(contentBytes, 0, contentBytes.length);
+			if (!Long.toHexString(crc.getValue()).equals(fields[3])) {
+				return null;
+			}
+			return new String[] { fields[0], fields[1], fields[2] };
+		}
+	}
+}
@@ -0,0 +1,478 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.topology.FailedException;
+
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+
+// Writes blobs as files below storage.blob.local.dir/<container>, for offline runs and on-prem archives on local disks or NFS.
+// An uploaded block is written to a staging file; commitBlockList appends the staged blocks to the blob file as segments
+// and forces the blob file and its block list to disk once per commit, not once per block.
+// Staging files and block lists live under .blocks/<blobname>/, so the container tree only holds the blob files.
+// Like the block blob service, a commit may keep a prefix of the committed blocks and replace the rest. The blocks are
+// written and forced before the new block list replaces the old one, and only then is the blob file cut to its new end,
+// so bytes appended by a commit that did not complete are beyond the list. A commit that overwrites committed blocks
+// first writes its list to a commit record, and a stopped one is redone from its staged blocks when the list is read next.
+// copyBlock stages a block straight from the range of the source blob file, the way the service copies it server side,
+// and copyBlob copies the committed part of the source blob file along with its block list.
+public class LocalFileBlobSink implements BlobSink {
+	private static final Logger logger = (Logger) LoggerFactory.getLogger(LocalFileBlobSink.class);
+	private static final String BLOCKS_DIR = ".blocks";
+	private static final int CACHED_BLOCK_LISTS = 1024;
+	private static String directory = "blobs";
+	private static boolean fsync = true;
+	static {
+		String directoryStr = ConfigProperties.getProperty("storage.blob.local.dir");
+		if (directoryStr != null) {
+			directory = directoryStr.trim();
+		}
+		String fsyncStr = ConfigProperties.getProperty("storage.blob.local.fsync");
+		if (fsyncStr != null) {
+			fsync = Boolean.parseBoolean(fsyncStr.trim());
+		}
+	}
+
+	private final File root;
+	// committed block lists of the blobs this worker touched last, guarded by this; a list dropped from the cache is read
+	// back from its file, which only happens for blobs the partitions rolled over from
+	@SuppressWarnings("serial")
+	private final LinkedHashMap<String, ArrayList<Segment>> committedBlocks = new LinkedHashMap<String, ArrayList<Segment>>(16,
+			0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ArrayList<Segment>> eldest) {
+			return size() > CACHED_BLOCK_LISTS;
+		}
+	};
+
+	public LocalFileBlobSink() {
+		this(new File(directory, ConfigProperties.getProperty("storage.blob.account.container") + BlobWriter.getContainerSuffix()));
+	}
+
+	static String getDirectory() {
+		return directory;
+	}
+
+	public LocalFileBlobSink(File root) {
+		this.root = root;
+		if (!root.isDirectory() && !root.mkdirs()) {
+			throw new FailedException("can't create " + root);
+		}
+	}
+
+	@Override
+	public void uploadBlock(String blobname, String blockIdStr, byte[] data, int length) {
+		if (LogSetting.LOG_BLOBWRITER) {
+			logger.info("uploadBlock blobname = " + blobname + ", blockIdStr = " + blockIdStr);
+		}
+		File staged = getStagedFile(blobname, BlockList.toBlockEntryId(blockIdStr));
+		try {
+			redoStoppedCommit(blobname);
+			mkdirs(staged.getParentFile());
+			try (FileChannel channel = FileChannel.open(staged.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		} catch (IOException e) {
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	@Override
+	public synchronized void commitBlockList(String blobname, List<BlockEntry> blocks) {
+		if (LogSetting.LOG_BLOBWRITER) {
+			logger.info("commitBlockList blobname = " + blobname + ", number of blocks = " + blocks.size());
+		}
+		try {
+			ArrayList<Segment> committed = getCommittedBlocks(blobname);
+			// blocks before keep are already in the blob file, the others are appended from their staging files
+			int keep = 0;
+			long keepSize = 0;
+			while (keep < blocks.size() && keep < committed.size()) {
+				BlockEntry block = blocks.get(keep);
+				if (block.getSearchMode() == BlockSearchMode.UNCOMMITTED || !block.getId().equals(committed.get(keep).id)) {
+					break;
+				}
+				// like the block blob service, the latest version of a block is the uncommitted one when there is one
+				if (block.getSearchMode() == BlockSearchMode.LATEST && getStagedFile(blobname, block.getId()).isFile()) {
+					break;
+				}
+				keepSize += committed.get(keep).length;
+				keep++;
+			}
+			ArrayList<Segment> segments = new ArrayList<Segment>(committed.subList(0, keep));
+			for (int i = keep; i < blocks.size(); i++) {
+				String id = blocks.get(i).getId();
+				File staged = getStagedFile(blobname, id);
+				if (blocks.get(i).getSearchMode() == BlockSearchMode.COMMITTED || !staged.isFile()) {
+					throw new FailedException("block " + id + " of " + blobname + " is neither committed at position " + i + " nor staged");
+				}
+				segments.add(new Segment(id, staged.length()));
+			}
+			if (keep < committed.size()) {
+				// the blocks after keep are overwritten, from here on a crash is redone from the commit record
+				writeCommitRecord(blobname, keep, segments);
+			}
+			apply(blobname, keep, keepSize, segments);
+		} catch (IOException e) {
+			// the blob file may no longer match the cached list, the next access reads the list back and redoes the commit
+			committedBlocks.remove(blobname);
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	// writes the staged blocks of segments behind the first keepSize bytes of the blob file and forces them, then replaces
+	// the block list, and only then cuts off what the blob file holds behind the new blocks
+	private void apply(String blobname, int keep, long keepSize, ArrayList<Segment> segments) throws IOException {
+		File blob = new File(root, blobname);
+		mkdirs(blob.getParentFile());
+		ArrayList<File> stagedFiles = new ArrayList<File>();
+		try (FileChannel out = FileChannel.open(blob.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			long position = keepSize;
+			for (int i = keep; i < segments.size(); i++) {
+				File staged = getStagedFile(blobname, segments.get(i).id);
+				try (FileChannel in = FileChannel.open(staged.toPath(), StandardOpenOption.READ)) {
+					long length = segments.get(i).length;
+					if (in.size() < length) {
+						throw new IOException("staged block " + segments.get(i).id + " of " + blobname + " is shorter than " + length + " bytes");
+					}
+					long copied = 0;
+					while (copied < length) {
+						copied += in.transferTo(copied, length - copied, out.position(position + copied));
+					}
+					position += length;
+				}
+				stagedFiles.add(staged);
+			}
+			if (fsync) {
+				out.force(false);
+			}
+			writeSegments(getBlockListFile(blobname), null, segments);
+			committedBlocks.put(blobname, segments);
+			Files.deleteIfExists(getCommitRecordFile(blobname).toPath());
+			out.truncate(position);
+		}
+		for (File staged : stagedFiles) {
+			if (!staged.delete()) {
+				logger.error("failed to delete " + staged);
+			}
+		}
+	}
+
+	// the new block list and the number of blocks it keeps, written once the staged blocks are on disk
+	private void writeCommitRecord(String blobname, int keep, List<Segment> segments) throws IOException {
+		if (fsync) {
+			for (Segment segment : segments.subList(keep, segments.size())) {
+				try (FileChannel staged = FileChannel.open(getStagedFile(blobname, segment.id).toPath(), StandardOpenOption.WRITE)) {
+					staged.force(false);
+				}
+			}
+		}
+		writeSegments(getCommitRecordFile(blobname), Integer.toString(keep), segments);
+	}
+
+	@Override
+	public synchronized void downloadBlock(String blobname, String blockIdStr, byte[] buffer, int length) {
+		String id = BlockList.toBlockEntryId(blockIdStr);
+		try {
+			long offset = 0;
+			for (Segment segment : getCommittedBlocks(blobname)) {
+				if (segment.id.equals(id)) {
+					if (segment.length < length) {
+						break;
+					}
+					try (FileChannel in = FileChannel.open(new File(root, blobname).toPath(), StandardOpenOption.READ)) {
+						ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+						while (target.hasRemaining()) {
+							if (in.read(target, offset + target.position()) < 0) {
+								throw new FailedException("blob file " + blobname + " is shorter than its block list");
+							}
+						}
+					}
+					return;
+				}
+				offset += segment.length;
+			}
+		} catch (IOException e) {
+			throw new FailedException(e.getMessage());
+		}
+		throw new FailedException("block " + blockIdStr + " of " + blobname + " is not committed with " + length + " bytes");
+	}
+
+	@Override
+	public synchronized List<BlockEntry> downloadBlockList(String blobname) {
+		try {
+			ArrayList<BlockEntry> blocks = new ArrayList<BlockEntry>();
+			for (Segment segment : getCommittedBlocks(blobname)) {
+				BlockEntry block = new BlockEntry(segment.id, BlockSearchMode.COMMITTED);
+				block.setSize(segment.length);
+				blocks.add(block);
+			}
+			return blocks;
+		} catch (IOException e) {
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	@Override
+	public void downloadRange(String blobname, long offset, byte[] buffer, int length) {
+		try (FileChannel in = FileChannel.open(new File(root, blobname).toPath(), StandardOpenOption.READ)) {
+			ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+			while (target.hasRemaining()) {
+				if (in.read(target, offset + target.position()) < 0) {
+					throw new FailedException("blob " + blobname + " is shorter than " + (offset + length) + " bytes");
+				}
+			}
+		} catch (IOException e) {
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	@Override
+	public List<String> listBlobs(String prefix) {
+		ArrayList<String> blobnames = new ArrayList<String>();
+		String dirname = prefix.substring(0, prefix.lastIndexOf('/') + 1);
+		listBlobs(new File(root, dirname), dirname, prefix, blobnames);
+		Collections.sort(blobnames);
+		return blobnames;
+	}
+
+	private static void listBlobs(File dir, String dirname, String prefix, List<String> blobnames) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = dirname + file.getName();
+			if (file.isDirectory()) {
+				if (!name.equals(BLOCKS_DIR) && (prefix.startsWith(name + "/") || name.startsWith(prefix))) {
+					listBlobs(file, name + "/", prefix, blobnames);
+				}
+			} else if (name.startsWith(prefix)) {
+				blobnames.add(name);
+			}
+		}
+	}
+
+	@Override
+	public void copyBlock(String sourceBlobname, long offset, int length, String blobname, String blockIdStr) {
+		if (LogSetting.LOG_BLOBWRITER) {
+			logger.info("copyBlock sourceBlobname = " + sourceBlobname + ", offset = " + offset + ", length = " + length
+					+ ", blobname = " + blobname + ", blockIdStr = " + blockIdStr);
+		}
+		File staged = getStagedFile(blobname, BlockList.toBlockEntryId(blockIdStr));
+		try {
+			redoStoppedCommit(blobname);
+			mkdirs(staged.getParentFile());
+			try (FileChannel in = FileChannel.open(new File(root, sourceBlobname).toPath(), StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(staged.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+							StandardOpenOption.TRUNCATE_EXISTING)) {
+				if (in.size() < offset + length) {
+					throw new FailedException("blob " + sourceBlobname + " is shorter than " + (offset + length) + " bytes");
+				}
+				long copied = 0;
+				while (copied < length) {
+					copied += in.transferTo(offset + copied, length - copied, out);
+				}
+			}
+		} catch (IOException e) {
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	// the blob is emptied by its block list first and gets the copied list only once the copied file replaced it, so a
+	// crash leaves the old blob, an empty one or the copy
+	@Override
+	public synchronized void copyBlob(String sourceBlobname, String blobname) {
+		if (LogSetting.LOG_BLOBWRITER) {
+			logger.info("copyBlob sourceBlobname = " + sourceBlobname + ", blobname = " + blobname);
+		}
+		try {
+			ArrayList<Segment> segments = new ArrayList<Segment>(getCommittedBlocks(sourceBlobname));
+			long length = 0;
+			for (Segment segment : segments) {
+				length += segment.length;
+			}
+			File blob = new File(root, blobname);
+			File tmp = new File(getBlockListFile(blobname).getParentFile(), "copy");
+			mkdirs(tmp.getParentFile());
+			mkdirs(blob.getParentFile());
+			try (FileChannel in = FileChannel.open(new File(root, sourceBlobname).toPath(), StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+							StandardOpenOption.TRUNCATE_EXISTING)) {
+				if (in.size() < length) {
+					throw new FailedException("blob file " + sourceBlobname + " is shorter than its block list");
+				}
+				long copied = 0;
+				while (copied < length) {
+					copied += in.transferTo(copied, length - copied, out);
+				}
+				if (fsync) {
+					out.force(false);
+				}
+			}
+			committedBlocks.put(blobname, new ArrayList<Segment>());
+			Files.deleteIfExists(getCommitRecordFile(blobname).toPath());
+			writeSegments(getBlockListFile(blobname), null, new ArrayList<Segment>());
+			Files.move(tmp.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			writeSegments(getBlockListFile(blobname), null, segments);
+			committedBlocks.put(blobname, segments);
+		} catch (IOException e) {
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	// a stopped commit and the block list go first, so a crash leaves at most a blob file without blocks, which the next
+	// commit truncates
+	@Override
+	public synchronized void deleteBlob(String blobname) {
+		if (LogSetting.LOG_BLOBWRITER) {
+			logger.info("deleteBlob blobname = " + blobname);
+		}
+		committedBlocks.remove(blobname);
+		File blob = new File(root, blobname);
+		try {
+			Files.deleteIfExists(getCommitRecordFile(blobname).toPath());
+			Files.deleteIfExists(getBlockListFile(blobname).toPath());
+			Files.deleteIfExists(blob.toPath());
+		} catch (IOException e) {
+			throw new FailedException(e.getMessage());
+		}
+		// staged blocks that were never committed
+		File blocks = getBlockListFile(blobname).getParentFile();
+		if (blocks.exists()) {
+			delete(blocks);
+		}
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		if (!file.delete()) {
+			logger.error("failed to delete " + file);
+		}
+	}
+
+	private ArrayList<Segment> getCommittedBlocks(String blobname) throws IOException {
+		ArrayList<Segment> segments = committedBlocks.get(blobname);
+		if (segments == null) {
+			File commitRecord = getCommitRecordFile(blobname);
+			if (commitRecord.isFile()) {
+				// a commit that overwrote committed blocks stopped, its staged blocks are still there to redo it
+				List<String> lines = Files.readAllLines(commitRecord.toPath(), StandardCharsets.UTF_8);
+				int keep = Integer.parseInt(lines.get(0));
+				segments = readSegments(lines);
+				long keepSize = 0;
+				for (Segment segment : segments.subList(0, keep)) {
+					keepSize += segment.length;
+				}
+				logger.warn("redoing the commit of " + blobname + " that stopped after " + keep + " of " + segments.size() + " blocks");
+				apply(blobname, keep, keepSize, segments);
+				return segments;
+			}
+			File blockList = getBlockListFile(blobname);
+			segments = blockList.isFile() ? readSegments(Files.readAllLines(blockList.toPath(), StandardCharsets.UTF_8))
+					: new ArrayList<Segment>();
+			committedBlocks.put(blobname, segments);
+		}
+		return segments;
+	}
+
+	// a stopped commit is redone before the staged blocks it reads can be replaced
+	private void redoStoppedCommit(String blobname) throws IOException {
+		if (getCommitRecordFile(blobname).isFile()) {
+			synchronized (this) {
+				getCommittedBlocks(blobname);
+			}
+		}
+	}
+
+	private static ArrayList<Segment> readSegments(List<String> lines) {
+		ArrayList<Segment> segments = new ArrayList<Segment>();
+		for (String line : lines) {
+			String[] fields = line.split(" ");
+			if (fields.length == 2) {
+				segments.add(new Segment(fields[0], Long.parseLong(fields[1])));
+			}
+		}
+		return segments;
+	}
+
+	// replaces a block list or commit record with a new one, so a crash leaves either the old or the new file; the header
+	// line of a commit record has one field, which readSegments skips
+	private void writeSegments(File file, String header, List<Segment> segments) throws IOException {
+		mkdirs(file.getParentFile());
+		StringBuilder sb = new StringBuilder();
+		if (header != null) {
+			sb.append(header).append('\n');
+		}
+		for (Segment segment : segments) {
+			sb.append(segment.id).append(' ').append(segment.length).append('\n');
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+			if (fsync) {
+				out.force(false);
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private File getBlockListFile(String blobname) {
+		return new File(new File(root, BLOCKS_DIR), blobname + "/blocklist");
+	}
+
+	private File getCommitRecordFile(String blobname) {
+		return new File(new File(root, BLOCKS_DIR), blobname + "/commit");
+	}
+
+	// block ids are Base64, which may contain '/'
+	private File getStagedFile(String blobname, String id) {
+		return new File(new File(root, BLOCKS_DIR), blobname + "/staged/" + id.replace('/', '_').replace('+', '-'));
+	}
+
+	private static void mkdirs(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("can't create " + dir);
+		}
+	}
+
+	private static class Segment {
+		final String id;
+		final long length;
+
+		Segment(String id, long length) {
+			this.id = id;
+			this.length = length;
+		}
+	}
+}
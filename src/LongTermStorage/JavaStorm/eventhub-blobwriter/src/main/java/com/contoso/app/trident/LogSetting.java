@@ -9,4 +9,5 @@ public final class LogSetting {
 	public static final boolean LOG_BLOCK = Boolean.parseBoolean(ConfigProperties.getProperty("LOG_BLOCK"));
 	public static final boolean LOG_MESSAGEROLLOVER = Boolean.parseBoolean(ConfigProperties.getProperty("LOG_MESSAGEROLLOVER"));
 	public static final boolean LOG_REDIS = Boolean.parseBoolean(ConfigProperties.getProperty("LOG_REDIS"));
+	public static final boolean LOG_STATESTORE = Boolean.parseBoolean(ConfigProperties.getProperty("LOG_STATESTORE"));
 }
@@ -0,0 +1,28 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+// Copies messages into the block unchanged, each followed by the record delimiter.
+public class PlainBlockEncoder extends BlockEncoder {
+	@Override
+	public int maxFrameSize(int length) {
+		return length + RECORD_DELIMITER.length;
+	}
+
+	@Override
+	public boolean willFit(int length) {
+		return position + length + RECORD_DELIMITER.length <= capacity;
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) {
+		System.arraycopy(data, offset, buffer, position, length);
+		position += length;
+		System.arraycopy(RECORD_DELIMITER, 0, buffer, position, RECORD_DELIMITER.length);
+		position += RECORD_DELIMITER.length;
+	}
+
+	@Override
+	public int finish() {
+		return position;
+	}
+}
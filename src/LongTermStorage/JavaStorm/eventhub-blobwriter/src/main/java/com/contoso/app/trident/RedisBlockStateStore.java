@@ -0,0 +1,210 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisException;
+import backtype.storm.topology.FailedException;
+
+// Keeps the partition cursors in Redis. Connections come from a worker-wide pool.
+public class RedisBlockStateStore implements BlockStateStore {
+	private static final Logger logger = (Logger) LoggerFactory.getLogger(RedisBlockStateStore.class);
+	private static String host = null;
+	private static String password = null;
+	private static int port = -1;
+	private static int timeout = -1;
+	private static JedisPool pool = null;
+
+	static {
+		host = ConfigProperties.getProperty("redis.host");
+		password = ConfigProperties.getProperty("redis.password");
+		port = Integer.parseInt(ConfigProperties.getProperty("redis.port"));
+		timeout = Integer.parseInt(ConfigProperties.getProperty("redis.timeout"));
+		if (host == null) {
+			throw new ExceptionInInitializerError("Error: host is missing");
+		}
+		if (password == null) {
+			throw new ExceptionInInitializerError("Error: password is missing");
+		}
+		if (port == -1) {
+			throw new ExceptionInInitializerError("Error: port is missing");
+		}
+		if (timeout == -1) {
+			throw new ExceptionInInitializerError("Error: timeout is missing");
+		}
+		// connections are authenticated once when the pool creates them and are then reused by every batch
+		JedisPoolConfig poolConfig = new JedisPoolConfig();
+		poolConfig.setMaxTotal(getIntProperty("redis.pool.max.total", 8));
+		poolConfig.setMaxIdle(getIntProperty("redis.pool.max.idle", 8));
+		poolConfig.setMinIdle(getIntProperty("redis.pool.min.idle", 1));
+		poolConfig.setTestOnBorrow(getBooleanProperty("redis.pool.test.on.borrow", false));
+		poolConfig.setTestWhileIdle(getBooleanProperty("redis.pool.test.while.idle", true));
+		poolConfig.setTimeBetweenEvictionRunsMillis(getIntProperty("redis.pool.eviction.interval.ms", 30000));
+		poolConfig.setMinEvictableIdleTimeMillis(getIntProperty("redis.pool.idle.evictable.ms", 60000));
+		poolConfig.setNumTestsPerEvictionRun(-1);
+		pool = new JedisPool(poolConfig, host, port, timeout, password);
+	}
+
+	private static int getIntProperty(String key, int defaultValue) {
+		String valueStr = ConfigProperties.getProperty(key);
+		return valueStr == null ? defaultValue : Integer.parseInt(valueStr.trim());
+	}
+
+	private static boolean getBooleanProperty(String key, boolean defaultValue) {
+		String valueStr = ConfigProperties.getProperty(key);
+		return valueStr == null ? defaultValue : Boolean.parseBoolean(valueStr.trim());
+	}
+
+	@Override
+	public String[] getState(ByteAggregator byteAggregator) {
+		String kTxid = byteAggregator.txidKey;
+		String kFirstBlock = byteAggregator.firstblockKey;
+		String kLastBlock = byteAggregator.lastblockKey;
+		if (LogSetting.LOG_REDIS) {
+			logger.info("getState Begin params: keys= " + kTxid + ", " + kFirstBlock + ", " + kLastBlock);
+		}
+		List<String> values = null;
+		try (Jedis jedis = pool.getResource()) {
+			values = jedis.mget(kTxid, kFirstBlock, kLastBlock);
+		} catch (JedisException e) {
+			if (LogSetting.LOG_REDIS) {
+				logger.info("Error: can't connect to Redis !!!!!");
+			}
+			throw new FailedException(e.getMessage());
+		}
+		String[] state = values.toArray(new String[3]);
+		if (LogSetting.LOG_REDIS) {
+			logger.info("getState End returns " + state[0] + ", " + state[1] + ", " + state[2]);
+		}
+		return state;
+	}
+
+	@Override
+	public void clearState(ByteAggregator byteAggregator) {
+		String kTxid = byteAggregator.txidKey;
+		String kFirstBlock = byteAggregator.firstblockKey;
+		String kLastBlock = byteAggregator.lastblockKey;
+		if (LogSetting.LOG_REDIS) {
+			logger.info("clearState Begin");
+			logger.info("clear keys " + kTxid + ", " + kFirstBlock + ", " + kLastBlock);
+		}
+		if (kTxid != null && kFirstBlock != null && kLastBlock != null) {
+			try (Jedis jedis = pool.getResource()) {
+				Transaction trans = jedis.multi();
+				try {
+					trans.del(kTxid);
+					trans.del(kFirstBlock);
+					trans.del(kLastBlock);
+					trans.del(byteAggregator.watermarkKey);
+					trans.exec();
+				} catch (Exception e) {
+					trans.discard();
+					throw new FailedException(e.getMessage());
+				}
+			} catch (JedisException e) {
+				if (LogSetting.LOG_REDIS) {
+					logger.info("Error: can't connect to Redis !!!!!");
+				}
+				throw new FailedException(e.getMessage());
+			}
+		}
+		if (LogSetting.LOG_REDIS) {
+			logger.info("clearState End");
+		}
+	}
+
+	@Override
+	public void setState(BlockState blockState) {
+		if (LogSetting.LOG_REDIS) {
+			logger.info("setState Begin");
+		}
+		String kTxid = blockState.byteAggregator.txidKey;
+		String vTxid = String.valueOf(blockState.byteAggregator.txid);
+		String kFirstBlock = blockState.byteAggregator.firstblockKey;
+		String vFirstBlock = blockState.getFirstBlockStateStr();
+		String kLastBlock = blockState.byteAggregator.lastblockKey;
+		String vLastBlock = blockState.getLastBlockStateStr();
+		if (LogSetting.LOG_REDIS) {
+			logger.info(blockState.partitionTxidLogStr + "set(" + kTxid + ") to" + vTxid);
+			logger.info(blockState.partitionTxidLogStr + "set(" + kFirstBlock + ") to" + vFirstBlock);
+			logger.info(blockState.partitionTxidLogStr + "set(" + kLastBlock + ") to" + vLastBlock);
+		}
+		try (Jedis jedis = pool.getResource()) {
+			Transaction trans = jedis.multi();
+			try {
+				trans.set(kTxid, vTxid);
+				trans.set(kFirstBlock, vFirstBlock);
+				trans.set(kLastBlock, vLastBlock);
+				trans.exec();
+			} catch (Exception e) {
+				trans.discard();
+				throw new FailedException(e.getMessage());
+			}
+		} catch (JedisException e) {
+			if (LogSetting.LOG_REDIS) {
+				logger.info("Error: can't connect to Redis !!!!!");
+			}
+			throw new FailedException(e.getMessage());
+		}
+		if (LogSetting.LOG_REDIS) {
+			logger.info("setList End");
+		}
+	}
+
+	// the cursors of all the partitions are set in one MULTI/EXEC, sent as a single pipelined request
+	@Override
+	public void setStates(List<BlockState> blockStates) {
+		if (LogSetting.LOG_REDIS) {
+			logger.info("setStates Begin for " + blockStates.size() + " partitions");
+		}
+		try (Jedis jedis = pool.getResource()) {
+			Transaction trans = jedis.multi();
+			try {
+				for (BlockState blockState : blockStates) {
+					trans.set(blockState.byteAggregator.txidKey, String.valueOf(blockState.byteAggregator.txid));
+					trans.set(blockState.byteAggregator.firstblockKey, blockState.getFirstBlockStateStr());
+					trans.set(blockState.byteAggregator.lastblockKey, blockState.getLastBlockStateStr());
+				}
+				trans.exec();
+			} catch (Exception e) {
+				trans.discard();
+				throw new FailedException(e.getMessage());
+			}
+		} catch (JedisException e) {
+			if (LogSetting.LOG_REDIS) {
+				logger.info("Error: can't connect to Redis !!!!!");
+			}
+			throw new FailedException(e.getMessage());
+		}
+		if (LogSetting.LOG_REDIS) {
+			logger.info("setStates End");
+		}
+	}
+
+	@Override
+	public long getJournalWatermark(ByteAggregator byteAggregator) {
+		String value = null;
+		try (Jedis jedis = pool.getResource()) {
+			value = jedis.get(byteAggregator.watermarkKey);
+		} catch (JedisException e) {
+			throw new FailedException(e.getMessage());
+		}
+		return value == null ? 0 : Long.parseLong(value);
+	}
+
+	@Override
+	public void setJournalWatermark(ByteAggregator byteAggregator, long watermark) {
+		try (Jedis jedis = pool.getResource()) {
+			jedis.set(byteAggregator.watermarkKey, String.valueOf(watermark));
+		} catch (JedisException e) {
+			throw new FailedException(e.getMessage());
+		}
+	}
+}
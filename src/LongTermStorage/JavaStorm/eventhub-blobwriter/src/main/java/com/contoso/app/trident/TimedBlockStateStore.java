@@ -0,0 +1,62 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.util.List;
+
+// Records the latency of every state store request of a partition.
+public class TimedBlockStateStore implements BlockStateStore {
+	private final BlockStateStore store;
+	private final LatencyHistogram getLatency;
+	private final LatencyHistogram setLatency;
+
+	public TimedBlockStateStore(BlockStateStore store, LatencyHistogram getLatency, LatencyHistogram setLatency) {
+		this.store = store;
+		this.getLatency = getLatency;
+		this.setLatency = setLatency;
+	}
+
+	@Override
+	public String[] getState(ByteAggregator byteAggregator) {
+		long start = System.nanoTime();
+		try {
+			return store.getState(byteAggregator);
+		} finally {
+			getLatency.updateSince(start);
+		}
+	}
+
+	@Override
+	public void setState(BlockState blockState) {
+		long start = System.nanoTime();
+		try {
+			store.setState(blockState);
+		} finally {
+			setLatency.updateSince(start);
+		}
+	}
+
+	@Override
+	public void setStates(List<BlockState> blockStates) {
+		long start = System.nanoTime();
+		try {
+			store.setStates(blockStates);
+		} finally {
+			setLatency.updateSince(start);
+		}
+	}
+
+	@Override
+	public void clearState(ByteAggregator byteAggregator) {
+		store.clearState(byteAggregator);
+	}
+
+	@Override
+	public long getJournalWatermark(ByteAggregator byteAggregator) {
+		return store.getJournalWatermark(byteAggregator);
+	}
+
+	@Override
+	public void setJournalWatermark(ByteAggregator byteAggregator, long watermark) {
+		store.setJournalWatermark(byteAggregator, watermark);
+	}
+}
@@ -0,0 +1,265 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+package com.contoso.app.trident;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.topology.FailedException;
+
+// Keeps the cursors of each partition in one znode, so a batch reads and writes its state with a single request.
+// The client of a connect string is shared by the partitions of the worker; after a session expires the next request
+// opens a new one.
+public class ZooKeeperBlockStateStore implements BlockStateStore {
+	private static final Logger logger = (Logger) LoggerFactory.getLogger(ZooKeeperBlockStateStore.class);
+	private static String root = "/eventhubblobwriter";
+	private static int sessionTimeoutMs = 30000;
+	static {
+		String rootStr = ConfigProperties.getProperty("storage.state.zookeeper.root");
+		if (rootStr != null) {
+			root = rootStr.trim();
+		}
+		String sessionTimeoutMsStr = ConfigProperties.getProperty("storage.state.zookeeper.session.timeout.ms");
+		if (sessionTimeoutMsStr != null) {
+			int sessionTimeoutMsInt = Integer.parseInt(sessionTimeoutMsStr);
+			if (sessionTimeoutMsInt > 0) {
+				sessionTimeoutMs = sessionTimeoutMsInt;
+			}
+		}
+	}
+	// clients by connect string, guarded by the class
+	private static final HashMap<String, ZooKeeper> clients = new HashMap<String, ZooKeeper>();
+
+	private final String connectString;
+
+	public ZooKeeperBlockStateStore(String connectString) {
+		this.connectString = connectString;
+	}
+
+	// zookeeper.connectionstring when it is set, otherwise the ZooKeeper servers of the Storm cluster, like the spout
+	static String getConnectString(@SuppressWarnings("rawtypes") Map conf) {
+		String connectString = ConfigProperties.getProperty("zookeeper.connectionstring");
+		if (connectString != null) {
+			return connectString.trim();
+		}
+		Object servers = conf.get("storm.zookeeper.servers");
+		Object port = conf.get("storm.zookeeper.port");
+		if (!(servers instanceof List) || port == null) {
+			throw new FailedException("zookeeper.connectionstring is not set and the topology has no storm.zookeeper.servers");
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Object server : (List<?>) servers) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(server).append(':').append(port);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String[] getState(ByteAggregator byteAggregator) {
+		String path = getPath(byteAggregator);
+		if (LogSetting.LOG_STATESTORE) {
+			logger.info("getState Begin params: path= " + path);
+		}
+		String[] state = new String[3];
+		try {
+			byte[] data = getClient().getData(path, false, null);
+			String[] values = new String(data, StandardCharsets.UTF_8).split("\n", -1);
+			if (values.length == 3) {
+				state = values;
+			}
+		} catch (KeeperException.NoNodeException e) {
+			// the partition has no state yet
+		} catch (KeeperException e) {
+			throw new FailedException(e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FailedException(e.getMessage());
+		}
+		if (LogSetting.LOG_STATESTORE) {
+			logger.info("getState End returns " + state[0] + ", " + state[1] + ", " + state[2]);
+		}
+		return state;
+	}
+
+	@Override
+	public void setState(BlockState blockState) {
+		String path = getPath(blockState.byteAggregator);
+		String value = getValue(blockState);
+		if (LogSetting.LOG_STATESTORE) {
+			logger.info(blockState.partitionTxidLogStr + "set(" + path + ") to " + value);
+		}
+		byte[] data = value.getBytes(StandardCharsets.UTF_8);
+		try {
+			ZooKeeper zk = getClient();
+			try {
+				zk.setData(path, data, -1);
+			} catch (KeeperException.NoNodeException e) {
+				createParents(zk);
+				zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			}
+		} catch (KeeperException e) {
+			throw new FailedException(e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	// the znodes of all the partitions are updated by one multi request; when a partition has no znode yet the whole
+	// request fails and the partitions are written one by one, which creates the missing znodes
+	@Override
+	public void setStates(List<BlockState> blockStates) {
+		List<Op> ops = new ArrayList<Op>(blockStates.size());
+		for (BlockState blockState : blockStates) {
+			ops.add(Op.setData(getPath(blockState.byteAggregator), getValue(blockState).getBytes(StandardCharsets.UTF_8), -1));
+		}
+		if (LogSetting.LOG_STATESTORE) {
+			logger.info("setStates for " + blockStates.size() + " partitions");
+		}
+		try {
+			getClient().multi(ops);
+		} catch (KeeperException.NoNodeException e) {
+			for (BlockState blockState : blockStates) {
+				setState(blockState);
+			}
+		} catch (KeeperException e) {
+			throw new FailedException(e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	@Override
+	public void clearState(ByteAggregator byteAggregator) {
+		String path = getPath(byteAggregator);
+		if (LogSetting.LOG_STATESTORE) {
+			logger.info("clearState path " + path);
+		}
+		delete(path);
+		delete(getWatermarkPath(byteAggregator));
+	}
+
+	@Override
+	public long getJournalWatermark(ByteAggregator byteAggregator) {
+		try {
+			byte[] data = getClient().getData(getWatermarkPath(byteAggregator), false, null);
+			return Long.parseLong(new String(data, StandardCharsets.UTF_8));
+		} catch (KeeperException.NoNodeException e) {
+			return 0;
+		} catch (KeeperException e) {
+			throw new FailedException(e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	@Override
+	public void setJournalWatermark(ByteAggregator byteAggregator, long watermark) {
+		String path = getWatermarkPath(byteAggregator);
+		byte[] data = String.valueOf(watermark).getBytes(StandardCharsets.UTF_8);
+		try {
+			ZooKeeper zk = getClient();
+			try {
+				zk.setData(path, data, -1);
+			} catch (KeeperException.NoNodeException e) {
+				createParents(zk);
+				zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			}
+		} catch (KeeperException e) {
+			throw new FailedException(e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	private void delete(String path) {
+		try {
+			getClient().delete(path, -1);
+		} catch (KeeperException.NoNodeException e) {
+			// nothing to clear
+		} catch (KeeperException e) {
+			throw new FailedException(e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FailedException(e.getMessage());
+		}
+	}
+
+	private static String getValue(BlockState blockState) {
+		return blockState.byteAggregator.txid + "\n" + blockState.getFirstBlockStateStr() + "\n" + blockState.getLastBlockStateStr();
+	}
+
+	private static String getPath(ByteAggregator byteAggregator) {
+		return root + String.format("/partition_%05d", byteAggregator.partitionIndex);
+	}
+
+	// the journal watermark is written by the drainer thread, so it is kept apart from the cursors
+	private static String getWatermarkPath(ByteAggregator byteAggregator) {
+		return root + String.format("/partition_%05d_journal", byteAggregator.partitionIndex);
+	}
+
+	private static void createParents(ZooKeeper zk) throws KeeperException, InterruptedException {
+		int next = root.indexOf('/', 1);
+		while (true) {
+			String parent = next < 0 ? root : root.substring(0, next);
+			try {
+				zk.create(parent, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			} catch (KeeperException.NodeExistsException e) {
+				// created by another partition
+			}
+			if (next < 0) {
+				break;
+			}
+			next = root.indexOf('/', next + 1);
+		}
+	}
+
+	private ZooKeeper getClient() throws InterruptedException {
+		synchronized (ZooKeeperBlockStateStore.class) {
+			ZooKeeper client = clients.get(connectString);
+			if (client != null && client.getState().isAlive()) {
+				return client;
+			}
+			final CountDownLatch connected = new CountDownLatch(1);
+			ZooKeeper zk;
+			try {
+				zk = new ZooKeeper(connectString, sessionTimeoutMs, new Watcher() {
+					@Override
+					public void process(WatchedEvent event) {
+						if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
+							connected.countDown();
+						}
+					}
+				});
+			} catch (Exception e) {
+				throw new FailedException(e.getMessage());
+			}
+			if (!connected.await(sessionTimeoutMs, TimeUnit.MILLISECONDS)) {
+				zk.close();
+				throw new FailedException("can't connect to ZooKeeper at " + connectString);
+			}
+			clients.put(connectString, zk);
+			return zk;
+		}
+	}
+}
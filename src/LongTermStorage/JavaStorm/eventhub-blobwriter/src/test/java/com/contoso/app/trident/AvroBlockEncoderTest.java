@@ -0,0 +1,172 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+
+package com.contoso.app.trident;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class AvroBlockEncoderTest
+    extends TestCase
+{
+    // storage.blob.block.bytes.max in the test Config.properties
+    private static final int BLOCK_SIZE = 10240;
+
+    public AvroBlockEncoderTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AvroBlockEncoderTest.class );
+    }
+
+    public void testNullCodecBlobIsAnAvroContainerFile() throws Exception
+    {
+        checkContainerFile( null, "null" );
+    }
+
+    public void testDeflateCodecBlobIsAnAvroContainerFile() throws Exception
+    {
+        checkContainerFile( -1, "deflate" );
+    }
+
+    private void checkContainerFile( Integer level, String codec ) throws Exception
+    {
+        Random random = new Random( 11 );
+        List<String> messages = new ArrayList<String>();
+        for ( int i = 0; i < 5000; i++ )
+        {
+            messages.add( "{\"deviceId\":\"device-" + random.nextInt( 1000 ) + "\",\"reading\":" + random.nextDouble() + "}" );
+        }
+        AvroBlockEncoder encoder = new AvroBlockEncoder( 3, level );
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        int blockid = 1;
+        Block block = newBlock( encoder, blockid );
+        int blocks = 0;
+        for ( String message : messages )
+        {
+            byte[] msg = message.getBytes( StandardCharsets.UTF_8 );
+            if ( !block.willMessageFitCurrentBlock( msg ) )
+            {
+                blob.write( seal( block ) );
+                blocks++;
+                block = newBlock( encoder, ++blockid );
+            }
+            block.addData( msg );
+        }
+        blob.write( seal( block ) );
+        blocks++;
+        encoder.end();
+        assertTrue( blocks > 1 );
+
+        ByteBuffer in = ByteBuffer.wrap( blob.toByteArray() );
+        byte[] magic = new byte[4];
+        in.get( magic );
+        assertTrue( Arrays.equals( new byte[] { 'O', 'b', 'j', 1 }, magic ) );
+        Map<String, String> meta = new HashMap<String, String>();
+        for ( long n = readLong( in ); n != 0; n = readLong( in ) )
+        {
+            for ( long i = 0; i < n; i++ )
+            {
+                meta.put( readString( in ), readString( in ) );
+            }
+        }
+        assertEquals( AvroBlockEncoder.SCHEMA, meta.get( "avro.schema" ) );
+        assertEquals( codec, meta.get( "avro.codec" ) );
+        byte[] sync = new byte[AvroBlockEncoder.SYNC_SIZE];
+        in.get( sync );
+
+        List<String> decoded = new ArrayList<String>();
+        int dataBlocks = 0;
+        while ( in.hasRemaining() )
+        {
+            long count = readLong( in );
+            byte[] data = new byte[(int) readLong( in )];
+            in.get( data );
+            if ( "deflate".equals( codec ) )
+            {
+                data = inflate( data );
+            }
+            ByteBuffer records = ByteBuffer.wrap( data );
+            for ( long i = 0; i < count; i++ )
+            {
+                decoded.add( readString( records ) );
+            }
+            assertFalse( records.hasRemaining() );
+            byte[] blockSync = new byte[AvroBlockEncoder.SYNC_SIZE];
+            in.get( blockSync );
+            assertTrue( Arrays.equals( sync, blockSync ) );
+            dataBlocks++;
+        }
+        assertEquals( blocks, dataBlocks );
+        assertEquals( messages, decoded );
+    }
+
+    private static Block newBlock( AvroBlockEncoder encoder, int blockid )
+    {
+        return new Block( 1, blockid, encoder );
+    }
+
+    private static byte[] seal( Block block )
+    {
+        block.seal();
+        assertTrue( block.blockdataSize <= BLOCK_SIZE );
+        byte[] frame = Arrays.copyOf( block.blockdata, block.blockdataSize );
+        block.release();
+        return frame;
+    }
+
+    private static long readLong( ByteBuffer in )
+    {
+        long n = 0;
+        int shift = 0;
+        int b;
+        do
+        {
+            b = in.get() & 0xff;
+            n |= (long) ( b & 0x7f ) << shift;
+            shift += 7;
+        }
+        while ( ( b & 0x80 ) != 0 );
+        return ( n >>> 1 ) ^ -( n & 1 );
+    }
+
+    private static String readString( ByteBuffer in )
+    {
+        byte[] bytes = new byte[(int) readLong( in )];
+        in.get( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    private static byte[] inflate( byte[] data ) throws Exception
+    {
+        Inflater inflater = new Inflater( true );
+        inflater.setInput( data );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        while ( !inflater.finished() )
+        {
+            int n = inflater.inflate( chunk );
+            if ( n == 0 && inflater.needsInput() )
+            {
+                break;
+            }
+            out.write( chunk, 0, n );
+        }
+        inflater.end();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,180 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+
+package com.contoso.app.trident;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import backtype.storm.topology.FailedException;
+
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+
+public class BlobCompactorTest
+    extends TempDirSupport
+{
+    private static final String SEQUENCE = "partition_00001/blob_";
+
+    public BlobCompactorTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( BlobCompactorTest.class );
+    }
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        super.setUp();
+        LocalFileBlobSink sink = new LocalFileBlobSink( root );
+        for ( int blobid = 1; blobid <= 5; blobid++ )
+        {
+            writeBlob( sink, blobid );
+        }
+    }
+
+    public void testSealedBlobsAreMergedIntoTheFirstBlob() throws IOException
+    {
+        LocalFileBlobSink sink = new LocalFileBlobSink( root );
+        BlobCompactor compactor = new BlobCompactor( sink, 1, 1 << 20, 50000 );
+        compactor.compact( "" );
+        assertEquals( 3, compactor.mergedBlobs );
+        // the last blob is left to the writer
+        assertEquals( Arrays.asList( SEQUENCE + "00001", SEQUENCE + "00001.index", SEQUENCE + "00005",
+            SEQUENCE + "00005.index" ), sink.listBlobs( "" ) );
+        assertEquals( content( 1, 4 ), readBlob( SEQUENCE + "00001" ) );
+        assertEquals( 8, sink.downloadBlockList( SEQUENCE + "00001" ).size() );
+
+        // the merged index points at the blocks where they are now
+        BlobIndexReader reader = new BlobIndexReader( sink );
+        BlobIndex index = reader.readIndex( SEQUENCE + "00001" );
+        assertEquals( 8, index.entries.size() );
+        BlobIndex.Entry entry = index.entries.get( 5 );
+        assertEquals( 6, entry.blockid );
+        assertEquals( "b3-2\r\n", new String( reader.readBlock( SEQUENCE + "00001", entry ), StandardCharsets.UTF_8 ) );
+    }
+
+    public void testAStoppedCompactionIsFinishedByTheNextRun() throws IOException
+    {
+        LocalFileBlobSink failing = new LocalFileBlobSink( root )
+        {
+            @Override
+            public synchronized void deleteBlob( String blobname )
+            {
+                throw new FailedException( "storage is down" );
+            }
+        };
+        try
+        {
+            new BlobCompactor( failing, 1, 1 << 20, 50000 ).compact( "" );
+            fail();
+        }
+        catch ( FailedException e )
+        {
+            // the merged blob is in place, the blobs merged into it are not deleted yet
+        }
+        assertEquals( content( 1, 4 ), readBlob( SEQUENCE + "00001" ) );
+        assertTrue( new File( root, SEQUENCE + "00002" ).isFile() );
+        // readers go by the manifest and skip the blobs that are merged already
+        assertEquals( content( 1, 5 ), readListedBlobs( failing ) );
+
+        LocalFileBlobSink sink = new LocalFileBlobSink( root );
+        new BlobCompactor( sink, 1, 1 << 20, 50000 ).compact( "" );
+        assertEquals( Arrays.asList( SEQUENCE + "00001", SEQUENCE + "00001.index", SEQUENCE + "00005",
+            SEQUENCE + "00005.index" ), sink.listBlobs( "" ) );
+        assertEquals( content( 1, 4 ), readBlob( SEQUENCE + "00001" ) );
+    }
+
+    public void testAnEmptyFirstBlobIsReplacedByACopy() throws IOException
+    {
+        final List<String> copied = new ArrayList<String>();
+        LocalFileBlobSink copying = new LocalFileBlobSink( root )
+        {
+            @Override
+            public synchronized void copyBlob( String sourceBlobname, String blobname )
+            {
+                copied.add( sourceBlobname );
+                super.copyBlob( sourceBlobname, blobname );
+            }
+        };
+        copying.commitBlockList( SEQUENCE + "00000", new ArrayList<BlockEntry>() );
+        new BlobCompactor( copying, 1, 1 << 20, 50000 ).compact( "" );
+        assertEquals( Arrays.asList( SEQUENCE + "00001", SEQUENCE + "00001.index" ), copied );
+        assertEquals( Arrays.asList( SEQUENCE + "00000", SEQUENCE + "00000.index", SEQUENCE + "00005",
+            SEQUENCE + "00005.index" ), copying.listBlobs( "" ) );
+        assertEquals( content( 1, 4 ), readBlob( SEQUENCE + "00000" ) );
+        assertEquals( content( 1, 5 ), readListedBlobs( copying ) );
+
+        BlobIndexReader reader = new BlobIndexReader( copying );
+        BlobIndex index = reader.readIndex( SEQUENCE + "00000" );
+        assertEquals( 8, index.entries.size() );
+        assertEquals( "b4-1\r\n", new String( reader.readBlock( SEQUENCE + "00000", index.entries.get( 6 ) ),
+            StandardCharsets.UTF_8 ) );
+    }
+
+    // a blob of two blocks and its index
+    private static void writeBlob( LocalFileBlobSink sink, int blobid )
+    {
+        String blobname = SEQUENCE + String.format( "%05d", blobid );
+        List<BlockEntry> blocks = new ArrayList<BlockEntry>();
+        BlobIndex index = new BlobIndex( blobname, true );
+        for ( int blockid = 1; blockid <= 2; blockid++ )
+        {
+            byte[] bytes = ( "b" + blobid + "-" + blockid + "\r\n" ).getBytes( StandardCharsets.UTF_8 );
+            String blockidStr = Block.getBlockidStr( blockid );
+            sink.uploadBlock( blobname, blockidStr, bytes, bytes.length );
+            blocks.add( new BlockEntry( BlockList.toBlockEntryId( blockidStr ), BlockSearchMode.UNCOMMITTED ) );
+            BlobIndex.Entry entry = new BlobIndex.Entry();
+            entry.blockid = blockid;
+            entry.offset = ( blockid - 1 ) * bytes.length;
+            entry.length = bytes.length;
+            index.entries.add( entry );
+        }
+        sink.commitBlockList( blobname, blocks );
+        byte[] data = index.encode();
+        String indexBlobname = BlobIndex.getIndexBlobname( blobname );
+        sink.uploadBlock( indexBlobname, Block.getBlockidStr( 1 ), data, data.length );
+        sink.commitBlockList( indexBlobname, Arrays.asList(
+            new BlockEntry( BlockList.toBlockEntryId( Block.getBlockidStr( 1 ) ), BlockSearchMode.UNCOMMITTED ) ) );
+    }
+
+    private static String content( int firstBlobid, int lastBlobid )
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int blobid = firstBlobid; blobid <= lastBlobid; blobid++ )
+        {
+            sb.append( "b" + blobid + "-1\r\nb" + blobid + "-2\r\n" );
+        }
+        return sb.toString();
+    }
+
+    // the committed bytes of the blobs a reader lists, in name order
+    private static String readListedBlobs( LocalFileBlobSink sink )
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( Map.Entry<String, Long> blob : new BlobIndexReader( sink ).listBlobs( "" ).entrySet() )
+        {
+            byte[] data = new byte[blob.getValue().intValue()];
+            sink.downloadRange( blob.getKey(), 0, data, data.length );
+            sb.append( new String( data, StandardCharsets.UTF_8 ) );
+        }
+        return sb.toString();
+    }
+
+    private String readBlob( String blobname ) throws IOException
+    {
+        return new String( Files.readAllBytes( new File( root, blobname ).toPath() ), StandardCharsets.UTF_8 );
+    }
+}
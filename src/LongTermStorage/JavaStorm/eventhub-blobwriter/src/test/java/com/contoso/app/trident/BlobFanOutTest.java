@@ -0,0 +1,177 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+
+package com.contoso.app.trident;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+public class BlobFanOutTest
+    extends TempDirSupport
+{
+
+    public BlobFanOutTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( BlobFanOutTest.class );
+    }
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        super.setUp();
+        BlobWriter.setSink( new LocalFileBlobSink( root ) );
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        BlobWriter.setSink( null );
+        super.tearDown();
+    }
+
+    public void testReplayReplacesTheBlocksOfItsBatch() throws IOException
+    {
+        BlobFanOut fanOut = new BlobFanOut( 0, new LatencyHistogram(), 10, 1 << 20 );
+        fanOut.begin( 1, 0 );
+        assertTrue( fanOut.add( message( "a", 1 ) ) );
+        assertTrue( fanOut.add( message( "b", 1 ) ) );
+        assertFalse( fanOut.add( "{\"n\":1}".getBytes( StandardCharsets.UTF_8 ) ) );
+        fanOut.complete();
+
+        // the first attempt of batch 2 commits its blocks but the batch fails afterwards
+        fanOut.begin( 2, 0 );
+        fanOut.add( message( "a", 99 ) );
+        fanOut.complete();
+        fanOut.begin( 2, 0 );
+        fanOut.add( message( "a", 2 ) );
+        fanOut.complete();
+        fanOut.shutdown();
+
+        assertEquals( text( "a", 1 ) + text( "a", 2 ), readBlob( "a" ) );
+        assertEquals( text( "b", 1 ), readBlob( "b" ) );
+    }
+
+    public void testEvictedKeysAreCommittedAndContinued() throws IOException
+    {
+        BlobFanOut fanOut = new BlobFanOut( 0, new LatencyHistogram(), 1, 1 << 20 );
+        fanOut.begin( 1, 0 );
+        fanOut.add( message( "a", 1 ) );
+        fanOut.add( message( "b", 1 ) );
+        // a was evicted and committed, its writer reads the block list back and continues the batch
+        fanOut.add( message( "a", 2 ) );
+        fanOut.complete();
+        fanOut.shutdown();
+
+        assertEquals( 2L, fanOut.evictedMetric.getValueAndReset() );
+        assertEquals( text( "a", 1 ) + text( "a", 2 ), readBlob( "a" ) );
+        assertEquals( text( "b", 1 ), readBlob( "b" ) );
+    }
+
+    public void testReplayTrimsTheBlobsOfEvictedKeys() throws IOException
+    {
+        BlobFanOut fanOut = new BlobFanOut( 0, new LatencyHistogram(), 1, 1 << 20 );
+        fanOut.begin( 1, 0 );
+        fanOut.add( message( "a", 1 ) );
+        fanOut.complete();
+
+        // the failed attempt of batch 2 commits a when b evicts it, the replay has no messages of a
+        fanOut.begin( 2, 0 );
+        fanOut.add( message( "a", 99 ) );
+        fanOut.add( message( "b", 99 ) );
+        fanOut.complete();
+        fanOut.begin( 2, 0 );
+        fanOut.add( message( "b", 2 ) );
+        fanOut.complete();
+        fanOut.begin( 3, 0 );
+        fanOut.complete();
+        fanOut.shutdown();
+
+        assertEquals( text( "a", 1 ), readBlob( "a" ) );
+        assertEquals( text( "b", 2 ), readBlob( "b" ) );
+    }
+
+    public void testManyKeysFillBlocksOfTheirOwn() throws IOException
+    {
+        // 20 keys whose messages fit the memory of the fan-out but not 20 block buffers of 10 KB
+        BlobFanOut fanOut = new BlobFanOut( 0, new LatencyHistogram(), 100, 10240 );
+        fanOut.begin( 1, 0 );
+        for ( int n = 1; n <= 10; n++ )
+        {
+            for ( int key = 1; key <= 20; key++ )
+            {
+                assertTrue( fanOut.add( message( "k" + key, n ) ) );
+            }
+        }
+        fanOut.complete();
+        fanOut.shutdown();
+
+        assertEquals( 0L, fanOut.overflowMetric.getValueAndReset() );
+        assertEquals( 20L, fanOut.blocksSealedMetric.getValueAndReset() );
+        for ( int key = 1; key <= 20; key++ )
+        {
+            StringBuilder expected = new StringBuilder();
+            for ( int n = 1; n <= 10; n++ )
+            {
+                expected.append( text( "k" + key, n ) );
+            }
+            assertEquals( expected.toString(), readBlob( "k" + key ) );
+            assertEquals( 1, BlobWriter.downloadBlockList( "fanout/k" + key + "/partition_00000/blob_00001" ).size() );
+        }
+    }
+
+    public void testStripedPartitionsKeepTheSyncMarkerOfTheKeyBlob() throws Exception
+    {
+        String blobname = "fanout/a/partition_00000/blob_00001";
+        byte[] sync = Arrays.copyOf( MessageDigest.getInstance( "MD5" ).digest( blobname.getBytes( StandardCharsets.UTF_8 ) ),
+            AvroBlockEncoder.SYNC_SIZE );
+        Block.setStripes( 3 );
+        try
+        {
+            AvroBlockEncoder encoder = new AvroBlockEncoder( 0, null );
+            for ( int blockid = 1; blockid <= 4; blockid++ )
+            {
+                Block block = BlobFanOut.newKeyBlock( 0, blobname, 1, blockid, encoder );
+                block.addData( message( "a", blockid ) );
+                block.seal();
+                byte[] frame = Arrays.copyOf( block.blockdata, block.blockdataSize );
+                block.release();
+                // only the blob's first block carries the header, every block ends with the blob's sync marker
+                assertEquals( blockid == 1, frame[0] == 'O' && frame[1] == 'b' && frame[2] == 'j' && frame[3] == 1 );
+                assertTrue( Arrays.equals( sync, Arrays.copyOfRange( frame, frame.length - sync.length, frame.length ) ) );
+            }
+            encoder.end();
+        }
+        finally
+        {
+            Block.setStripes( 1 );
+        }
+    }
+
+    private static String text( String deviceId, int n )
+    {
+        return "{\"deviceId\":\"" + deviceId + "\",\"n\":" + n + "}\r\n";
+    }
+
+    private static byte[] message( String deviceId, int n )
+    {
+        String text = text( deviceId, n );
+        return text.substring( 0, text.length() - 2 ).getBytes( StandardCharsets.UTF_8 );
+    }
+
+    private String readBlob( String deviceId ) throws IOException
+    {
+        File blob = new File( root, "fanout/" + deviceId + "/partition_00000/blob_00001" );
+        return new String( Files.readAllBytes( blob.toPath() ), StandardCharsets.UTF_8 );
+    }
+}
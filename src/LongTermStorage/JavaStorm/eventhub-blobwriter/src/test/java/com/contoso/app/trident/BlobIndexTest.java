@@ -0,0 +1,111 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+
+package com.contoso.app.trident;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+public class BlobIndexTest
+    extends TempDirSupport
+{
+    private static final String BLOBNAME = "partition_00001/blob_00001";
+
+    public BlobIndexTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( BlobIndexTest.class );
+    }
+
+    public void testFieldsAreReadFromJsonMessages()
+    {
+        byte[] msg = bytes( "{\"name\":\"deviceId\", \"deviceId\" : \"dev-7\",\"time\":1401627600000}" );
+        assertEquals( "dev-7", BlobIndex.getDeviceId( msg ) );
+        assertEquals( 1401627600000L, BlobIndex.getEventTime( msg, 0 ) );
+        assertEquals( 1401627600000L, BlobIndex.getEventTime( bytes( "{\"time\":\"2014-06-01T13:00:00Z\"}" ), 0 ) );
+        assertEquals( 1401627600250L, BlobIndex.getEventTime( bytes( "{\"time\":\"2014-06-01T15:00:00.25+02:00\"}" ), 0 ) );
+        assertEquals( 42, BlobIndex.getEventTime( bytes( "{\"time\":\"yesterday\"}" ), 42 ) );
+        assertEquals( 42, BlobIndex.getEventTime( bytes( "{\"deviceId\":\"dev-7\"}" ), 42 ) );
+        assertNull( BlobIndex.getDeviceId( bytes( "{\"device\":\"dev-7\"}" ) ) );
+    }
+
+    public void testReaderFetchesOnlyBlocksOfTheDeviceAndTimeRange() throws IOException
+    {
+        LocalFileBlobSink sink = new LocalFileBlobSink( root );
+        BlobIndex index = new BlobIndex( BLOBNAME, true );
+        BlockList blockList = new BlockList( sink );
+        // block n holds two messages of device dev-n at minute n
+        for ( int blockid = 1; blockid <= 20; blockid++ )
+        {
+            Block block = new Block( 1, blockid, new PlainBlockEncoder() );
+            block.indexEntry = new BlobIndex.Entry();
+            for ( int i = 0; i < 2; i++ )
+            {
+                byte[] msg = bytes( "{\"deviceId\":\"dev-" + blockid + "\",\"time\":" + ( blockid * 60000L + i ) + "}" );
+                block.addData( msg );
+                block.indexEntry.add( msg );
+            }
+            block.seal();
+            blockList.seed( BLOBNAME, blockid );
+            blockList.stage( Block.getBlockidStr( blockid ) );
+            sink.uploadBlock( BLOBNAME, Block.getBlockidStr( blockid ), block.blockdata, block.blockdataSize );
+            index.add( block );
+            block.release();
+        }
+        blockList.commit();
+        byte[] data = index.encode();
+        sink.uploadBlock( BlobIndex.getIndexBlobname( BLOBNAME ), Block.getBlockidStr( 1 ), data, data.length );
+        BlockList indexBlockList = new BlockList( sink );
+        indexBlockList.seed( BlobIndex.getIndexBlobname( BLOBNAME ), 1 );
+        indexBlockList.stage( Block.getBlockidStr( 1 ) );
+        indexBlockList.commit();
+
+        BlobIndexReader reader = new BlobIndexReader( sink );
+        BlobIndex read = reader.readIndex( BLOBNAME );
+        assertEquals( 20, read.entries.size() );
+        assertTrue( read.complete );
+
+        List<BlobIndex.Entry> found = read.find( "dev-12", 0, Long.MAX_VALUE );
+        assertEquals( 1, found.size() );
+        assertEquals( 12, found.get( 0 ).blockid );
+        BufferedReader lines = BlobIndexReader.openTextBlock( reader.readBlock( BLOBNAME, found.get( 0 ) ) );
+        assertEquals( "{\"deviceId\":\"dev-12\",\"time\":720000}", lines.readLine() );
+
+        assertEquals( 3, read.find( null, 5 * 60000L, 7 * 60000L ).size() );
+        assertTrue( read.find( "dev-12", 0, 60000L ).isEmpty() );
+    }
+
+    public void testIndexOverABlockIsWrittenAsSeveralBlocks()
+    {
+        LocalFileBlobSink sink = new LocalFileBlobSink( root );
+        BlobIndex index = new BlobIndex( BLOBNAME, true );
+        for ( int blockid = 1; blockid <= 5000; blockid++ )
+        {
+            BlobIndex.Entry entry = new BlobIndex.Entry();
+            entry.blockid = blockid;
+            entry.offset = blockid * 100L;
+            entry.length = 100;
+            index.entries.add( entry );
+        }
+        byte[] data = index.encode();
+        assertTrue( data.length > BlobIndex.MAX_INDEX_BLOCK_BYTES );
+        BlobIndex.upload( sink, BLOBNAME, data );
+        assertEquals( 2, sink.downloadBlockList( BlobIndex.getIndexBlobname( BLOBNAME ) ).size() );
+        BlobIndex read = new BlobIndexReader( sink ).readIndex( BLOBNAME );
+        assertEquals( 5000, read.entries.size() );
+        assertEquals( 500000L, read.entries.get( 4999 ).offset );
+    }
+
+    private static byte[] bytes( String s )
+    {
+        return s.getBytes( StandardCharsets.UTF_8 );
+    }
+}
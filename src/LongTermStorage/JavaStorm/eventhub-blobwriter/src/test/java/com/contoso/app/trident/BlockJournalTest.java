@@ -0,0 +1,201 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+
+package com.contoso.app.trident;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import com.microsoft.azure.storage.blob.BlockEntry;
+
+public class BlockJournalTest
+    extends TempDirSupport
+{
+    private static final String BLOBNAME = "partition_00001/blob_00001";
+    // small enough for the records to wrap around the end of the journal many times
+    private static final int CAPACITY = 4096;
+    private ByteAggregator byteAggregator;
+
+    public BlockJournalTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( BlockJournalTest.class );
+    }
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        super.setUp();
+        byteAggregator = new ByteAggregator();
+        byteAggregator.partitionIndex = 1;
+        byteAggregator.txidKey = "partition_00001_transactionid";
+        byteAggregator.stateStore = new InMemoryBlockStateStore();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        BlobWriter.setSink( null );
+        super.tearDown();
+    }
+
+    public void testCommittedBatchesAreDrainedAcrossWraps() throws IOException
+    {
+        BlobWriter.setSink( new LocalFileBlobSink( new File( root, "blobs" ) ) );
+        BlockJournal journal = newJournal();
+        journal.start();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        int blockid = 0;
+        for ( int txid = 1; txid <= 50; txid++ )
+        {
+            for ( int i = 0; i < 3; i++ )
+            {
+                byte[] data = message( txid, ++blockid );
+                journal.append( BLOBNAME, blockid, data, data.length );
+                expected.write( data );
+            }
+            journal.commit( txid );
+        }
+        journal.awaitDrained();
+        journal.shutdown();
+
+        assertEquals( 0, journal.getBacklogBytes() );
+        assertTrue( byteAggregator.stateStore.getJournalWatermark( byteAggregator ) > CAPACITY );
+        assertEquals( new String( expected.toByteArray(), StandardCharsets.UTF_8 ), readBlob() );
+    }
+
+    public void testRestartDrainsOnlyCommittedBatches() throws IOException
+    {
+        // storage is down, so the journal keeps every batch
+        BlobWriter.setSink( newDownSink() );
+        BlockJournal journal = newJournal();
+        journal.start();
+        byte[] first = message( 1, 1 );
+        journal.append( BLOBNAME, 1, first, first.length );
+        journal.commit( 1 );
+        byte[] uncommitted = message( 2, 2 );
+        journal.append( BLOBNAME, 2, uncommitted, uncommitted.length );
+        assertTrue( journal.getBacklogBytes() > 0 );
+        journal.shutdown();
+
+        // the worker restarts once storage is back
+        BlobWriter.setSink( new LocalFileBlobSink( new File( root, "blobs" ) ) );
+        newJournal().shutdown();
+
+        assertEquals( new String( first, StandardCharsets.UTF_8 ), readBlob() );
+    }
+
+    public void testCommittedBlocksAreReadBackUntilTheyAreDrained() throws IOException
+    {
+        // storage is down, so the journal keeps every batch
+        BlobWriter.setSink( newDownSink() );
+        BlockJournal journal = newJournal();
+        journal.start();
+        byte[] prefix = message( 1, 1 );
+        journal.append( BLOBNAME, 1, prefix, prefix.length );
+        journal.commit( 1 );
+        byte[] extended = concat( prefix, message( 2, 1 ) );
+        journal.append( BLOBNAME, 1, extended, extended.length );
+        journal.commit( 2 );
+        byte[] uncommitted = concat( extended, message( 3, 1 ) );
+        journal.append( BLOBNAME, 1, uncommitted, uncommitted.length );
+
+        byte[] buffer = new byte[1024];
+        assertTrue( journal.readCommitted( BLOBNAME, 1, buffer, extended.length ) );
+        assertEquals( new String( extended, StandardCharsets.UTF_8 ), new String( buffer, 0, extended.length, StandardCharsets.UTF_8 ) );
+        assertFalse( journal.readCommitted( BLOBNAME, 2, buffer, 1 ) );
+        journal.shutdown();
+
+        // once the batches are drained the blob holds the block
+        BlobWriter.setSink( new LocalFileBlobSink( new File( root, "blobs" ) ) );
+        journal = newJournal();
+        journal.start();
+        assertFalse( journal.readCommitted( BLOBNAME, 1, buffer, extended.length ) );
+        journal.shutdown();
+        assertEquals( new String( extended, StandardCharsets.UTF_8 ), readBlob() );
+    }
+
+    private static BlobSink newDownSink()
+    {
+        return new BlobSink()
+        {
+        public void uploadBlock( String blobname, String blockIdStr, byte[] data, int length )
+        {
+            throw new RuntimeException( "storage is down" );
+        }
+
+        public void commitBlockList( String blobname, List<BlockEntry> blocks )
+        {
+            throw new RuntimeException( "storage is down" );
+        }
+
+        public void downloadBlock( String blobname, String blockIdStr, byte[] buffer, int length )
+        {
+            throw new RuntimeException( "storage is down" );
+        }
+
+        public List<BlockEntry> downloadBlockList( String blobname )
+        {
+            throw new RuntimeException( "storage is down" );
+        }
+
+        public void downloadRange( String blobname, long offset, byte[] buffer, int length )
+        {
+            throw new RuntimeException( "storage is down" );
+        }
+
+        public List<String> listBlobs( String prefix )
+        {
+            throw new RuntimeException( "storage is down" );
+        }
+
+        public void copyBlock( String sourceBlobname, long offset, int length, String blobname, String blockIdStr )
+        {
+            throw new RuntimeException( "storage is down" );
+        }
+
+        public void copyBlob( String sourceBlobname, String blobname )
+        {
+            throw new RuntimeException( "storage is down" );
+        }
+
+        public void deleteBlob( String blobname )
+        {
+            throw new RuntimeException( "storage is down" );
+        }
+        };
+    }
+
+    private BlockJournal newJournal()
+    {
+        return new BlockJournal( byteAggregator, new File( root, "partition_00001.journal" ), CAPACITY, new LatencyHistogram() );
+    }
+
+    private static byte[] message( int txid, int blockid )
+    {
+        return ( "{\"txid\":" + txid + ",\"block\":" + blockid + "}\r\n" ).getBytes( StandardCharsets.UTF_8 );
+    }
+
+    private static byte[] concat( byte[] first, byte[] second )
+    {
+        byte[] bytes = Arrays.copyOf( first, first.length + second.length );
+        System.arraycopy( second, 0, bytes, first.length, second.length );
+        return bytes;
+    }
+
+    private String readBlob() throws IOException
+    {
+        return new String( Files.readAllBytes( new File( new File( root, "blobs" ), BLOBNAME ).toPath() ), StandardCharsets.UTF_8 );
+    }
+}
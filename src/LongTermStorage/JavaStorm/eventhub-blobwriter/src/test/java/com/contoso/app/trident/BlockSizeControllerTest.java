@@ -0,0 +1,61 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+
+package com.contoso.app.trident;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class BlockSizeControllerTest
+    extends TestCase
+{
+    // simulated store: 2 ms per request plus 10 ns per byte
+    private static final long FIXED_MICROS = 2000;
+    private static final double MICROS_PER_BYTE = 0.01;
+
+    public BlockSizeControllerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( BlockSizeControllerTest.class );
+    }
+
+    public void testConvergesToOverheadTarget()
+    {
+        // with a 10% overhead share the target is 2000 / 0.01 * 9 = 1.8 MB
+        BlockSizeController controller = new BlockSizeController( 0, 65536, 65536, 64 << 20 );
+        runBatches( controller, 64, 32 << 20 );
+        int target = controller.getTargetBytes();
+        assertTrue( "target " + target, target > 1600000 && target < 2000000 );
+    }
+
+    public void testStaysBelowHalfTheBatch()
+    {
+        BlockSizeController controller = new BlockSizeController( 0, 4 << 20, 65536, 64 << 20 );
+        runBatches( controller, 64, 1 << 20 );
+        int target = controller.getTargetBytes();
+        assertTrue( "target " + target, target >= 65536 && target <= 540000 );
+    }
+
+    // every batch of batchBytes is cut into blocks of the current target plus a partial last block
+    private static void runBatches( BlockSizeController controller, int batches, int batchBytes )
+    {
+        Block block = new Block( 1, 1, null );
+        long now = 1000000;
+        for ( int i = 0; i < batches; i++ )
+        {
+            int remaining = batchBytes;
+            while ( remaining > 0 )
+            {
+                int bytes = Math.min( remaining, controller.getTargetBytes() );
+                controller.recordUpload( bytes, FIXED_MICROS + (long) ( bytes * MICROS_PER_BYTE ) );
+                remaining -= bytes;
+            }
+            now += 1000;
+            controller.batchCompleted( batchBytes, block, now );
+        }
+    }
+}
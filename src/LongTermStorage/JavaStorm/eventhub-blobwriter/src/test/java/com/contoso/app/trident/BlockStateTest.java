@@ -0,0 +1,220 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+
+package com.contoso.app.trident;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import backtype.storm.topology.FailedException;
+import backtype.storm.tuple.Fields;
+import storm.trident.operation.TridentCollector;
+import storm.trident.topology.TransactionAttempt;
+import storm.trident.tuple.TridentTupleView;
+
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+
+public class BlockStateTest
+    extends TempDirSupport
+{
+    private static final String BLOBNAME = "partition_00001/blob_00001";
+    // blocks below this many bytes at the end of a batch are carried, a block holds up to 3 test messages
+    private static final int MIN_BLOCK_BYTES = 1000;
+    private static final Fields FIELDS = new Fields( "message" );
+    private static final TridentCollector COLLECTOR = new TridentCollector()
+    {
+        public void emit( List<Object> values )
+        {
+        }
+
+        public void reportError( Throwable t )
+        {
+        }
+    };
+
+    public BlockStateTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( BlockStateTest.class );
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        BlockState.setMinBlockBytes( 0 );
+        BlobWriter.setSink( null );
+        super.tearDown();
+    }
+
+    public void testCarriedBlockIsCompletedByTheNextBatch() throws IOException
+    {
+        BlobWriter.setSink( new LocalFileBlobSink( root ) );
+        BlockState.setMinBlockBytes( MIN_BLOCK_BYTES );
+        ByteAggregator byteAggregator = newAggregator( new InMemoryBlockStateStore() );
+        batch( byteAggregator, 1, 0, true, 1, 2 );
+        // the small block is committed as it is and stays open
+        assertEquals( text( 1, 2 ), readBlob() );
+        assertEquals( 1, BlobWriter.downloadBlockList( BLOBNAME ).size() );
+
+        batch( byteAggregator, 2, 0, true, 3, 4 );
+        batch( byteAggregator, 3, 0, true, 5 );
+        byteAggregator.cleanup();
+
+        // the next batch filled the carried block under the same block id and sealed it
+        List<BlockEntry> blocks = BlobWriter.downloadBlockList( BLOBNAME );
+        assertEquals( text( 1, 5 ), readBlob() );
+        assertEquals( 2, blocks.size() );
+        assertEquals( text( 1, 4 ).length(), blocks.get( 0 ).getSize() );
+    }
+
+    public void testReplayOfAnExtendedCarriedBlockKeepsItsPrefix() throws IOException
+    {
+        BlobWriter.setSink( new LocalFileBlobSink( root ) );
+        BlockState.setMinBlockBytes( MIN_BLOCK_BYTES );
+        ByteAggregator byteAggregator = newAggregator( new InMemoryBlockStateStore() );
+        batch( byteAggregator, 1, 0, true, 1 );
+        // the first attempt of batch 2 fails before it completes
+        batch( byteAggregator, 2, 0, false, 99 );
+        assertEquals( text( 1, 1 ), readBlob() );
+        // the second one commits the extended block, but the batch fails afterwards
+        batch( byteAggregator, 2, 1, true, 2 );
+        assertEquals( text( 1, 2 ), readBlob() );
+        // the replay continues after the prefix of batch 1, with other messages
+        batch( byteAggregator, 2, 2, true, 3 );
+        assertEquals( text( 1, 1 ) + text( 3, 3 ), readBlob() );
+
+        batch( byteAggregator, 3, 0, true, 4, 5 );
+        byteAggregator.cleanup();
+        assertEquals( text( 1, 1 ) + text( 3, 5 ), readBlob() );
+        assertEquals( 1, BlobWriter.downloadBlockList( BLOBNAME ).size() );
+    }
+
+    public void testRestartReadsTheCarriedPrefixBack() throws IOException
+    {
+        BlobWriter.setSink( new LocalFileBlobSink( root ) );
+        BlockState.setMinBlockBytes( MIN_BLOCK_BYTES );
+        // the cursors survive the restart, as with storage.state.warm.restart
+        InMemoryBlockStateStore stateStore = new InMemoryBlockStateStore()
+        {
+            @Override
+            public void clearState( ByteAggregator byteAggregator )
+            {
+            }
+        };
+        ByteAggregator byteAggregator = newAggregator( stateStore );
+        batch( byteAggregator, 1, 0, true, 1 );
+        byteAggregator.cleanup();
+
+        ByteAggregator restarted = newAggregator( stateStore );
+        batch( restarted, 2, 0, true, 2, 3, 4 );
+        batch( restarted, 3, 0, true, 5 );
+        restarted.cleanup();
+
+        List<BlockEntry> blocks = BlobWriter.downloadBlockList( BLOBNAME );
+        assertEquals( text( 1, 5 ), readBlob() );
+        assertEquals( 2, blocks.size() );
+        assertEquals( text( 1, 4 ).length(), blocks.get( 0 ).getSize() );
+    }
+
+    public void testWarmRestartChecksTheCursorAgainstTheBlockList()
+    {
+        LocalFileBlobSink sink = new LocalFileBlobSink( root );
+        List<BlockEntry> blocks = new ArrayList<BlockEntry>();
+        String[] data = { "first\r\n", "second\r\n" };
+        for ( int blockid = 1; blockid <= data.length; blockid++ )
+        {
+            byte[] bytes = data[blockid - 1].getBytes( StandardCharsets.UTF_8 );
+            sink.uploadBlock( BLOBNAME, Block.getBlockidStr( blockid ), bytes, bytes.length );
+            blocks.add( new BlockEntry( BlockList.toBlockEntryId( Block.getBlockidStr( blockid ) ), BlockSearchMode.UNCOMMITTED ) );
+        }
+        sink.commitBlockList( BLOBNAME, blocks );
+        BlobWriter.setSink( sink );
+
+        assertTrue( cursorMatches( "1_2_0_0" ) );
+        assertTrue( cursorMatches( "1_2_8_0" ) );
+        assertFalse( cursorMatches( "1_3_0_0" ) );
+        assertFalse( cursorMatches( "1_2_9_0" ) );
+    }
+
+    private static ByteAggregator newAggregator( BlockStateStore stateStore )
+    {
+        ByteAggregator byteAggregator = new ByteAggregator();
+        byteAggregator.prepare( 1, stateStore );
+        return byteAggregator;
+    }
+
+    // runs an attempt of batch txid with the messages numbered ns; an attempt that does not complete fails in aggregate
+    private static void batch( ByteAggregator byteAggregator, long txid, int attempt, boolean complete, int... ns )
+    {
+        BlockState blockState = byteAggregator.init( new TransactionAttempt( txid, attempt ), COLLECTOR );
+        for ( int n : ns )
+        {
+            byteAggregator.aggregate( blockState, TridentTupleView.createFreshTuple( FIELDS, message( n ) ), COLLECTOR );
+        }
+        if ( complete )
+        {
+            byteAggregator.complete( blockState, COLLECTOR );
+        }
+    }
+
+    private static String message( int n )
+    {
+        StringBuilder sb = new StringBuilder( "{\"n\":" ).append( String.format( "%03d", n ) ).append( ",\"pad\":\"" );
+        while ( sb.length() < 300 )
+        {
+            sb.append( 'x' );
+        }
+        return sb.append( "\"}" ).toString();
+    }
+
+    // the records of the messages first to last
+    private static String text( int first, int last )
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int n = first; n <= last; n++ )
+        {
+            sb.append( message( n ) ).append( "\r\n" );
+        }
+        return sb.toString();
+    }
+
+    private String readBlob() throws IOException
+    {
+        return new String( Files.readAllBytes( new File( root, BLOBNAME ).toPath() ), StandardCharsets.UTF_8 );
+    }
+
+    // true if a warm restart of partition 1 may continue after the cursor
+    private static boolean cursorMatches( final String lastblock )
+    {
+        ByteAggregator byteAggregator = new ByteAggregator();
+        byteAggregator.partitionIndex = 1;
+        byteAggregator.stateStore = new InMemoryBlockStateStore()
+        {
+            @Override
+            public String[] getState( ByteAggregator byteAggregator )
+            {
+                return new String[] { "7", lastblock, lastblock };
+            }
+        };
+        try
+        {
+            BlockState.verifyLastBlock( byteAggregator );
+            return true;
+        }
+        catch ( FailedException e )
+        {
+            return false;
+        }
+    }
+}
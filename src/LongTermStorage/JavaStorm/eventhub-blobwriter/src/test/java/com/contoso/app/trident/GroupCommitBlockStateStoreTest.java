@@ -0,0 +1,152 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+
+package com.contoso.app.trident;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import backtype.storm.topology.FailedException;
+
+public class GroupCommitBlockStateStoreTest
+    extends TestCase
+{
+    private static final int PARTITIONS = 3;
+    private final AtomicInteger groups = new AtomicInteger();
+    private volatile boolean failing = false;
+    private List<GroupCommitBlockStateStore> stores;
+
+    public GroupCommitBlockStateStoreTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( GroupCommitBlockStateStoreTest.class );
+    }
+
+    @Override
+    protected void setUp()
+    {
+        // counts the grouped writes of the partitions
+        InMemoryBlockStateStore memory = new InMemoryBlockStateStore()
+        {
+            @Override
+            public void setStates( List<BlockState> blockStates )
+            {
+                groups.incrementAndGet();
+                if ( failing )
+                {
+                    throw new FailedException( "store is down" );
+                }
+                super.setStates( blockStates );
+            }
+        };
+        stores = new ArrayList<GroupCommitBlockStateStore>();
+        for ( int i = 0; i < PARTITIONS; i++ )
+        {
+            stores.add( new GroupCommitBlockStateStore( memory, 10000 ) );
+        }
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for ( GroupCommitBlockStateStore store : stores )
+        {
+            store.close();
+        }
+    }
+
+    public void testPartitionsAreWrittenInOneGroup() throws Exception
+    {
+        long start = System.currentTimeMillis();
+        List<Throwable> failures = setStatesTogether();
+        // the group is written as soon as every partition joined, not after the window
+        assertTrue( System.currentTimeMillis() - start < 5000 );
+        assertEquals( 1, groups.get() );
+        for ( int i = 0; i < PARTITIONS; i++ )
+        {
+            assertNull( failures.get( i ) );
+            ByteAggregator byteAggregator = aggregator( i );
+            assertEquals( "7", stores.get( i ).getState( byteAggregator )[0] );
+        }
+    }
+
+    public void testEveryPartitionSeesTheGroupFailure() throws Exception
+    {
+        failing = true;
+        List<Throwable> failures = setStatesTogether();
+        assertEquals( 1, groups.get() );
+        for ( Throwable failure : failures )
+        {
+            assertTrue( failure instanceof FailedException );
+        }
+    }
+
+    public void testIdlePartitionsAreNotWaitedFor() throws Exception
+    {
+        long start = System.currentTimeMillis();
+        stores.get( PARTITIONS - 1 ).skipState( 7 );
+        List<Throwable> failures = setStatesTogether( PARTITIONS - 1 );
+        assertTrue( System.currentTimeMillis() - start < 5000 );
+        assertEquals( 1, groups.get() );
+        for ( Throwable failure : failures )
+        {
+            assertNull( failure );
+        }
+    }
+
+    private List<Throwable> setStatesTogether() throws InterruptedException
+    {
+        return setStatesTogether( PARTITIONS );
+    }
+
+    // the first count partitions write their state for txid 7, each from a thread of its own
+    private List<Throwable> setStatesTogether( int count ) throws InterruptedException
+    {
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final CountDownLatch done = new CountDownLatch( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            failures.add( null );
+            final int partition = i;
+            final ByteAggregator byteAggregator = aggregator( i );
+            byteAggregator.stateStore = stores.get( i );
+            final BlockState blockState = new BlockState( byteAggregator );
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        blockState.persistState();
+                    }
+                    catch ( Throwable t )
+                    {
+                        failures.set( partition, t );
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        return failures;
+    }
+
+    private static ByteAggregator aggregator( int partition )
+    {
+        ByteAggregator byteAggregator = new ByteAggregator();
+        byteAggregator.partitionIndex = partition;
+        byteAggregator.txid = 7;
+        byteAggregator.txidKey = String.format( "partition_%05d_transactionid", partition );
+        return byteAggregator;
+    }
+}
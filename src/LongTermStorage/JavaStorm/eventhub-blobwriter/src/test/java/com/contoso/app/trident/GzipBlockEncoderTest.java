@@ -0,0 +1,123 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+
+package com.contoso.app.trident;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class GzipBlockEncoderTest
+    extends TestCase
+{
+    private static final int BLOCK_SIZE = 10240;
+
+    public GzipBlockEncoderTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( GzipBlockEncoderTest.class );
+    }
+
+    public void testBlocksAreIndependentGzipMembers() throws IOException
+    {
+        Random random = new Random( 42 );
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ArrayList<byte[]> blocks = new ArrayList<byte[]>();
+        GzipBlockEncoder encoder = new GzipBlockEncoder( -1 );
+        Block block = new Block( 1, 1, encoder );
+        block.blockdata = new byte[BLOCK_SIZE];
+        encoder.begin( block, 0, BLOCK_SIZE );
+        int messagesInBlock = 0;
+        for ( int i = 0; i < 5000; i++ )
+        {
+            byte[] msg = ( "{\"deviceId\":\"device-" + random.nextInt( 100 ) + "\",\"value\":" + random.nextDouble() + "}" ).getBytes( StandardCharsets.UTF_8 );
+            expected.write( msg );
+            expected.write( BlockEncoder.RECORD_DELIMITER );
+            if ( !encoder.willFit( msg.length ) )
+            {
+                assertTrue( messagesInBlock > 0 );
+                blocks.add( finish( encoder, block.blockdata ) );
+                encoder.begin( block, 0, BLOCK_SIZE );
+                messagesInBlock = 0;
+            }
+            encoder.write( msg, 0, msg.length );
+            messagesInBlock++;
+        }
+        blocks.add( finish( encoder, block.blockdata ) );
+        encoder.end();
+
+        // telemetry compresses well, so a compressed block carries more than BLOCK_SIZE bytes of messages
+        assertTrue( blocks.size() < expected.size() / BLOCK_SIZE );
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        ByteArrayOutputStream decodedBlocks = new ByteArrayOutputStream();
+        for ( byte[] frame : blocks )
+        {
+            assertTrue( frame.length <= BLOCK_SIZE );
+            blob.write( frame );
+            decodedBlocks.write( gunzip( frame ) );
+        }
+        assertTrue( java.util.Arrays.equals( expected.toByteArray(), decodedBlocks.toByteArray() ) );
+        // the concatenated blocks read back as one multi-member gzip file
+        assertTrue( java.util.Arrays.equals( expected.toByteArray(), gunzip( blob.toByteArray() ) ) );
+    }
+
+    public void testIncompressibleMessagesStayWithinTheBlock() throws IOException
+    {
+        Random random = new Random( 7 );
+        GzipBlockEncoder encoder = new GzipBlockEncoder( -1 );
+        Block block = new Block( 1, 1, encoder );
+        block.blockdata = new byte[BLOCK_SIZE];
+        encoder.begin( block, 0, BLOCK_SIZE );
+        byte[] msg = new byte[1000];
+        int written = 0;
+        while ( true )
+        {
+            random.nextBytes( msg );
+            if ( !encoder.willFit( msg.length ) )
+            {
+                break;
+            }
+            encoder.write( msg, 0, msg.length );
+            written += msg.length + BlockEncoder.RECORD_DELIMITER.length;
+        }
+        byte[] frame = finish( encoder, block.blockdata );
+        encoder.end();
+        assertTrue( frame.length <= BLOCK_SIZE );
+        assertEquals( written, gunzip( frame ).length );
+    }
+
+    private static byte[] finish( GzipBlockEncoder encoder, byte[] buffer )
+    {
+        int length = encoder.finish();
+        byte[] frame = new byte[length];
+        System.arraycopy( buffer, 0, frame, 0, length );
+        return frame;
+    }
+
+    private static byte[] gunzip( byte[] data ) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try ( InputStream in = new GZIPInputStream( new ByteArrayInputStream( data ) ) )
+        {
+            byte[] chunk = new byte[4096];
+            int n;
+            while ( ( n = in.read( chunk ) ) > 0 )
+            {
+                out.write( chunk, 0, n );
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,48 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+
+package com.contoso.app.trident;
+
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class LatencyHistogramTest
+    extends TestCase
+{
+    public LatencyHistogramTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LatencyHistogramTest.class );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    public void testBucketsAndPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for ( int i = 0; i < 98; i++ )
+        {
+            histogram.update( 800 );
+        }
+        histogram.update( 15000 );
+        histogram.update( 60000000 );
+
+        Map<String, Object> value = (Map<String, Object>) histogram.getValueAndReset();
+        assertEquals( 100L, value.get( "count" ) );
+        assertEquals( 1L, value.get( "p50_ms" ) );
+        assertEquals( 20L, value.get( "p99_ms" ) );
+        assertEquals( 60000.0, value.get( "max_ms" ) );
+        assertEquals( 98L, value.get( "le_1ms" ) );
+        assertEquals( 1L, value.get( "le_20ms" ) );
+        assertEquals( 1L, value.get( "gt_30000ms" ) );
+
+        value = (Map<String, Object>) histogram.getValueAndReset();
+        assertEquals( 0L, value.get( "count" ) );
+        assertEquals( 1, value.size() );
+    }
+}
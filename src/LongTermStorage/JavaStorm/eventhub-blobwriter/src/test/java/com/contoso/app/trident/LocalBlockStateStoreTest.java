@@ -0,0 +1,90 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+
+package com.contoso.app.trident;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import storm.trident.topology.TransactionAttempt;
+
+public class LocalBlockStateStoreTest
+    extends TestCase
+{
+    // storage.state.local.dir and storage.state.local.compact.bytes in the test Config.properties
+    private static final File STATE_FILE = new File( "target/test-state", "partition_00003.state" );
+    private static final long COMPACT_BYTES = 256;
+
+    public LocalBlockStateStoreTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LocalBlockStateStoreTest.class );
+    }
+
+    public void testStateSurvivesReopenAndCompaction()
+    {
+        ByteAggregator aggregator = newAggregator( new LocalBlockStateStore() );
+        String[] expected = null;
+        for ( long txid = 1; txid <= 50; txid++ )
+        {
+            expected = runBatch( aggregator, txid );
+        }
+        assertTrue( STATE_FILE.length() < 2 * COMPACT_BYTES );
+
+        String[] state = new LocalBlockStateStore().getState( aggregator );
+        assertEquals( "50", state[0] );
+        assertEquals( expected[1], state[1] );
+        assertEquals( expected[2], state[2] );
+    }
+
+    public void testTornRecordIsIgnored() throws IOException
+    {
+        ByteAggregator aggregator = newAggregator( new LocalBlockStateStore() );
+        runBatch( aggregator, 1 );
+        String[] expected = runBatch( aggregator, 2 );
+        try ( FileOutputStream out = new FileOutputStream( STATE_FILE, true ) )
+        {
+            out.write( "3 00001_00004_0_0 00001_0".getBytes( StandardCharsets.UTF_8 ) );
+        }
+
+        LocalBlockStateStore reopened = new LocalBlockStateStore();
+        String[] state = reopened.getState( aggregator );
+        assertEquals( "2", state[0] );
+        assertEquals( expected[2], state[2] );
+        // the next record is appended after the last intact one
+        aggregator.stateStore = reopened;
+        runBatch( aggregator, 3 );
+        assertEquals( "3", new LocalBlockStateStore().getState( aggregator )[0] );
+    }
+
+    public void testClearState()
+    {
+        ByteAggregator aggregator = newAggregator( new LocalBlockStateStore() );
+        runBatch( aggregator, 1 );
+        aggregator.stateStore.clearState( aggregator );
+        assertNull( new LocalBlockStateStore().getState( aggregator )[0] );
+    }
+
+    private static ByteAggregator newAggregator( BlockStateStore store )
+    {
+        ByteAggregator aggregator = new ByteAggregator();
+        aggregator.prepare( 3, store );
+        return aggregator;
+    }
+
+    // a batch that only moves the cursor to the next block
+    private static String[] runBatch( ByteAggregator aggregator, long txid )
+    {
+        BlockState blockState = aggregator.init( new TransactionAttempt( txid, 0 ), null );
+        blockState.persistState();
+        return aggregator.stateStore.getState( aggregator );
+    }
+}
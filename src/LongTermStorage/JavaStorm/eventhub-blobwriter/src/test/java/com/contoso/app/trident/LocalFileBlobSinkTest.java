@@ -0,0 +1,205 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+
+package com.contoso.app.trident;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import backtype.storm.topology.FailedException;
+
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+
+public class LocalFileBlobSinkTest
+    extends TempDirSupport
+{
+    private static final String BLOBNAME = "partition_00001/blob_00001";
+
+    public LocalFileBlobSinkTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LocalFileBlobSinkTest.class );
+    }
+
+    public void testCommittedBlocksAreAppendedAndReplacedLikeBlockBlobs() throws IOException
+    {
+        LocalFileBlobSink sink = new LocalFileBlobSink( root );
+        upload( sink, 1, "first\r\n" );
+        upload( sink, 2, "second\r\n" );
+        sink.commitBlockList( BLOBNAME, blocks( 0, 2 ) );
+        assertEquals( "first\r\nsecond\r\n", readBlob() );
+
+        // block 2 carried into the next batch is uploaded again with more data, block 3 is new
+        upload( sink, 2, "second\r\nsecond-more\r\n" );
+        upload( sink, 3, "third\r\n" );
+        sink.commitBlockList( BLOBNAME, blocks( 1, 3 ) );
+        assertEquals( "first\r\nsecond\r\nsecond-more\r\nthird\r\n", readBlob() );
+
+        // a new sink reads the block list back from disk
+        byte[] buffer = new byte[64];
+        new LocalFileBlobSink( root ).downloadBlock( BLOBNAME, Block.getBlockidStr( 2 ), buffer, 8 );
+        assertEquals( "second\r\n", new String( buffer, 0, 8, StandardCharsets.UTF_8 ) );
+    }
+
+    public void testAStoppedCommitLeavesTheCommittedBlocks() throws IOException
+    {
+        LocalFileBlobSink sink = new LocalFileBlobSink( root );
+        upload( sink, 1, "first\r\n" );
+        sink.commitBlockList( BLOBNAME, blocks( 0, 1 ) );
+        upload( sink, 2, "second\r\n" );
+        File blocked = blockBlockList();
+        try
+        {
+            sink.commitBlockList( BLOBNAME, blocks( 1, 2 ) );
+            fail();
+        }
+        catch ( FailedException e )
+        {
+            // block 2 is written behind the blob's blocks, the block list is not replaced
+        }
+        byte[] buffer = new byte[64];
+        LocalFileBlobSink restarted = new LocalFileBlobSink( root );
+        assertEquals( 1, restarted.downloadBlockList( BLOBNAME ).size() );
+        restarted.downloadBlock( BLOBNAME, Block.getBlockidStr( 1 ), buffer, 7 );
+        assertEquals( "first\r\n", new String( buffer, 0, 7, StandardCharsets.UTF_8 ) );
+
+        assertTrue( blocked.delete() );
+        upload( restarted, 2, "2nd\r\n" );
+        restarted.commitBlockList( BLOBNAME, blocks( 1, 2 ) );
+        assertEquals( "first\r\n2nd\r\n", readBlob() );
+    }
+
+    public void testAStoppedCommitThatReplacesBlocksIsRedone() throws IOException
+    {
+        LocalFileBlobSink sink = new LocalFileBlobSink( root );
+        upload( sink, 1, "first\r\n" );
+        upload( sink, 2, "second\r\n" );
+        sink.commitBlockList( BLOBNAME, blocks( 0, 2 ) );
+        upload( sink, 2, "second\r\nsecond-more\r\n" );
+        upload( sink, 3, "third\r\n" );
+        File blocked = blockBlockList();
+        try
+        {
+            sink.commitBlockList( BLOBNAME, blocks( 1, 3 ) );
+            fail();
+        }
+        catch ( FailedException e )
+        {
+            // block 2 is overwritten, the block list is not replaced
+        }
+        assertTrue( blocked.delete() );
+
+        // the restarted worker reads the block list back and finishes the commit
+        LocalFileBlobSink restarted = new LocalFileBlobSink( root );
+        assertEquals( 3, restarted.downloadBlockList( BLOBNAME ).size() );
+        assertEquals( "first\r\nsecond\r\nsecond-more\r\nthird\r\n", readBlob() );
+    }
+
+    public void testUncommittedBlocksAreNotInTheBlob() throws IOException
+    {
+        LocalFileBlobSink sink = new LocalFileBlobSink( root );
+        upload( sink, 1, "first\r\n" );
+        sink.commitBlockList( BLOBNAME, blocks( 0, 1 ) );
+        upload( sink, 2, "failed batch\r\n" );
+        assertEquals( "first\r\n", readBlob() );
+    }
+
+    public void testReplayedBlocksWithTheSameBytesAreNotUploadedAgain() throws IOException
+    {
+        LocalFileBlobSink sink = new LocalFileBlobSink( root );
+        BlockList blockList = new BlockList( sink );
+        // the failed attempt committed its blocks but did not persist its cursor
+        assertTrue( stage( blockList, sink, 1, "first\r\n" ) );
+        assertTrue( stage( blockList, sink, 2, "second\r\n" ) );
+        blockList.commit();
+
+        // the replay gets the same first message and a different second one
+        blockList.discardStaged();
+        assertFalse( stage( blockList, sink, 1, "first\r\n" ) );
+        assertTrue( stage( blockList, sink, 2, "second-replayed\r\n" ) );
+        blockList.commit();
+        assertEquals( "first\r\nsecond-replayed\r\n", readBlob() );
+    }
+
+    public void testStripedBlobsStagedInTurnAreCommittedTogether() throws IOException
+    {
+        LocalFileBlobSink sink = new LocalFileBlobSink( root );
+        BlockList blockList = new BlockList( sink );
+        String stripe = "partition_00001/blob_00002";
+        // blocks go round-robin to two blobs within one batch
+        stage( blockList, sink, BLOBNAME, 1, "a1\r\n" );
+        stage( blockList, sink, stripe, 1, "b1\r\n" );
+        stage( blockList, sink, BLOBNAME, 2, "a2\r\n" );
+        stage( blockList, sink, stripe, 2, "b2\r\n" );
+        stage( blockList, sink, BLOBNAME, 3, "a3\r\n" );
+        blockList.commit();
+        assertEquals( "a1\r\na2\r\na3\r\n", readBlob() );
+        assertEquals( "b1\r\nb2\r\n",
+            new String( Files.readAllBytes( new File( root, stripe ).toPath() ), StandardCharsets.UTF_8 ) );
+    }
+
+    private static boolean stage( BlockList blockList, LocalFileBlobSink sink, int blockid, String data )
+    {
+        return stage( blockList, sink, BLOBNAME, blockid, data );
+    }
+
+    // stages the block like Block.upload does, returns false when the upload was skipped
+    private static boolean stage( BlockList blockList, LocalFileBlobSink sink, String blobname, int blockid, String data )
+    {
+        byte[] bytes = data.getBytes( StandardCharsets.UTF_8 );
+        String blockidStr = Block.getBlockidStr( blockid );
+        blockList.seed( blobname, blockid );
+        byte[] digest = blockList.digest( bytes, bytes.length );
+        if ( blockList.wasUploaded( blockidStr, digest ) )
+        {
+            blockList.stageUploaded( blockidStr );
+            return false;
+        }
+        blockList.stage( blockidStr );
+        sink.uploadBlock( blobname, blockidStr, bytes, bytes.length );
+        blockList.recordUpload( blockidStr, digest );
+        return true;
+    }
+
+    private static void upload( LocalFileBlobSink sink, int blockid, String data )
+    {
+        byte[] bytes = data.getBytes( StandardCharsets.UTF_8 );
+        sink.uploadBlock( BLOBNAME, Block.getBlockidStr( blockid ), bytes, bytes.length );
+    }
+
+    // blocks 1..committed are committed, the following ones up to last are staged
+    private static List<BlockEntry> blocks( int committed, int last )
+    {
+        List<BlockEntry> blocks = new ArrayList<BlockEntry>();
+        for ( int i = 1; i <= last; i++ )
+        {
+            String id = BlockList.toBlockEntryId( Block.getBlockidStr( i ) );
+            blocks.add( new BlockEntry( id, i <= committed ? BlockSearchMode.COMMITTED : BlockSearchMode.UNCOMMITTED ) );
+        }
+        return blocks;
+    }
+
+    // a directory where the new block list is written first, so replacing the block list fails
+    private File blockBlockList()
+    {
+        File blocked = new File( root, ".blocks/" + BLOBNAME + "/blocklist.tmp" );
+        assertTrue( blocked.mkdirs() );
+        return blocked;
+    }
+
+    private String readBlob() throws IOException
+    {
+        return new String( Files.readAllBytes( new File( root, BLOBNAME ).toPath() ), StandardCharsets.UTF_8 );
+    }
+}
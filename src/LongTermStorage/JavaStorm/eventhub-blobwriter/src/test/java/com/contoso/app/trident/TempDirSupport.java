@@ -0,0 +1,46 @@
+// Copyright (c) Microsoft Corporation. All rights reserved. See License.txt in the project root for license information.
+
+package com.contoso.app.trident;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+// Base of the tests that write files: each test gets an empty temporary directory, deleted with its contents afterwards
+public abstract class TempDirSupport
+    extends TestCase
+{
+    protected File root;
+
+    public TempDirSupport( String testName )
+    {
+        super( testName );
+    }
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        root = Files.createTempDirectory( getClass().getSimpleName() ).toFile();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        delete( root );
+    }
+
+    protected static void delete( File file )
+    {
+        File[] children = file.listFiles();
+        if ( children != null )
+        {
+            for ( File child : children )
+            {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+}